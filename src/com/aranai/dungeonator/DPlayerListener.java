@@ -1,6 +1,8 @@
 package com.aranai.dungeonator;
 
+import java.util.Collections;
 import java.util.LinkedList;
+import java.util.Set;
 
 import org.bukkit.Location;
 import org.bukkit.command.Command;
@@ -11,6 +13,7 @@ import org.bukkit.event.Listener;
 import org.bukkit.event.player.PlayerRespawnEvent;
 
 import com.aranai.dungeonator.event.DCommandEvent;
+import com.aranai.dungeonator.metrics.GenerationMetrics;
 
 public class DPlayerListener implements Listener {
 	private Dungeonator plugin;
@@ -47,6 +50,50 @@ public class DPlayerListener implements Listener {
 			}
 		}
 		
+		/*
+		 * Generation metrics
+		 */
+		if(command.getName().equalsIgnoreCase("dmetrics"))
+		{
+			GenerationMetrics metrics = plugin.getMetrics();
+			
+			if(args.length > 0 && args[0].equalsIgnoreCase("reset"))
+			{
+				if(!sender.isOp()) { sender.sendMessage("Only ops can reset metrics."); return true; }
+				
+				metrics.reset();
+				sender.sendMessage("Generation metrics reset.");
+				return true;
+			}
+			
+			// Show one world if requested, or all of them
+			Set<String> worlds = metrics.getWorlds();
+			if(args.length > 0) { worlds = worlds.contains(args[0]) ? Collections.singleton(args[0]) : Collections.<String>emptySet(); }
+			
+			if(worlds.isEmpty())
+			{
+				sender.sendMessage("No generation metrics recorded"+(args.length > 0 ? " for "+args[0] : "")+".");
+			}
+			
+			for(String world : worlds)
+			{
+				sender.sendMessage("["+world+"]");
+				for(String line : metrics.getReport(world))
+				{
+					sender.sendMessage(line);
+				}
+			}
+			
+			if(plugin.getDCP() != null)
+			{
+				sender.sendMessage(plugin.getDCP().getRoomCache().toString());
+			}
+			
+			sender.sendMessage(plugin.getDataManager().getTemplateCache().toString());
+			
+			return true;
+		}
+		
 		// Map test
 		if(command.getName().equalsIgnoreCase("testmap"))
 		{
@@ -4,11 +4,9 @@ import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
-import java.util.Hashtable;
+import java.util.Random;
 import java.util.Vector;
 
-import org.bukkit.World;
-import org.jnbt.ByteArrayTag;
 import org.jnbt.CompoundTag;
 import org.jnbt.NBTInputStream;
 
@@ -17,6 +15,17 @@ import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
+import com.aranai.dungeonator.dungeonchunk.RoomSetCatalog;
+import com.aranai.dungeonator.dungeonchunk.RoomTemplate;
+import com.aranai.dungeonator.dungeonchunk.RoomTemplateCache;
+import com.aranai.dungeonator.dungeonchunk.WidgetAsset;
+import com.aranai.dungeonator.dungeonchunk.WidgetPool;
+import com.aranai.dungeonator.metrics.GenerationMetrics;
+import com.aranai.dungeonator.metrics.GenerationStage;
+import com.aranai.dungeonator.util.CoordKey;
+import com.aranai.dungeonator.util.LongLongMap;
+import com.aranai.dungeonator.util.LongObjectMap;
+import com.aranai.dungeonator.util.WorldRegistry;
 
 /**
  * Abstracts all data store access for Dungeonator.
@@ -29,10 +38,46 @@ public class DungeonDataManager {
 	/** The dungeon data store. This may be a MySQL data store, a flatfile store, or whatever. */
 	private IDungeonDataStore dataStore;
 	
-	private Hashtable<String,CompoundTag> roomCache;
+	/** Decoded room templates by library room id and theme */
+	private RoomTemplateCache roomCache;
 	
-	/** Reserved room list */
-	private Hashtable<String,Long> roomReservations;
+	/** Chunks per side of a reservation region, as a shift */
+	private static final int REGION_SHIFT = 5;
+	
+	/** Most regions remembered as having no reservations */
+	private static final int MAX_EMPTY_REGIONS = 1024;
+	
+	/** Loaded reservation regions that hold reservations, by region key. Synchronize on it. */
+	private LongObjectMap<ReservationRegion> reservationRegions;
+	
+	/** Last use of regions known to have no reservations, by region key; guarded by reservationRegions */
+	private LongLongMap emptyRegions;
+	
+	/** Use counter for emptyRegions */
+	private long emptyRegionTick = 0;
+	
+	/** Number of regions dropped from emptyRegions; guarded by reservationRegions */
+	private long forgottenRegions = 0;
+	
+	/** Chunks whose rooms are being selected or saved, by chunk key; guarded by reservationRegions */
+	private LongLongMap claimedChunks;
+	
+	/** Number of claims released once their chunk was saved as generated; guarded by reservationRegions */
+	private long releasedClaims = 0;
+	
+	/** Room sets being saved, counted by the chunk keys they touch; guarded by reservationRegions */
+	private LongLongMap unsavedChunks;
+	
+	/** Loaded library room sets; null when they need reloading */
+	private RoomSetCatalog roomSetCatalog;
+	
+	/** Loaded library widgets by size class; null when they need reloading */
+	private WidgetPool widgetPool;
+	
+	/** Random source for unseeded widget selection */
+	private final Random widgetRandom = new Random();
+	
+	private boolean debug = false;
 	
 	/**
 	 * Instantiates the DungeonDataManager.
@@ -45,40 +90,125 @@ public class DungeonDataManager {
 		this.dataStore = dataStore;
 		this.dataStore.initialize(plugin);
 		
-		this.roomCache = new Hashtable<String,CompoundTag>();
+		long cacheBytes = Math.max(1, plugin.getConfig().getInt("templates.cache-mb", 64)) * 1024L * 1024L;
+		this.roomCache = new RoomTemplateCache(new RoomTemplateCache.Loader() {
+			public RoomTemplate load(DungeonRoom room, String setFolder, String theme)
+			{
+				return loadRoomTemplate(room, setFolder, theme);
+			}
+		}, cacheBytes);
 		
-		this.roomReservations = new Hashtable<String,Long>();
+		this.reservationRegions = new LongObjectMap<ReservationRegion>();
+		this.emptyRegions = new LongLongMap();
+		this.claimedChunks = new LongLongMap();
+		this.unsavedChunks = new LongLongMap();
 		
-		loadRoomReservations();
+		// Load widgets and room sets up front so generation never touches the disk for them
+		getWidgetPool();
+		getRoomSetCatalog();
 	}
 	
 	/**
-	 * Load room reservations. This should be done once per world on startup.
+	 * Checks if a room is reserved.
+	 *
+	 * @param world the world
+	 * @param x the x
+	 * @param y the y
+	 * @param z the z
+	 * @return true, if room is reserved
+	 */
+	public boolean isRoomReserved(String world, int x, int y, int z)
+	{
+		return (getReservationMask(world, x, z) & (1 << y)) != 0;
+	}
+	
+	/**
+	 * Gets the reserved rooms of a chunk as a bit mask, with bit y set if
+	 * room y is reserved.
+	 *
+	 * @param world the world
+	 * @param x the x
+	 * @param z the z
+	 * @return the reservation mask
 	 */
-	private void loadRoomReservations()
+	public int getReservationMask(String world, int x, int z)
 	{
-		for(World w : plugin.getServer().getWorlds())
+		long key = GetReservationKey(world, x, 0, z);
+		
+		while(true)
 		{
-			try {
-				roomReservations.putAll(dataStore.getAllReservedRooms(w.getName()));
-			} catch (DataStoreGetException e) { e.printStackTrace(); }
+			// Treat the chunk as full if its reservations cannot be read
+			if(!loadReservationRegions(world, x, z, x, z)) { return 0xFFFF; }
+			
+			synchronized(reservationRegions)
+			{
+				if(!isRegionKnown(getRegionKey(key))) { continue; }
+				
+				ReservationRegion region = getReservationRegion(key, false);
+				return (region == null) ? 0 : (int)region.masks.get(key, 0);
+			}
 		}
-		
-		Dungeonator.GetLogger().info("Found "+roomReservations.size()+" room reservations.");
 	}
 	
 	/**
-	 * Checks if a room is reserved.
+	 * Gets the number of reserved rooms in a chunk.
 	 *
 	 * @param world the world
 	 * @param x the x
-	 * @param y the y
 	 * @param z the z
-	 * @return true, if room is reserved
+	 * @return the reserved room count
 	 */
-	public boolean isRoomReserved(String world, int x, int y, int z)
+	public int getReservedRoomCount(String world, int x, int z)
+	{
+		return Integer.bitCount(getReservationMask(world, x, z));
+	}
+	
+	/**
+	 * Checks if every room in a box of chunks and room levels is unreserved.
+	 *
+	 * @param world the world
+	 * @param x the x of the lowest corner
+	 * @param y the y of the lowest corner
+	 * @param z the z of the lowest corner
+	 * @param sizeX the size along x, in chunks
+	 * @param sizeY the size along y, in rooms
+	 * @param sizeZ the size along z, in chunks
+	 * @return true, if no room in the box is reserved
+	 */
+	public boolean isVolumeUnreserved(String world, int x, int y, int z, int sizeX, int sizeY, int sizeZ)
 	{
-		return roomReservations.containsKey(DungeonDataManager.GetReservationKey(world,x,y,z));
+		while(true)
+		{
+			if(!loadReservationRegions(world, x, z, x+sizeX-1, z+sizeZ-1)) { return false; }
+			
+			synchronized(reservationRegions)
+			{
+				if(!areRegionsKnown(world, x, z, x+sizeX-1, z+sizeZ-1)) { continue; }
+				
+				return isVolumeUnreservedCached(world, x, y, z, sizeX, sizeY, sizeZ);
+			}
+		}
+	}
+	
+	/**
+	 * Checks a box of rooms against the local cache. Must hold the
+	 * reservationRegions lock, with the regions of the box loaded.
+	 */
+	private boolean isVolumeUnreservedCached(String world, int x, int y, int z, int sizeX, int sizeY, int sizeZ)
+	{
+		int volume = ((1 << sizeY) - 1) << y;
+		
+		for(int sx = 0; sx < sizeX; sx++)
+		{
+			for(int sz = 0; sz < sizeZ; sz++)
+			{
+				long key = GetReservationKey(world, x+sx, 0, z+sz);
+				ReservationRegion region = getReservationRegion(key, false);
+				if(region != null && (region.masks.get(key, 0) & volume) != 0) { return false; }
+			}
+		}
+		
+		return true;
 	}
 	
 	/**
@@ -92,12 +222,20 @@ public class DungeonDataManager {
 	 */
 	public long getRoomReservation(String world, int x, int y, int z)
 	{
-		if(isRoomReserved(world, x, y, z))
+		long key = GetReservationKey(world, x, y, z);
+		
+		while(true)
 		{
-			return roomReservations.get(GetReservationKey(world, x, y, z));
+			if(!loadReservationRegions(world, x, z, x, z)) { return -1; }
+			
+			synchronized(reservationRegions)
+			{
+				if(!isRegionKnown(getRegionKey(key))) { continue; }
+				
+				ReservationRegion region = getReservationRegion(key, false);
+				return (region == null) ? -1 : region.ids.get(key, -1);
+			}
 		}
-		
-		return -1;
 	}
 	
 	/**
@@ -111,13 +249,148 @@ public class DungeonDataManager {
 	 */
 	public void setRoomReservation(String world, int x, int y, int z, long id)
 	{
+		long key = GetReservationKey(world, x, y, z);
+		
+		// Save to local cache first; a region holding a reservation is never
+		// reloaded, so a load racing the save cannot drop it
+		while(true)
+		{
+			if(!loadReservationRegions(world, x, z, x, z)) { return; }
+			
+			synchronized(reservationRegions)
+			{
+				if(!isRegionKnown(getRegionKey(key))) { continue; }
+				
+				cacheReservation(key, id);
+				break;
+			}
+		}
+		
 		try {
 			// Save to data store
 			dataStore.saveReservedRoom(world, x, y, z, id);
+		} catch (DataStoreSaveException e) {
+			e.printStackTrace();
+			synchronized(reservationRegions) { uncacheReservation(key); }
+		}
+	}
+	
+	/**
+	 * Reserves every room of a room set, if none of them is reserved yet
+	 * and none of the chunks it covers has been generated. The checks and
+	 * the claim happen under one lock, so two generators can never reserve
+	 * overlapping sets and a set can never land on a chunk whose rooms are
+	 * being selected; the rooms are then saved in a single data store
+	 * transaction.
+	 *
+	 * @param world the world
+	 * @param x the x of the set origin
+	 * @param y the y of the set origin
+	 * @param z the z of the set origin
+	 * @param set the room set
+	 * @return true, if the set was reserved
+	 */
+	public boolean reserveRoomSet(String world, int x, int y, int z, DungeonRoomSet set)
+	{
+		int x2 = x + set.getSizeX() - 1;
+		int z2 = z + set.getSizeZ() - 1;
+		
+		while(true)
+		{
+			long released;
+			synchronized(reservationRegions) { released = releasedClaims; }
+			
+			// A chunk saved as generated stays generated, so the data store can be
+			// asked before taking the lock; chunks selected since are claimed below
+			for(int sx = 0; sx < set.getSizeX(); sx++)
+			{
+				for(int sz = 0; sz < set.getSizeZ(); sz++)
+				{
+					if(plugin.getChunkManager().isChunkGenerated(world, x+sx, z+sz)) { return false; }
+				}
+			}
 			
-			// Save to local cache
-			roomReservations.put(GetReservationKey(world,x,y,z), id);
+			if(!loadReservationRegions(world, x, z, x2, z2)) { return false; }
+			
+			synchronized(reservationRegions)
+			{
+				if(!areRegionsKnown(world, x, z, x2, z2)) { continue; }
+				
+				// A chunk may have been saved and its claim released since the checks above
+				if(releasedClaims != released) { continue; }
+				
+				for(int sx = 0; sx < set.getSizeX(); sx++)
+				{
+					for(int sz = 0; sz < set.getSizeZ(); sz++)
+					{
+						if(claimedChunks.containsKey(GetReservationKey(world, x+sx, 0, z+sz))) { return false; }
+					}
+				}
+				
+				if(!isVolumeUnreservedCached(world, x, y, z, set.getSizeX(), set.getSizeY(), set.getSizeZ())) { return false; }
+				
+				setRoomSetCached(world, x, y, z, set, true);
+				setRoomSetUnsaved(world, x, z, set, true);
+				break;
+			}
+		}
+		
+		boolean saved = false;
+		
+		try {
+			saved = dataStore.saveReservedRoomSet(world, x, y, z, set);
 		} catch (DataStoreSaveException e) { e.printStackTrace(); }
+		
+		synchronized(reservationRegions)
+		{
+			// Release the claim so the rooms can be used by another set
+			if(!saved) { setRoomSetCached(world, x, y, z, set, false); }
+			
+			setRoomSetUnsaved(world, x, z, set, false);
+			reservationRegions.notifyAll();
+		}
+		
+		return saved;
+	}
+	
+	/**
+	 * Marks the chunks covered by a room set as waiting for its reservations
+	 * to be saved, or done waiting. Must hold the reservationRegions lock.
+	 */
+	private void setRoomSetUnsaved(String world, int x, int z, DungeonRoomSet set, boolean unsaved)
+	{
+		for(int sx = 0; sx < set.getSizeX(); sx++)
+		{
+			for(int sz = 0; sz < set.getSizeZ(); sz++)
+			{
+				long key = GetReservationKey(world, x+sx, 0, z+sz);
+				long count = unsavedChunks.get(key, 0) + (unsaved ? 1 : -1);
+				
+				if(count > 0) { unsavedChunks.put(key, count); }
+				else { unsavedChunks.remove(key); }
+			}
+		}
+	}
+	
+	/**
+	 * Adds or removes the reservations of a room set in the local cache.
+	 * Must hold the reservationRegions lock.
+	 */
+	private void setRoomSetCached(String world, int x, int y, int z, DungeonRoomSet set, boolean reserved)
+	{
+		for(int sx = 0; sx < set.getSizeX(); sx++)
+		{
+			for(int sy = 0; sy < set.getSizeY(); sy++)
+			{
+				for(int sz = 0; sz < set.getSizeZ(); sz++)
+				{
+					long key = GetReservationKey(world, x+sx, y+sy, z+sz);
+					
+					if(reserved) { cacheReservation(key, set.getLibraryRoomID(sx, sy, sz)); }
+					else { uncacheReservation(key); }
+				}
+			}
+		}
 	}
 	
 	/**
@@ -135,10 +408,220 @@ public class DungeonDataManager {
 			dataStore.deleteReservedRoom(world, x, y, z);
 			
 			// Delete from local cache
-			roomReservations.remove(GetReservationKey(world,x,y,z));
+			long key = GetReservationKey(world, x, y, z);
+			synchronized(reservationRegions) { uncacheReservation(key); }
 		} catch (DataStoreDeleteException e) { e.printStackTrace(); }
 	}
 	
+	/**
+	 * Adds a reservation to the local cache. Must hold the reservationRegions
+	 * lock. Nothing is cached if the region is not loaded; its reservations,
+	 * this one included, are read from the data store when it is.
+	 *
+	 * @param key the reservation key
+	 * @param id the library id
+	 */
+	private void cacheReservation(long key, long id)
+	{
+		ReservationRegion region = getReservationRegion(key, true);
+		if(region != null) { region.add(key, id); }
+	}
+	
+	/**
+	 * Removes a reservation from the local cache, evicting its region once
+	 * the region has none left. Must hold the reservationRegions lock.
+	 *
+	 * @param key the reservation key
+	 */
+	private void uncacheReservation(long key)
+	{
+		ReservationRegion region = getReservationRegion(key, false);
+		if(region == null || !region.remove(key) || region.ids.size() > 0) { return; }
+		
+		long regionKey = getRegionKey(key);
+		reservationRegions.remove(regionKey);
+		touchEmptyRegion(regionKey);
+	}
+	
+	/**
+	 * Gets the loaded reservation region holding a room. Must hold the
+	 * reservationRegions lock.
+	 *
+	 * @param key the reservation key of any room in the region
+	 * @param create true to create the region if it is loaded but has no reservations
+	 * @return the region, or null if it has no reservations and create is
+	 * false, or if it is not loaded
+	 */
+	private ReservationRegion getReservationRegion(long key, boolean create)
+	{
+		long regionKey = getRegionKey(key);
+		
+		ReservationRegion region = reservationRegions.get(regionKey);
+		if(region != null || !emptyRegions.containsKey(regionKey)) { return region; }
+		
+		if(!create)
+		{
+			touchEmptyRegion(regionKey);
+			return null;
+		}
+		
+		emptyRegions.remove(regionKey);
+		region = new ReservationRegion();
+		reservationRegions.put(regionKey, region);
+		
+		return region;
+	}
+	
+	/**
+	 * Checks if a region's reservations are in the local cache. Must hold
+	 * the reservationRegions lock.
+	 *
+	 * @param regionKey the region key
+	 * @return true, if the region is loaded
+	 */
+	private boolean isRegionKnown(long regionKey)
+	{
+		return reservationRegions.containsKey(regionKey) || emptyRegions.containsKey(regionKey);
+	}
+	
+	/**
+	 * Checks if every region covering a box of chunks is loaded. Must hold
+	 * the reservationRegions lock.
+	 */
+	private boolean areRegionsKnown(String world, int x1, int z1, int x2, int z2)
+	{
+		int worldId = WorldRegistry.getId(world);
+		
+		for(int rx = x1 >> REGION_SHIFT; rx <= x2 >> REGION_SHIFT; rx++)
+		{
+			for(int rz = z1 >> REGION_SHIFT; rz <= z2 >> REGION_SHIFT; rz++)
+			{
+				if(!isRegionKnown(CoordKey.chunk(worldId, rx, rz))) { return false; }
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Loads the reservations of every region covering a box of chunks. The
+	 * data store is queried without holding the reservationRegions lock, so
+	 * a region may be forgotten again before the caller takes it; callers
+	 * check with areRegionsKnown under the lock and retry.
+	 *
+	 * @param world the world
+	 * @param x1 the lowest chunk x
+	 * @param z1 the lowest chunk z
+	 * @param x2 the highest chunk x
+	 * @param z2 the highest chunk z
+	 * @return true, if the regions were loaded
+	 */
+	private boolean loadReservationRegions(String world, int x1, int z1, int x2, int z2)
+	{
+		int worldId = WorldRegistry.getId(world);
+		
+		for(int rx = x1 >> REGION_SHIFT; rx <= x2 >> REGION_SHIFT; rx++)
+		{
+			for(int rz = z1 >> REGION_SHIFT; rz <= z2 >> REGION_SHIFT; rz++)
+			{
+				if(!loadReservationRegion(world, CoordKey.chunk(worldId, rx, rz))) { return false; }
+			}
+		}
+		
+		return true;
+	}
+	
+	/**
+	 * Loads the reservations of a region from the data store, unless it is
+	 * already loaded.
+	 *
+	 * @param world the world
+	 * @param regionKey the region key
+	 * @return true, if the region is loaded
+	 */
+	private boolean loadReservationRegion(String world, long regionKey)
+	{
+		int x1 = CoordKey.getX(regionKey) << REGION_SHIFT;
+		int z1 = CoordKey.getZ(regionKey) << REGION_SHIFT;
+		int size = 1 << REGION_SHIFT;
+		
+		while(true)
+		{
+			long forgotten;
+			
+			synchronized(reservationRegions)
+			{
+				if(isRegionKnown(regionKey)) { return true; }
+				forgotten = forgottenRegions;
+			}
+			
+			LongLongMap ids;
+			try {
+				ids = dataStore.getReservedRoomIds(world, x1, z1, x1 + size - 1, z1 + size - 1);
+			} catch (DataStoreGetException e) { e.printStackTrace(); return false; }
+			
+			synchronized(reservationRegions)
+			{
+				// Another thread loaded it first; its copy may already have changed
+				if(isRegionKnown(regionKey)) { return true; }
+				
+				// A region forgotten during the query may have been changed and
+				// forgotten again before the query read it; read it once more
+				if(forgottenRegions != forgotten) { continue; }
+				
+				if(ids == null || ids.size() == 0)
+				{
+					touchEmptyRegion(regionKey);
+					return true;
+				}
+				
+				ReservationRegion region = new ReservationRegion();
+				for(long key : ids.keys())
+				{
+					region.add(key, ids.get(key, -1));
+				}
+				
+				reservationRegions.put(regionKey, region);
+				
+				return true;
+			}
+		}
+	}
+	
+	/**
+	 * Marks a region as recently used and known to have no reservations,
+	 * forgetting the least recently used one if there are too many.
+	 *
+	 * @param regionKey the region key
+	 */
+	private void touchEmptyRegion(long regionKey)
+	{
+		emptyRegions.put(regionKey, ++emptyRegionTick);
+		if(emptyRegions.size() <= MAX_EMPTY_REGIONS) { return; }
+		
+		long oldestKey = 0;
+		long oldestTick = Long.MAX_VALUE;
+		for(long k : emptyRegions.keys())
+		{
+			long tick = emptyRegions.get(k, Long.MAX_VALUE);
+			if(tick < oldestTick) { oldestTick = tick; oldestKey = k; }
+		}
+		
+		emptyRegions.remove(oldestKey);
+		forgottenRegions++;
+	}
+	
+	/**
+	 * Gets the key of the reservation region that holds a room.
+	 *
+	 * @param key the reservation key
+	 * @return the region key
+	 */
+	private static long getRegionKey(long key)
+	{
+		return CoordKey.chunk(CoordKey.getWorld(key), CoordKey.getX(key) >> REGION_SHIFT, CoordKey.getZ(key) >> REGION_SHIFT);
+	}
+	
 	/**
 	 * Gets the unreserved rooms for a chunk.
 	 *
@@ -151,28 +634,17 @@ public class DungeonDataManager {
 	{
 		Vector<Integer> rooms = new Vector<Integer>();
 		
+		// Shift the free bits down onto themselves until they run out; after
+		// n passes, bit i is still set only if rooms i to i+n are all free
+		int free = ~getReservationMask(world, x, z) & 0xFFFF;
 		int largestSize = 0;
 		int startsAt = 0;
-		int tmpSize = 0;
-		int tmpStartsAt = 0;
 		
-		for(int i = 0; i < 16; i++)
+		while(free != 0)
 		{
-			if(!isRoomReserved(world, x, i, z))
-			{
-				tmpSize++;
-				
-				if(tmpSize > largestSize)
-				{
-					largestSize = tmpSize;
-					startsAt = tmpStartsAt;
-				}
-			}
-			else
-			{
-				tmpStartsAt = i+1;
-				tmpSize = 0;
-			}
+			largestSize++;
+			startsAt = Integer.numberOfTrailingZeros(free);
+			free &= free >>> 1;
 		}
 		
 		if(largestSize > 0)
@@ -224,6 +696,9 @@ public class DungeonDataManager {
 			// Save the room
 			dataStore.saveLibraryRoom(room);
 			
+			// Set rooms change the room set grids
+			synchronized(this) { roomSetCatalog = null; }
+			
 			// Notify the editor
 			plugin.getChunkEditor().getActiveEditor().sendMessage("Saved room '"+room.getName()+"["+room.getFilename()+"] to Library.");
 		} catch (DataStoreSaveException e) {
@@ -243,6 +718,9 @@ public class DungeonDataManager {
 			// Save the room set
 			dataStore.saveLibraryRoomSet(set);
 			
+			// Reload the catalog on next use
+			synchronized(this) { roomSetCatalog = null; }
+			
 			// Notify the editor
 			plugin.getChunkEditor().getActiveEditor().sendMessage("Saved room set '"+set.getTitle()+"["+set.getName()+"] to Library.");
 		} catch (DataStoreSaveException e) { e.printStackTrace(); }
@@ -263,6 +741,43 @@ public class DungeonDataManager {
 		return false;
 	}
 	
+	/**
+	 * Saves a newly generated chunk and its rooms in one transaction, and
+	 * deletes the room reservations its rooms were drawn from.
+	 *
+	 * @param chunk the chunk
+	 * @param rooms the rooms
+	 * @return true, if successful
+	 */
+	public boolean saveGeneratedChunk(DungeonChunk chunk, DungeonRoom[] rooms)
+	{
+		int consumedReservations = 0;
+		for(int i = 0; i < rooms.length; i++)
+		{
+			if(rooms[i].isReserved()) { consumedReservations |= 1 << rooms[i].getY(); }
+		}
+		
+		try {
+			boolean success = dataStore.saveGeneratedChunk(chunk, rooms, consumedReservations);
+			if(success)
+			{
+				plugin.getChunkManager().setChunkGenerated(chunk.getWorldName(), chunk.getX(), chunk.getZ(), true);
+				
+				// The chunk now counts as generated, so it no longer needs a claim
+				synchronized(reservationRegions)
+				{
+					claimedChunks.remove(GetReservationKey(chunk.getWorldName(), chunk.getX(), 0, chunk.getZ()));
+					releasedClaims++;
+				}
+			}
+			return success;
+		} catch (DataStoreSaveException e) {
+			e.printStackTrace();
+		}
+		
+		return false;
+	}
+	
 	public boolean saveRooms(DungeonRoom[] rooms)
 	{
 		try {
@@ -291,6 +806,9 @@ public class DungeonDataManager {
 			// Save the widget
 			dataStore.saveLibraryWidget(widget);
 			
+			// Reload the pool on next use
+			synchronized(this) { widgetPool = null; }
+			
 			// Notify the editor
 			plugin.getChunkEditor().getActiveEditor().sendMessage("Saved widget '"+widget.getFilename()+"' to Library.");
 		} catch (DataStoreSaveException e) { e.printStackTrace(); }
@@ -298,7 +816,6 @@ public class DungeonDataManager {
 	
 	public DungeonRoom[] getRoomsForChunk(DungeonChunk chunk)
 	{
-		String fullPath = "";
 		DungeonRoom[] rooms = null;
 		
 		try {
@@ -315,29 +832,22 @@ public class DungeonDataManager {
 			{
 				if(rooms[i] == null)
 				{
-					System.out.println("No room for {"+chunk.getWorldName()+","+chunk.getX()+","+chunk.getZ()+"}");
+					if(debug) { Dungeonator.GetLogger().info("No room for {"+chunk.getWorldName()+","+chunk.getX()+","+i+","+chunk.getZ()+"}"); }
 					continue;
 				}
 				
 				// Check for room set
-				String setPath = "";
-				if(rooms[i].getLibraryRoomSetID() > 0)
-				{
-					setPath = "sets"+File.separator+rooms[i].getLibraryRoomSetPath()+File.separator;
-				}
+				String setFolder = (rooms[i].getLibraryRoomSetID() > 0) ? rooms[i].getLibraryRoomSetPath() : null;
 				
-				// Get the full path to the source tile
-				fullPath = Dungeonator.TileFolderPath+setPath+rooms[i].getFilename()+".nbt";
-				
-				CompoundTag schematic = this.getRoomSchematic(fullPath);
+				long startLoadTime = GenerationMetrics.start();
+				RoomTemplate template = roomCache.get(0, rooms[i], setFolder, null);
+				plugin.getMetrics().record(chunk.getWorldName(), GenerationStage.SCHEMATIC_LOAD, startLoadTime);
 				
 				// Verify the data was loaded
-				if(schematic != null)
+				if(template != null)
 				{
-					// Set blocks and block data
-					rooms[i].setSchematic(schematic);
-					rooms[i].setRawBlocks(((ByteArrayTag)schematic.getValue().get("blocks")).getValue());
-					rooms[i].setRawBlockData(((ByteArrayTag)schematic.getValue().get("blockData")).getValue());
+					// Set schematic, blocks, block data and tile entities
+					template.applyTo(rooms[i]);
 				}
 			}
 		} catch (DataStoreGetException e) { e.printStackTrace(); }
@@ -353,24 +863,104 @@ public class DungeonDataManager {
 	 */
 	public DungeonRoom[] getRoomsForNewChunk(DungeonChunk chunk)
 	{
-		String fullPath = "";
-		DungeonRoom[] rooms = new DungeonRoom[16];
+		return getRoomsForNewChunk(chunk, null);
+	}
+	
+	/**
+	 * Gets a list of random rooms for a new chunk, drawing every random
+	 * decision from the given random source. With a per-chunk random source,
+	 * the chunk comes out the same regardless of which thread selects it.
+	 * The chunk is claimed first, after which no room set can be reserved
+	 * into it.
+	 *
+	 * @param chunk the chunk
+	 * @param random the random source, or null to let the data store choose
+	 * @return the rooms for the new chunk
+	 */
+	public DungeonRoom[] getRoomsForNewChunk(DungeonChunk chunk, Random random)
+	{
+		String world = chunk.getWorldName();
+		long chunkKey = GetReservationKey(world, chunk.getX(), 0, chunk.getZ());
+		long[] reservedIDs = new long[16];
+		int reservedMask = 0;
 		
-		// Get a count of reserved rooms
-		int reservedRoomCount = 0;
-		for(int i = 0; i < 16; i++)
+		// Claim the chunk and take its reservations in one step, so no set can
+		// be reserved into it from now on and none reserved before is missed
+		while(true)
 		{
-			if(isRoomReserved(chunk.getWorldName(), chunk.getX(), i, chunk.getZ())) { reservedRoomCount++; }
+			if(!loadReservationRegions(world, chunk.getX(), chunk.getZ(), chunk.getX(), chunk.getZ())) { return null; }
+			
+			synchronized(reservationRegions)
+			{
+				// Wait for sets reserved into the chunk to reach the data store
+				try {
+					while(unsavedChunks.containsKey(chunkKey)) { reservationRegions.wait(); }
+				} catch (InterruptedException e) { Thread.currentThread().interrupt(); return null; }
+				
+				if(!isRegionKnown(getRegionKey(chunkKey))) { continue; }
+				
+				claimedChunks.put(chunkKey, 1);
+				
+				ReservationRegion region = getReservationRegion(chunkKey, false);
+				if(region != null)
+				{
+					reservedMask = (int)region.masks.get(chunkKey, 0);
+					
+					for(int i = 0; i < 16; i++)
+					{
+						if((reservedMask & (1 << i)) == 0) { continue; }
+						
+						long key = GetReservationKey(world, chunk.getX(), i, chunk.getZ());
+						reservedIDs[i] = region.ids.get(key, -1);
+						uncacheReservation(key);
+					}
+				}
+				
+				break;
+			}
 		}
 		
-		// Get the reserved room list for the chunk
+		DungeonRoom[] rooms = selectRooms(chunk, random, reservedMask, reservedIDs);
+		
+		// Give the reservations back and release the chunk if selection failed
+		if(rooms == null)
+		{
+			synchronized(reservationRegions)
+			{
+				for(int i = 0; i < 16; i++)
+				{
+					if((reservedMask & (1 << i)) != 0) { cacheReservation(GetReservationKey(world, chunk.getX(), i, chunk.getZ()), reservedIDs[i]); }
+				}
+				
+				claimedChunks.remove(chunkKey);
+			}
+		}
+		
+		return rooms;
+	}
+	
+	/**
+	 * Selects the rooms for a claimed chunk.
+	 *
+	 * @param chunk the chunk
+	 * @param random the random source, or null to let the data store choose
+	 * @param reservedMask the reserved rooms of the chunk, as a bit mask
+	 * @param reservedIDs the library ids of the reserved rooms, by y
+	 * @return the rooms for the new chunk, or null if selection failed
+	 */
+	private DungeonRoom[] selectRooms(DungeonChunk chunk, Random random, int reservedMask, long[] reservedIDs)
+	{
+		DungeonRoom[] rooms = new DungeonRoom[16];
+		
+		// Get the reserved room list for the chunk; the reservations were
+		// saved before the chunk could be claimed
 		DungeonRoom[][][] reservedRooms = null;
 		
-		if(reservedRoomCount > 0)
+		if(reservedMask != 0)
 		{
 			try {
 				reservedRooms = dataStore.getReservedRooms(chunk.getWorldName(), chunk.getX(), 0, chunk.getZ(), chunk.getX(), 15, chunk.getZ());
-			} catch (DataStoreGetException e1) { e1.printStackTrace(); }
+			} catch (DataStoreGetException e1) { e1.printStackTrace(); return null; }
 		}
 		
 		Vector<Byte>[] doorways = this.getAdjacentDoorways(chunk.getWorldName(), chunk.getX(), chunk.getZ());
@@ -386,75 +976,72 @@ public class DungeonDataManager {
 			// Get a random room
 			try {
 				// Check for a room reservation id
-				long reservedID = -1;
-				if(reservedRoomCount > 0)
-				{
-					reservedID = getRoomReservation(chunk.getWorldName(), chunk.getX(), i, chunk.getZ());
-				}
+				long reservedID = ((reservedMask & (1 << i)) != 0) ? reservedIDs[i] : -1;
 				
 				if(reservedID > 0)
 				{
 					// Get the reserved room
-					rooms[i] = reservedRooms[0][i][0];
+					rooms[i] = (reservedRooms == null) ? null : reservedRooms[0][i][0];
 					//Dungeonator.GetLogger().info("Found reserved room "+rooms[i].getLibraryId());
+					
+					// Fill the slot with a random room rather than losing the chunk
+					if(rooms[i] == null)
+					{
+						Dungeonator.GetLogger().warning("[Dungeonator] Reserved room "+reservedID+" missing at {"+chunk.getX()+","+i+","+chunk.getZ()+"}");
+						reservedID = -1;
+					}
 				}
-				else
+				
+				// Determine which room theme we're using
+				int index = (int)(Math.abs(plugin.getDCP().getNoise(chunk.getX(), i, chunk.getZ())) * plugin.getThemeManager().getThemeCount());
+				String theme = plugin.getThemeManager().getThemeNameByIndex(index);
+				
+				if(rooms[i] == null)
 				{
-					// Get a random room
-					rooms[i] = dataStore.getLibraryRoomRandom(doorways[i]);
+					// Get a random room, from the theme if one fits
+					rooms[i] = dataStore.getLibraryRoomRandom(doorways[i], theme, random);
 				}
 				
 				// Make sure we actually got a result, and bail out if we didn't
 				if(rooms[i] == null) { return null; }
 				
-				// Determine which room theme we're using
-				int index = (int)(Math.abs(plugin.getDCP().getNoise(chunk.getX(), i, chunk.getZ())) * plugin.getThemeManager().getThemeCount());
-				String theme = plugin.getThemeManager().getThemeNameByIndex(index);
+				// Fall back to one of the room's own themes
 				if(!rooms[i].getThemes().contains(theme))
 				{
-					theme = rooms[i].getRandomTheme();
+					theme = (random != null) ? rooms[i].getRandomTheme(random) : rooms[i].getRandomTheme();
 				}
 				
-				// Determine which folder we're drawing from
-				String folderPath = Dungeonator.TileFolderPath;
-				
-				// Append set path if this is a reserved room
+				// Reserved rooms come from their set's folder and, for now, are not themed
+				String setFolder = null;
 				if(reservedID > 0)
 				{
-					folderPath = folderPath + File.separator + "sets" + File.separator + rooms[i].getRoomSet().getName() + File.separator;
+					setFolder = rooms[i].getRoomSet().getName();
+					theme = null;
 				}
-				
-				// If we're not using the default theme, pull from the processed folder
-				// Note: for now, reserved rooms are not themed
-				String tmpTheme = "";
-				if(reservedID < 0 && !theme.equals("DEFAULT"))
+				else if(theme.equals("DEFAULT"))
 				{
-					folderPath = Dungeonator.ProcessedTileFolderPath;
-					
-					tmpTheme = "."+theme;
-					//Dungeonator.GetLogger().info("Selected theme "+theme+" for room.");
+					theme = null;
 				}
 				
-				// Get the full path to the source tile
-				fullPath = folderPath+rooms[i].getFilename()+tmpTheme+".nbt";
+				// Themes the theme manager doesn't know have no id and are loaded without caching
+				int themeId = (theme == null) ? 0 : plugin.getThemeManager().getThemeId(theme);
+				if(theme != null && themeId == 0) { themeId = -1; }
 				
-				CompoundTag schematic = this.getRoomSchematic(fullPath);
+				long startLoadTime = GenerationMetrics.start();
+				RoomTemplate template = roomCache.get(themeId, rooms[i], setFolder, theme);
+				plugin.getMetrics().record(chunk.getWorldName(), GenerationStage.SCHEMATIC_LOAD, startLoadTime);
 				
 				// Verify the data was loaded
-				if(schematic != null)
+				if(template != null)
 				{
-					// Set schematic
-					rooms[i].setSchematic(schematic);
-					
-					// Set blocks and block data
-					rooms[i].setRawBlocks(((ByteArrayTag)schematic.getValue().get("blocks")).getValue());
-					rooms[i].setRawBlockData(((ByteArrayTag)schematic.getValue().get("blockData")).getValue());
+					// Set schematic, blocks, block data and tile entities
+					template.applyTo(rooms[i]);
 				}
 				
-				// Remove the room reservation
+				// The data store row is deleted along with the chunk save
 				if(reservedID > 0)
 				{
-					deleteRoomReservation(chunk.getWorldName(), chunk.getX(), i, chunk.getZ());
+					rooms[i].setReserved(true);
 				}
 			} catch (DataStoreGetException e) { e.printStackTrace(); return null; }
 		}
@@ -469,12 +1056,39 @@ public class DungeonDataManager {
 		return rooms;
 	}
 	
-	public CompoundTag getRoomSchematic(String fullPath)
+	/**
+	 * Gets the room template cache.
+	 *
+	 * @return the template cache
+	 */
+	public RoomTemplateCache getTemplateCache()
 	{
-		// Check cache
-		if(roomCache.containsKey(fullPath))
+		return roomCache;
+	}
+	
+	/**
+	 * Loads and compiles the template for a room tile.
+	 *
+	 * @param room the room, for its file name
+	 * @param setFolder the folder of the room's set, or null if it is not a set room
+	 * @param theme the theme, or null for the default tile
+	 * @return the template, or null if the tile could not be loaded
+	 */
+	private RoomTemplate loadRoomTemplate(DungeonRoom room, String setFolder, String theme)
+	{
+		// Themed tiles are in the processed folder; set tiles in their set's folder
+		String fullPath;
+		if(theme != null)
+		{
+			fullPath = Dungeonator.ProcessedTileFolderPath+room.getFilename()+"."+theme+".nbt";
+		}
+		else if(setFolder != null)
+		{
+			fullPath = Dungeonator.TileFolderPath+"sets"+File.separator+setFolder+File.separator+room.getFilename()+".nbt";
+		}
+		else
 		{
-			return roomCache.get(fullPath);
+			fullPath = Dungeonator.TileFolderPath+room.getFilename()+".nbt";
 		}
 		
 		// Get schematic
@@ -493,8 +1107,7 @@ public class DungeonDataManager {
 				if(tag instanceof CompoundTag)
 				{
 					schematic = (CompoundTag)tag;
-					roomCache.put(fullPath, schematic);
-					return schematic;
+					return new RoomTemplate(schematic);
 				}
 			} catch (IOException e) { e.printStackTrace(); }
 		} catch (FileNotFoundException e) { e.printStackTrace(); }
@@ -518,185 +1131,190 @@ public class DungeonDataManager {
 			doors[i] = new Vector<Byte>();
 		}
 		
+		// +X is South, -X is North, +Z is West, -Z is East
 		try {
-			// Get northern neighbors
-			DungeonRoom[] neighborsN = dataStore.getChunkRooms(world, x-1, z);
-			
-			if(neighborsN != null)
-			{
-				for(int i = 0; i < 16; i++)
-				{
-					if(neighborsN[i] != null && neighborsN[i].isLoaded())
-					{
-						// Check southern doorways of northern neighbor
-						if(neighborsN[i].hasDoorway(Direction.S)) { doors[neighborsN[i].getY()].add(Direction.S); }
-						if(neighborsN[i].hasDoorway(Direction.SSE)) { doors[neighborsN[i].getY()].add(Direction.SSE); }
-						if(neighborsN[i].hasDoorway(Direction.SSW)) { doors[neighborsN[i].getY()].add(Direction.SSW); }
-					}
-				}
-			}
-			
-			DungeonRoom[] neighborsE = dataStore.getChunkRooms(world, x, z-1);
-			
-			if(neighborsE != null)
-			{
-				for(int i = 0; i < 16; i++)
-				{
-					if(neighborsE[i] != null && neighborsE[i].isLoaded())
-					{
-						// Check western doorways of eastern neighbor
-						if(neighborsE[i].hasDoorway(Direction.W)) { doors[neighborsE[i].getY()].add(Direction.W); }
-						if(neighborsE[i].hasDoorway(Direction.WNW)) { doors[neighborsE[i].getY()].add(Direction.WNW); }
-						if(neighborsE[i].hasDoorway(Direction.WSW)) { doors[neighborsE[i].getY()].add(Direction.WSW); }
-					}
-				}
-			}
-			
-			DungeonRoom[] neighborsS = dataStore.getChunkRooms(world, x+1, z);
+			int[][][] neighborhood = dataStore.getRoomDoorways(world, x-1, z-1, x+1, z+1);
 			
-			if(neighborsS != null)
+			for(int i = 0; i < 16; i++)
 			{
-				for(int i = 0; i < 16; i++)
-				{
-					if(neighborsS[i] != null && neighborsS[i].isLoaded())
-					{
-						// Check northern doorways of southern neighbor
-						if(neighborsS[i].hasDoorway(Direction.N)) { doors[neighborsS[i].getY()].add(Direction.N); }
-						if(neighborsS[i].hasDoorway(Direction.NNE)) { doors[neighborsS[i].getY()].add(Direction.NNE); }
-						if(neighborsS[i].hasDoorway(Direction.NNW)) { doors[neighborsS[i].getY()].add(Direction.NNW); }
-					}
-				}
-			}
-			
-			DungeonRoom[] neighborsW = dataStore.getChunkRooms(world, x, z+1);
-			
-			if(neighborsW != null)
-			{
-				for(int i = 0; i < 16; i++)
-				{
-					if(neighborsW[i] != null && neighborsW[i].isLoaded())
-					{
-						// Check eastern doorways of western neighbor
-						if(neighborsW[i].hasDoorway(Direction.E)) { doors[neighborsW[i].getY()].add(Direction.E); }
-						if(neighborsW[i].hasDoorway(Direction.ESE)) { doors[neighborsW[i].getY()].add(Direction.ESE); }
-						if(neighborsW[i].hasDoorway(Direction.ENE)) { doors[neighborsW[i].getY()].add(Direction.ENE); }
-					}
-				}
+				addFacingDoorways(doors[i], neighborhood, i);
 			}
 		} catch (DataStoreGetException e) { e.printStackTrace(); }
 		
 		return doors;
 	}
 	
+	/**
+	 * Get all doorways leading into a specific room
+	 * @param world
+	 * @param x
+	 * @param z
+	 * @param y
+	 * @return
+	 */
 	public Vector<Byte> getAdjacentDoorways(String world, int x, int z, int y)
 	{
 		Vector<Byte> doors = new Vector<Byte>();
 		
 		// We need to get doorway info from 0-6 rooms (N,E,S,W,U,D)
-		// +X is South, -X is North, +Z is West, -Z is East
 		try {
-			// Get northern neighbor
-			DungeonRoom neighborN = dataStore.getRoom(world, x-1, y, z);
+			int[][][] neighborhood = dataStore.getRoomDoorways(world, x-1, z-1, x+1, z+1);
 			
-			if(neighborN.isLoaded())
-			{
-				// Check southern doorways of northern neighbor
-				if(neighborN.hasDoorway(Direction.S)) { doors.add(Direction.S); }
-				if(neighborN.hasDoorway(Direction.SSE)) { doors.add(Direction.SSE); }
-				if(neighborN.hasDoorway(Direction.SSW)) { doors.add(Direction.SSW); }
-			}
+			addFacingDoorways(doors, neighborhood, y);
 			
-			// Get eastern neighbor
-			DungeonRoom neighborE = dataStore.getRoom(world, x, y, z-1);
-			
-			if(neighborE.isLoaded())
-			{
-				// Check western doorways of eastern neighbor
-				if(neighborE.hasDoorway(Direction.W)) { doors.add(Direction.W); }
-				if(neighborE.hasDoorway(Direction.WNW)) { doors.add(Direction.WNW); }
-				if(neighborE.hasDoorway(Direction.WSW)) { doors.add(Direction.WSW); }
-			}
+			// Check lower doorway of upper neighbor
+			if(y < 15 && hasDoorway(neighborhood[1][y+1][1], Direction.DOWN)) { doors.add(Direction.DOWN); }
 			
-			// Get southern neighbor
-			DungeonRoom neighborS = dataStore.getRoom(world, x, x+1, z);
-			
-			if(neighborS.isLoaded())
-			{
-				// Check northern doorways of southern neighbor
-				if(neighborS.hasDoorway(Direction.N)) { doors.add(Direction.N); }
-				if(neighborS.hasDoorway(Direction.NNW)) { doors.add(Direction.NNW); }
-				if(neighborS.hasDoorway(Direction.NNE)) { doors.add(Direction.NNE); }
-			}
-			
-			// Get western neighbor
-			DungeonRoom neighborW = dataStore.getRoom(world, x, y, z+1);
-			
-			if(neighborW.isLoaded())
-			{
-				// Check eastern doorways of western neighbor
-				if(neighborW.hasDoorway(Direction.E)) { doors.add(Direction.E); }
-				if(neighborW.hasDoorway(Direction.ENE)) { doors.add(Direction.ENE); }
-				if(neighborW.hasDoorway(Direction.ESE)) { doors.add(Direction.ESE); }
-			}
-			
-			// Get upper neighbor
-			if(y < 15)
-			{
-				DungeonRoom neighborU = dataStore.getRoom(world, x, y+1, z);
-				
-				if(neighborU.isLoaded())
-				{
-					// Check lower doorway of upper neighbor
-					if(neighborU.hasDoorway(Direction.DOWN)) { doors.add(Direction.DOWN); }
-				}
-			}
-			
-			// Get lower neighbor
-			if(y > 0)
-			{
-				DungeonRoom neighborD = dataStore.getRoom(world, x, y-1, z);
-				
-				if(neighborD.isLoaded())
-				{
-					// Check upper doorway of lower neighbor
-					if(neighborD.hasDoorway(Direction.UP)) { doors.add(Direction.UP); }
-				}
-			}
+			// Check upper doorway of lower neighbor
+			if(y > 0 && hasDoorway(neighborhood[1][y-1][1], Direction.UP)) { doors.add(Direction.UP); }
 		} catch (DataStoreGetException e) { e.printStackTrace(); }
 		
 		return doors;
 	}
 	
+	/**
+	 * Adds the doorways of the four horizontal neighbors that face into the
+	 * center of a 3x3 chunk neighborhood.
+	 *
+	 * @param doors the doorway list to add to
+	 * @param neighborhood the doorway masks around the center chunk, from getRoomDoorways
+	 * @param y the room level
+	 */
+	private static void addFacingDoorways(Vector<Byte> doors, int[][][] neighborhood, int y)
+	{
+		// Check southern doorways of northern neighbor
+		int n = neighborhood[0][y][1];
+		if(hasDoorway(n, Direction.S)) { doors.add(Direction.S); }
+		if(hasDoorway(n, Direction.SSE)) { doors.add(Direction.SSE); }
+		if(hasDoorway(n, Direction.SSW)) { doors.add(Direction.SSW); }
+		
+		// Check western doorways of eastern neighbor
+		int e = neighborhood[1][y][0];
+		if(hasDoorway(e, Direction.W)) { doors.add(Direction.W); }
+		if(hasDoorway(e, Direction.WNW)) { doors.add(Direction.WNW); }
+		if(hasDoorway(e, Direction.WSW)) { doors.add(Direction.WSW); }
+		
+		// Check northern doorways of southern neighbor
+		int s = neighborhood[2][y][1];
+		if(hasDoorway(s, Direction.N)) { doors.add(Direction.N); }
+		if(hasDoorway(s, Direction.NNE)) { doors.add(Direction.NNE); }
+		if(hasDoorway(s, Direction.NNW)) { doors.add(Direction.NNW); }
+		
+		// Check eastern doorways of western neighbor
+		int w = neighborhood[1][y][2];
+		if(hasDoorway(w, Direction.E)) { doors.add(Direction.E); }
+		if(hasDoorway(w, Direction.ESE)) { doors.add(Direction.ESE); }
+		if(hasDoorway(w, Direction.ENE)) { doors.add(Direction.ENE); }
+	}
+	
+	/**
+	 * Checks a doorway mask from getRoomDoorways.
+	 *
+	 * @param mask the doorway mask, or -1 for no room
+	 * @param direction the direction
+	 * @return true, if there is a room with a doorway in that direction
+	 */
+	private static boolean hasDoorway(int mask, byte direction)
+	{
+		return mask >= 0 && (mask & (1 << direction)) != 0;
+	}
+	
 	public Vector<DungeonRoomSet> getRandomRoomSets(int number)
 	{
-		Vector<DungeonRoomSet> rooms = null;
+		return getRandomRoomSets(number, null);
+	}
+	
+	/**
+	 * Draws distinct random room sets from the room set catalog. This does
+	 * no data store access once the catalog is loaded. The sets are shared
+	 * and must not be modified.
+	 *
+	 * @param number the number of sets
+	 * @param random the random source, or null for an unseeded draw
+	 * @return the sets
+	 */
+	public Vector<DungeonRoomSet> getRandomRoomSets(int number, Random random)
+	{
+		return getRoomSetCatalog().draw(number, random);
+	}
+	
+	/**
+	 * Gets the room set catalog, loading it if the library has changed
+	 * since it was last loaded.
+	 *
+	 * @return the room set catalog
+	 */
+	public synchronized RoomSetCatalog getRoomSetCatalog()
+	{
+		if(roomSetCatalog != null) { return roomSetCatalog; }
+		
+		Vector<DungeonRoomSet> sets = new Vector<DungeonRoomSet>();
 		try {
-			rooms = dataStore.getLibraryRoomSetsRandom(number);
+			sets = dataStore.getLibraryRoomSets();
 		} catch (DataStoreGetException e) { e.printStackTrace(); }
 		
-		if(rooms == null)
-		{
-			rooms = new Vector<DungeonRoomSet>();
-		}
+		roomSetCatalog = new RoomSetCatalog(sets);
+		Dungeonator.GetLogger().info("Loaded "+sets.size()+" library room sets.");
 		
-		return rooms;
+		return roomSetCatalog;
 	}
 	
 	public DungeonWidget getRandomWidget(DungeonWidget.Size size)
 	{
+		return getRandomWidget(size, null);
+	}
+	
+	public DungeonWidget getRandomWidget(DungeonWidget.Size size, Random random)
+	{
+		WidgetAsset asset = getRandomWidgetAsset(size, random);
+		
+		return (asset != null) ? asset.createWidget() : null;
+	}
+	
+	/**
+	 * Gets a random library widget of a size class from the widget pool.
+	 * This does no data store or file access once the pool is loaded.
+	 *
+	 * @param size the size class
+	 * @param random the random source, or null for an unseeded pick
+	 * @return the shared widget asset, or null if there are none of that size
+	 */
+	public WidgetAsset getRandomWidgetAsset(DungeonWidget.Size size, Random random)
+	{
+		return getWidgetPool().pick(size, (random != null) ? random : widgetRandom);
+	}
+	
+	/**
+	 * Gets the widget pool, loading every library widget if the library has
+	 * changed since it was last loaded.
+	 *
+	 * @return the widget pool
+	 */
+	public synchronized WidgetPool getWidgetPool()
+	{
+		if(widgetPool != null) { return widgetPool; }
+		
+		Vector<WidgetAsset> assets = new Vector<WidgetAsset>();
+		
 		try {
-			DungeonWidget widget = dataStore.getRandomLibraryWidget(size);
-			try {
-				widget.loadAsset(Dungeonator.WidgetFolderPath, widget.getFilename());
-				return widget;
-			} catch (DataStoreAssetException e) {  e.printStackTrace(); }
+			for(DungeonWidget widget : dataStore.getLibraryWidgets())
+			{
+				try {
+					widget.loadAsset(Dungeonator.WidgetFolderPath, widget.getFilename());
+					assets.add(new WidgetAsset(widget));
+				} catch (DataStoreAssetException e) { e.printStackTrace(); }
+			}
 		} catch (DataStoreGetException e) { e.printStackTrace(); }
 		
-		return null;
+		widgetPool = new WidgetPool(assets);
+		Dungeonator.GetLogger().info("Loaded "+assets.size()+" library widgets.");
+		
+		return widgetPool;
 	}
 	
 	/**
 	 * Utility method for getting a room reservation hash key.
+	 * The key is a packed {@link CoordKey}, so building it does not allocate.
 	 *
 	 * @param world the world
 	 * @param x the x
@@ -704,8 +1322,41 @@ public class DungeonDataManager {
 	 * @param z the z
 	 * @return the key
 	 */
-	public static String GetReservationKey(String world, int x, int y, int z)
+	public static long GetReservationKey(String world, int x, int y, int z)
 	{
-		return world+"."+x+"."+y+"."+z;
+		return CoordKey.room(WorldRegistry.getId(world), x, y, z);
+	}
+	
+	/**
+	 * The loaded room reservations of one region of chunks.
+	 */
+	private static class ReservationRegion {
+		
+		/** Library ids by reservation key */
+		final LongLongMap ids = new LongLongMap();
+		
+		/** Reserved room bits (bit y for room y) by chunk key */
+		final LongLongMap masks = new LongLongMap();
+		
+		void add(long key, long id)
+		{
+			ids.put(key, id);
+			
+			long chunkKey = CoordKey.toChunk(key);
+			masks.put(chunkKey, masks.get(chunkKey, 0) | (1L << CoordKey.getY(key)));
+		}
+		
+		boolean remove(long key)
+		{
+			if(!ids.remove(key)) { return false; }
+			
+			long chunkKey = CoordKey.toChunk(key);
+			long mask = masks.get(chunkKey, 0) & ~(1L << CoordKey.getY(key));
+			
+			if(mask == 0) { masks.remove(chunkKey); }
+			else { masks.put(chunkKey, mask); }
+			
+			return true;
+		}
 	}
 }
@@ -13,11 +13,16 @@ import org.bukkit.plugin.java.JavaPlugin;
 
 import com.aranai.dungeonator.amt.ThemeManager;
 import com.aranai.dungeonator.datastore.IDungeonDataStore;
+import com.aranai.dungeonator.datastore.RegionFileDungeonDataStore;
 import com.aranai.dungeonator.datastore.SqliteDungeonDataStore;
 import com.aranai.dungeonator.dungeonchunk.DungeonChunkManager;
 import com.aranai.dungeonator.dungeonmaster.DungeonMaster;
+import com.aranai.dungeonator.generator.DungeonChunkPipeline;
 import com.aranai.dungeonator.generator.DungeonChunkProvider;
 import com.aranai.dungeonator.generator.DungeonEditor;
+import com.aranai.dungeonator.generator.PredictiveGenerator;
+import com.aranai.dungeonator.metrics.GenerationMetrics;
+import com.aranai.dungeonator.metrics.MetricsDumpTask;
 
 /**
  * The Dungeonator Plugin for Bukkit.
@@ -53,6 +58,15 @@ public class Dungeonator extends JavaPlugin {
 	/** The dungeon chunk manager. */
 	private DungeonChunkManager chunkManager;
 	
+	/** The chunk generation pipeline. */
+	private DungeonChunkPipeline chunkPipeline;
+	
+	/** The generation metrics. */
+	private GenerationMetrics metrics;
+	
+	/** The predictive pre-generator. */
+	private PredictiveGenerator predictiveGenerator;
+	
 	/** The dungeon room editor. */
 	private DungeonEditor roomEditor;
 	
@@ -65,6 +79,9 @@ public class Dungeonator extends JavaPlugin {
 	/** Debug field: flattenOn: to flatten, or not to flatten */
 	public boolean flattenOn = false;
 	
+	/** Seeded generation: draw every random generation decision from a per-chunk random source (generation.seeded) */
+	public boolean seededGeneration = true;
+	
 	/** Base data folder path */
 	public static String BaseFolderPath;
 	
@@ -90,6 +107,12 @@ public class Dungeonator extends JavaPlugin {
 	 */
 	@Override
 	public void onDisable() {
+		// Stop scheduled tasks
+		this.getServer().getScheduler().cancelTasks(this);
+		
+		// Stop chunk generation workers before the data store goes away
+		if(this.chunkPipeline != null) { this.chunkPipeline.shutdown(); }
+		
 		// Close DB connection
 		this.dataStore.shutdown();
 	}
@@ -137,8 +160,22 @@ public class Dungeonator extends JavaPlugin {
 			}
 		} catch (IOException e) { e.printStackTrace(); }
 		
+		// Load configuration, writing the defaults on first run
+		this.saveDefaultConfig();
+		seededGeneration = this.getConfig().getBoolean("generation.seeded", true);
+		
+		// Initialize metrics
+		metrics = new GenerationMetrics();
+		
 		// Initialize data store
-		dataStore = new SqliteDungeonDataStore();
+		if(this.getConfig().getString("datastore.type", "sqlite").equalsIgnoreCase("region"))
+		{
+			dataStore = new RegionFileDungeonDataStore();
+		}
+		else
+		{
+			dataStore = new SqliteDungeonDataStore();
+		}
 		
 		// Initialize data manager
 		dataManager = new DungeonDataManager(this, dataStore);
@@ -149,6 +186,21 @@ public class Dungeonator extends JavaPlugin {
 		// Initialize chunk manager
 		chunkManager = new DungeonChunkManager(dataManager);
 		
+		// Initialize chunk generation pipeline
+		chunkPipeline = new DungeonChunkPipeline(this);
+		
+		// Initialize predictive pre-generation
+		predictiveGenerator = new PredictiveGenerator(this);
+		predictiveGenerator.start();
+		
+		// Periodically dump metrics to a file
+		long dumpInterval = this.getConfig().getLong("metrics.dump-interval", 300) * 20;
+		if(dumpInterval > 0)
+		{
+			File metricsFile = new File(Dungeonator.BaseFolderPath+this.getConfig().getString("metrics.file", "metrics.log"));
+			this.getServer().getScheduler().scheduleAsyncRepeatingTask(this, new MetricsDumpTask(metrics, metricsFile), dumpInterval, dumpInterval);
+		}
+		
 		// Initialize chunk editor
 		roomEditor = new DungeonEditor(this);
 		
@@ -225,6 +277,26 @@ public class Dungeonator extends JavaPlugin {
 		return chunkManager;
 	}
 	
+	/**
+	 * Gets the generation metrics.
+	 *
+	 * @return the metrics
+	 */
+	public GenerationMetrics getMetrics()
+	{
+		return metrics;
+	}
+	
+	/**
+	 * Gets the chunk generation pipeline.
+	 *
+	 * @return the chunk pipeline
+	 */
+	public DungeonChunkPipeline getChunkPipeline()
+	{
+		return chunkPipeline;
+	}
+	
 	/**
 	 * Gets the chunk editor.
 	 *
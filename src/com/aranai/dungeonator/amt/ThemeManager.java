@@ -52,6 +52,16 @@ public class ThemeManager {
 		return null;
 	}
 	
+	/**
+	 * Get the numeric id of a theme, which is its index plus one
+	 * @param the name of the theme
+	 * @return the id, or 0 if there is no such theme
+	 */
+	public int getThemeId(String theme)
+	{
+		return themeIndex.indexOf(theme) + 1;
+	}
+	
 	/**
 	 * Check whether a theme with the given name exists
 	 * @param the name of the theme
@@ -1,6 +1,6 @@
 package com.aranai.dungeonator.datastore;
 
-import java.util.Hashtable;
+import java.util.Random;
 import java.util.Vector;
 
 import com.aranai.dungeonator.Dungeonator;
@@ -9,6 +9,7 @@ import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget.Size;
+import com.aranai.dungeonator.util.LongLongMap;
 
 /**
  * Provides a default (non-functional) implementation for others to extend.
@@ -85,6 +86,14 @@ public class DungeonDataStore implements IDungeonDataStore {
 		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getRoom");
 	}
 
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRoomDoorways(java.lang.String, int, int, int, int)
+	 */
+	@Override
+	public int[][][] getRoomDoorways(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getRoomDoorways");
+	}
+
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoom(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
 	 */
@@ -162,6 +171,22 @@ public class DungeonDataStore implements IDungeonDataStore {
 		
 		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryRoomRandom");
 	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomRandom(java.util.Vector, java.util.Random)
+	 */
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, Random random) throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryRoomRandom");
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomRandom(java.util.Vector, java.lang.String, java.util.Random)
+	 */
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, String theme, Random random) throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryRoomRandom");
+	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getChunkRooms(java.lang.String, int, int)
@@ -180,6 +205,14 @@ public class DungeonDataStore implements IDungeonDataStore {
 		return false;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveGeneratedChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk, com.aranai.dungeonator.dungeonchunk.DungeonRoom[], int)
+	 */
+	@Override
+	public boolean saveGeneratedChunk(DungeonChunk chunk, DungeonRoom[] rooms, int consumedReservations) throws DataStoreSaveException {
+		throw new DataStoreSaveException("Using DungeonDataStore class directly accomplishes nothing.", "saveGeneratedChunk");
+	}
+
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoomSet(com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
 	 */
@@ -196,6 +229,14 @@ public class DungeonDataStore implements IDungeonDataStore {
 		return null;
 	}
 
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryWidgets()
+	 */
+	@Override
+	public Vector<DungeonWidget> getLibraryWidgets() throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryWidgets");
+	}
+
 	@Override
 	public boolean saveLibraryWidget(DungeonWidget widget)
 			throws DataStoreSaveException {
@@ -232,12 +273,24 @@ public class DungeonDataStore implements IDungeonDataStore {
 	}
 
 	@Override
-	public Hashtable<String, Long> getAllReservedRooms(String world)
+	public boolean saveReservedRoomSet(String world, int x, int y, int z, DungeonRoomSet set)
+			throws DataStoreSaveException {
+		throw new DataStoreSaveException("Using DungeonDataStore class directly accomplishes nothing.", "saveReservedRoomSet");
+	}
+
+	@Override
+	public LongLongMap getAllReservedRooms(String world)
 			throws DataStoreGetException {
 		// TODO Auto-generated method stub
 		return null;
 	}
 
+	@Override
+	public LongLongMap getReservedRoomIds(String world, int x1, int z1, int x2, int z2)
+			throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getReservedRoomIds");
+	}
+
 	@Override
 	public boolean deleteReservedRoom(String world, int x, int y, int z)
 			throws DataStoreDeleteException {
@@ -252,6 +305,20 @@ public class DungeonDataStore implements IDungeonDataStore {
 		return null;
 	}
 
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number, Random random)
+			throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryRoomSetsRandom");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomSets()
+	 */
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSets() throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getLibraryRoomSets");
+	}
+
 	@Override
 	public DungeonWidget getRandomLibraryWidget(Size size)
 			throws DataStoreGetException {
@@ -259,4 +326,10 @@ public class DungeonDataStore implements IDungeonDataStore {
 		return null;
 	}
 
+	@Override
+	public DungeonWidget getRandomLibraryWidget(Size size, Random random)
+			throws DataStoreGetException {
+		throw new DataStoreGetException("Using DungeonDataStore class directly accomplishes nothing.", "getRandomLibraryWidget");
+	}
+
 }
@@ -1,6 +1,6 @@
 package com.aranai.dungeonator.datastore;
 
-import java.util.Hashtable;
+import java.util.Random;
 import java.util.Vector;
 
 import com.aranai.dungeonator.Dungeonator;
@@ -8,6 +8,7 @@ import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
+import com.aranai.dungeonator.util.LongLongMap;
 
 /**
  * Interface for data store classes. Specifies standard methods for accessing,
@@ -76,6 +77,21 @@ public interface IDungeonDataStore {
 	 */
 	public DungeonRoom getRoom(String world, int x, int y, int z) throws DataStoreGetException;
 	
+	/**
+	 * Gets the doorways of every active room in a rectangle of chunks. Each
+	 * room's doorways are packed into a mask with one bit per direction,
+	 * N through DOWN.
+	 *
+	 * @param world the world name
+	 * @param x1 the starting x coord
+	 * @param z1 the starting z coord
+	 * @param x2 the ending x coord
+	 * @param z2 the ending z coord
+	 * @return the doorway masks, indexed [x-x1][y][z-z1], with -1 where there is no active room
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public int[][][] getRoomDoorways(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException;
+	
 	/**
 	 * Save an active room.
 	 *
@@ -160,6 +176,30 @@ public interface IDungeonDataStore {
 	 */
 	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways) throws DataStoreGetException;
 	
+	/**
+	 * Gets a random room from the Library, using the given random source.
+	 * The same doorways and random state always produce the same room.
+	 *
+	 * @param doorways the required doorways
+	 * @param random the random source, or null to let the data store choose
+	 * @return the room
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, Random random) throws DataStoreGetException;
+	
+	/**
+	 * Gets a random room from the Library, preferring rooms allowed in a
+	 * theme. If no room in the theme has the required doorways, any room
+	 * with them may be returned.
+	 *
+	 * @param doorways the required doorways
+	 * @param theme the preferred theme, or null for any
+	 * @param random the random source, or null to let the data store choose
+	 * @return the room
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, String theme, Random random) throws DataStoreGetException;
+	
 	/**
 	 * Gets a random list of library room sets.
 	 *
@@ -168,6 +208,25 @@ public interface IDungeonDataStore {
 	 * @throws DataStoreGetException the data store get exception
 	 */
 	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number) throws DataStoreGetException;
+	
+	/**
+	 * Gets a random list of library room sets, using the given random source.
+	 *
+	 * @param number the number of room sets to retrieve
+	 * @param random the random source, or null to let the data store choose
+	 * @return the random sets
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number, Random random) throws DataStoreGetException;
+	
+	/**
+	 * Gets every room set in the library, in id order, with each set's
+	 * library room ids filled in.
+	 *
+	 * @return the room sets
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public Vector<DungeonRoomSet> getLibraryRoomSets() throws DataStoreGetException;
 
 	/**
 	 * Saves multiple rooms simultaneously
@@ -178,6 +237,19 @@ public interface IDungeonDataStore {
 	 */
 	public boolean saveRooms(DungeonRoom[] rooms) throws DataStoreSaveException;
 	
+	/**
+	 * Saves everything generating a chunk produces in a single transaction:
+	 * the chunk, its rooms, and the deletion of the room reservations the
+	 * rooms were drawn from.
+	 *
+	 * @param chunk the DungeonChunk to save
+	 * @param rooms the chunk's rooms
+	 * @param consumedReservations bit y is set if the reservation at level y was used
+	 * @return true, if successful
+	 * @throws DataStoreSaveException if an error occurs while saving the chunk
+	 */
+	public boolean saveGeneratedChunk(DungeonChunk chunk, DungeonRoom[] rooms, int consumedReservations) throws DataStoreSaveException;
+	
 	/**
 	 * Gets a DungeonWidget record from the library.
 	 *
@@ -187,6 +259,14 @@ public interface IDungeonDataStore {
 	 */
 	public DungeonWidget getLibraryWidget(long id) throws DataStoreGetException;
 	
+	/**
+	 * Gets every DungeonWidget record in the library, in id order.
+	 *
+	 * @return the widgets
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public Vector<DungeonWidget> getLibraryWidgets() throws DataStoreGetException;
+	
 	/**
 	 * Gets a random library widget by size.
 	 *
@@ -196,6 +276,16 @@ public interface IDungeonDataStore {
 	 */
 	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size) throws DataStoreGetException;
 	
+	/**
+	 * Gets a random library widget by size, using the given random source.
+	 *
+	 * @param size the size
+	 * @param random the random source, or null to let the data store choose
+	 * @return the random library widget
+	 * @throws DataStoreGetException the data store get exception
+	 */
+	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size, Random random) throws DataStoreGetException;
+	
 	/**
 	 * Save a DungeonWidget record in the library.
 	 *
@@ -224,10 +314,24 @@ public interface IDungeonDataStore {
 	 * Gets info on all the reserved rooms for a world.
 	 *
 	 * @param world the world
-	 * @return the room info
+	 * @return the library ids of the reserved rooms, keyed by reservation key
+	 * @throws DataStoreGetException the data store get exception
+	 * @see com.aranai.dungeonator.DungeonDataManager#GetReservationKey(String, int, int, int)
+	 */
+	public LongLongMap getAllReservedRooms(String world) throws DataStoreGetException;
+	
+	/**
+	 * Gets info on the reserved rooms in a rectangle of chunks.
+	 *
+	 * @param world the world
+	 * @param x1 the lowest chunk x
+	 * @param z1 the lowest chunk z
+	 * @param x2 the highest chunk x
+	 * @param z2 the highest chunk z
+	 * @return the library ids of the reserved rooms, keyed by reservation key
 	 * @throws DataStoreGetException the data store get exception
 	 */
-	public Hashtable<String,Long> getAllReservedRooms(String world) throws DataStoreGetException;
+	public LongLongMap getReservedRoomIds(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException;
 	
 	/**
 	 * Save a reserved room.
@@ -242,6 +346,20 @@ public interface IDungeonDataStore {
 	 */
 	public boolean saveReservedRoom(String world, int x, int y, int z, long id) throws DataStoreSaveException;
 	
+	/**
+	 * Save a reservation for every room of a room set in one transaction.
+	 * Either all the rooms are saved or none are.
+	 *
+	 * @param world the world name
+	 * @param x the x coord of the set origin
+	 * @param y the y coord of the set origin
+	 * @param z the z coord of the set origin
+	 * @param set the room set
+	 * @return true, if successful
+	 * @throws DataStoreSaveException the data store save exception
+	 */
+	public boolean saveReservedRoomSet(String world, int x, int y, int z, DungeonRoomSet set) throws DataStoreSaveException;
+	
 	/**
 	 * Delete reserved room.
 	 *
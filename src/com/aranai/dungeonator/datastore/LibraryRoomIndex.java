@@ -0,0 +1,217 @@
+package com.aranai.dungeonator.datastore;
+
+import java.util.HashMap;
+import java.util.Random;
+import java.util.Vector;
+
+import com.aranai.dungeonator.Direction;
+
+/**
+ * In-memory index of the library rooms available for random selection.
+ *
+ * Each room's doorways are packed into a 14-bit mask, one bit per
+ * direction. For every possible set of required doorways the index holds
+ * the list of rooms that have at least those doorways, so picking a random
+ * room is a single array lookup. A room with d doorways appears in 2^d
+ * lists; library rooms have few enough doorways for this to stay small.
+ * The same lists are kept per theme, over the rooms allowed in that theme.
+ *
+ * An index is a snapshot and is never modified; the data store builds a
+ * new one when the library changes.
+ */
+public class LibraryRoomIndex {
+
+	/** Number of doorway directions, N through DOWN */
+	public static final int DOORWAYS = 14;
+
+	/** The indexed rooms, in library id order */
+	private final Entry[] entries;
+
+	/** Indexes into entries, for each required doorway mask */
+	private final int[][] candidates;
+
+	/** Indexes over the rooms allowed in each theme, by upper case theme name */
+	private final HashMap<String,LibraryRoomIndex> themes;
+
+	/** Shared list for masks no room satisfies */
+	private static final int[] NONE = new int[0];
+
+	/**
+	 * Builds an index.
+	 *
+	 * @param rooms the rooms, in library id order
+	 */
+	public LibraryRoomIndex(Vector<Entry> rooms)
+	{
+		this(rooms.toArray(new Entry[rooms.size()]));
+
+		// Group the rooms by theme, keeping library id order
+		HashMap<String,Vector<Entry>> byTheme = new HashMap<String,Vector<Entry>>();
+		for(Entry e : entries)
+		{
+			for(String theme : e.themeList)
+			{
+				Vector<Entry> list = byTheme.get(theme);
+				if(list == null)
+				{
+					list = new Vector<Entry>();
+					byTheme.put(theme, list);
+				}
+				list.add(e);
+			}
+		}
+
+		for(String theme : byTheme.keySet())
+		{
+			Vector<Entry> list = byTheme.get(theme);
+			themes.put(theme, new LibraryRoomIndex(list.toArray(new Entry[list.size()])));
+		}
+	}
+
+	/**
+	 * Builds the doorway lists over some rooms, without theme lists.
+	 *
+	 * @param rooms the rooms, in library id order
+	 */
+	private LibraryRoomIndex(Entry[] rooms)
+	{
+		entries = rooms;
+		themes = new HashMap<String,LibraryRoomIndex>();
+
+		// Count the rooms that satisfy each mask, then fill the lists
+		int[] counts = new int[1 << DOORWAYS];
+		for(Entry e : entries)
+		{
+			// Every submask of the room's doorways is satisfied by the room
+			int m = e.doorways;
+			for(int sub = m; ; sub = (sub - 1) & m)
+			{
+				counts[sub]++;
+				if(sub == 0) { break; }
+			}
+		}
+
+		candidates = new int[1 << DOORWAYS][];
+		for(int mask = 0; mask < candidates.length; mask++)
+		{
+			candidates[mask] = (counts[mask] == 0) ? NONE : new int[counts[mask]];
+			counts[mask] = 0;
+		}
+
+		for(int i = 0; i < entries.length; i++)
+		{
+			int m = entries[i].doorways;
+			for(int sub = m; ; sub = (sub - 1) & m)
+			{
+				candidates[sub][counts[sub]++] = i;
+				if(sub == 0) { break; }
+			}
+		}
+	}
+
+	/**
+	 * Picks a random room with at least the required doorways.
+	 *
+	 * @param required the required doorway mask
+	 * @param random the random source
+	 * @return the room, or null if no room has the required doorways
+	 */
+	public Entry pick(int required, Random random)
+	{
+		int[] list = candidates[required & ((1 << DOORWAYS) - 1)];
+		if(list.length == 0) { return null; }
+
+		return entries[list[random.nextInt(list.length)]];
+	}
+
+	/**
+	 * Picks a random room with at least the required doorways from the rooms
+	 * allowed in a theme.
+	 *
+	 * @param required the required doorway mask
+	 * @param theme the theme
+	 * @param random the random source
+	 * @return the room, or null if no room in the theme has the required doorways
+	 */
+	public Entry pick(int required, String theme, Random random)
+	{
+		LibraryRoomIndex index = themes.get(theme.toUpperCase());
+		if(index == null) { return null; }
+
+		return index.pick(required, random);
+	}
+
+	/**
+	 * Gets the number of rooms with at least the required doorways.
+	 *
+	 * @param required the required doorway mask
+	 * @return the number of candidate rooms
+	 */
+	public int getCandidateCount(int required)
+	{
+		return candidates[required & ((1 << DOORWAYS) - 1)].length;
+	}
+
+	/**
+	 * Gets the number of indexed rooms.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return entries.length;
+	}
+
+	/**
+	 * Packs a list of doorway directions into a mask.
+	 *
+	 * @param doorways the doorway directions, or null for none
+	 * @return the mask
+	 */
+	public static int getMask(Vector<Byte> doorways)
+	{
+		int mask = 0;
+
+		if(doorways != null)
+		{
+			for(Byte d : doorways)
+			{
+				if(d >= Direction.N && d <= Direction.DOWN) { mask |= 1 << d; }
+			}
+		}
+
+		return mask;
+	}
+
+	/**
+	 * A library room as far as random selection needs to know it.
+	 */
+	public static class Entry {
+		public final long id;
+		public final String filename;
+		public final int doorways;
+		/** Allowed themes, as stored */
+		public final String themes;
+		public final String defaultTheme;
+		/** Allowed themes, upper case, without duplicates */
+		public final String[] themeList;
+
+		public Entry(long id, String filename, int doorways, String themes, String defaultTheme)
+		{
+			this.id = id;
+			this.filename = filename;
+			this.doorways = doorways;
+			this.themes = themes;
+			this.defaultTheme = defaultTheme;
+
+			// Same rules as DungeonRoom.setThemeCSV
+			Vector<String> list = new Vector<String>();
+			for(String t : themes.split(","))
+			{
+				t = t.toUpperCase();
+				if(!list.contains(t)) { list.add(t); }
+			}
+			this.themeList = list.toArray(new String[list.size()]);
+		}
+	}
+}
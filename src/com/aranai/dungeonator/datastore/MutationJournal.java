@@ -0,0 +1,570 @@
+package com.aranai.dungeonator.datastore;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.zip.CRC32;
+
+import com.aranai.dungeonator.Dungeonator;
+
+/**
+ * Append-only binary journal of data store mutations.
+ *
+ * The SQLite store works against an in-memory database and only copies it
+ * to disk at a checkpoint, so anything written since the last checkpoint
+ * would be lost in a crash. Each mutation is encoded on the calling thread
+ * and handed to a background writer, which appends it to the journal in
+ * order. At startup the journal is replayed on top of the last checkpoint.
+ *
+ * The journal is split into numbered segment files. A checkpoint starts by
+ * rotating to a new segment; once every row dirtied before the rotation is
+ * on disk, the older segments are released and deleted. Records written
+ * while the checkpoint runs stay in the new segment.
+ *
+ * Each record is framed as [int length][payload][int crc32]. A record with
+ * a bad length or checksum marks the end of a segment: it can only be the
+ * torn tail of a write that was cut short.
+ */
+public class MutationJournal implements Runnable {
+
+	/*
+	 * Record types
+	 */
+
+	public static final byte OP_CHUNK = 1;
+	public static final byte OP_ROOM = 2;
+	public static final byte OP_ROOM_SET = 3;
+	public static final byte OP_RESERVE = 4;
+	public static final byte OP_UNRESERVE = 5;
+	public static final byte OP_LIBRARY_ROOM = 6;
+	public static final byte OP_LIBRARY_ROOM_SET = 7;
+	public static final byte OP_LIBRARY_WIDGET = 8;
+
+	/** Largest record payload accepted on replay */
+	private static final int MAX_RECORD = 1 << 20;
+
+	/** Queue marker: stop the writer */
+	private static final Command CLOSE = new Command(Command.CLOSE, 0);
+
+	/**
+	 * Receives journaled mutations during replay.
+	 */
+	public interface Target {
+		public void applyChunk(String world, int x, int z, int type) throws Exception;
+		public void applyRoom(String world, int x, int y, int z, long libraryId, String name) throws Exception;
+		public void applyRoomSet(String world, int x, int y, int z, long libraryId, String name) throws Exception;
+		public void applyReservation(String world, int x, int y, int z, long libraryId) throws Exception;
+		public void applyReservationDelete(String world, int x, int y, int z) throws Exception;
+		public void applyLibraryRoom(long id, long setId, String filename, String name, int doorways, String themeDefault, String themes) throws Exception;
+		public void applyLibraryRoomSet(long id, String filename, String title, int sizeX, int sizeY, int sizeZ) throws Exception;
+		public void applyLibraryWidget(long id, String filename, int sizeClass, int originX, int originY, int originZ) throws Exception;
+	}
+
+	/** The journal base file; segments are named base.1, base.2, ... */
+	private final File base;
+
+	/** True to fsync after each batch of records */
+	private final boolean sync;
+
+	/** Records and commands waiting for the writer */
+	private final LinkedBlockingQueue<Object> queue = new LinkedBlockingQueue<Object>();
+
+	/** Number of the segment records are currently appended to */
+	private long segment = 0;
+
+	/** The open segment file, owned by the writer thread once started */
+	private RandomAccessFile out;
+
+	/** Number of the open segment file */
+	private long outSegment;
+
+	/** The writer thread */
+	private Thread writer;
+
+	/** Set once the writer has hit an I/O error; later records are dropped */
+	private volatile boolean failed = false;
+
+	/**
+	 * Instantiates a journal.
+	 *
+	 * @param base the journal base file
+	 * @param sync true to fsync after each batch of records
+	 */
+	public MutationJournal(File base, boolean sync)
+	{
+		this.base = base;
+		this.sync = sync;
+	}
+
+	/**
+	 * Replays every segment of the journal into a target, oldest first.
+	 *
+	 * @param target the target
+	 * @return the number of records replayed
+	 * @throws IOException if the journal could not be read
+	 */
+	public int replay(Target target) throws IOException
+	{
+		int count = 0;
+
+		adoptLegacyJournal();
+
+		for(long n : listSegments())
+		{
+			count += replaySegment(getSegmentFile(n), target);
+			segment = Math.max(segment, n);
+		}
+
+		return count;
+	}
+
+	/**
+	 * Replays a single segment. Any torn record at the end of the segment
+	 * is cut off.
+	 */
+	private int replaySegment(File file, Target target) throws IOException
+	{
+		int count = 0;
+		long good = 0;
+		DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+		try
+		{
+			CRC32 crc = new CRC32();
+
+			while(true)
+			{
+				int length;
+				byte[] payload;
+
+				try {
+					length = in.readInt();
+					if(length <= 0 || length > MAX_RECORD) { break; }
+
+					payload = new byte[length];
+					in.readFully(payload);
+
+					crc.reset();
+					crc.update(payload);
+					if(in.readInt() != (int)crc.getValue()) { break; }
+				} catch (EOFException e) { break; }
+
+				try {
+					apply(target, payload);
+				} catch (Exception e) {
+					Dungeonator.GetLogger().warning("[Dungeonator] MutationJournal: could not replay record "+count+" of "+file.getName()+": "+e.getMessage());
+				}
+
+				good += 8 + length;
+				count++;
+			}
+		}
+		finally
+		{
+			in.close();
+		}
+
+		// Drop the torn tail, if any
+		if(good < file.length())
+		{
+			Dungeonator.GetLogger().warning("[Dungeonator] MutationJournal: discarding "+(file.length() - good)+" bytes of incomplete journal in "+file.getName()+".");
+			RandomAccessFile raf = new RandomAccessFile(file, "rw");
+			try { raf.setLength(good); } finally { raf.close(); }
+		}
+
+		return count;
+	}
+
+	/**
+	 * Decodes a single record and applies it to a target.
+	 */
+	private void apply(Target target, byte[] payload) throws Exception
+	{
+		DataInputStream in = new DataInputStream(new ByteArrayInputStream(payload));
+		byte op = in.readByte();
+
+		switch(op)
+		{
+			case OP_CHUNK:
+				target.applyChunk(readString(in), in.readInt(), in.readInt(), in.readInt());
+				break;
+			case OP_ROOM:
+				target.applyRoom(readString(in), in.readInt(), in.readInt(), in.readInt(), in.readLong(), readString(in));
+				break;
+			case OP_ROOM_SET:
+				target.applyRoomSet(readString(in), in.readInt(), in.readInt(), in.readInt(), in.readLong(), readString(in));
+				break;
+			case OP_RESERVE:
+				target.applyReservation(readString(in), in.readInt(), in.readInt(), in.readInt(), in.readLong());
+				break;
+			case OP_UNRESERVE:
+				target.applyReservationDelete(readString(in), in.readInt(), in.readInt(), in.readInt());
+				break;
+			case OP_LIBRARY_ROOM:
+				target.applyLibraryRoom(in.readLong(), in.readLong(), readString(in), readString(in), in.readInt(), readString(in), readString(in));
+				break;
+			case OP_LIBRARY_ROOM_SET:
+				target.applyLibraryRoomSet(in.readLong(), readString(in), readString(in), in.readInt(), in.readInt(), in.readInt());
+				break;
+			case OP_LIBRARY_WIDGET:
+				target.applyLibraryWidget(in.readLong(), readString(in), in.readInt(), in.readInt(), in.readInt(), in.readInt());
+				break;
+			default:
+				throw new IOException("Unknown record type "+op);
+		}
+	}
+
+	/**
+	 * Opens a new segment and starts the writer thread. Segments left over
+	 * from before are kept until the next checkpoint releases them.
+	 *
+	 * @throws IOException if the segment could not be opened
+	 */
+	public synchronized void open() throws IOException
+	{
+		segment++;
+		outSegment = segment;
+		out = new RandomAccessFile(getSegmentFile(outSegment), "rw");
+
+		writer = new Thread(this, "Dungeonator-Journal");
+		writer.setDaemon(true);
+		writer.start();
+	}
+
+	/**
+	 * Starts a new segment. Records appended before this call go to older
+	 * segments; records appended after it go to the new one.
+	 *
+	 * @return the number of the new segment
+	 */
+	public synchronized long rotate()
+	{
+		segment++;
+		if(writer != null) { queue.add(new Command(Command.ROTATE, segment)); }
+		return segment;
+	}
+
+	/**
+	 * Releases every segment older than the given one. Call this once
+	 * everything journaled before the matching {@link #rotate()} is safely
+	 * on disk.
+	 *
+	 * @param segment the segment number returned by rotate()
+	 */
+	public void release(long segment)
+	{
+		if(writer != null) { queue.add(new Command(Command.RELEASE, segment)); }
+	}
+
+	/**
+	 * Writes out any queued records and stops the writer thread.
+	 */
+	public void close()
+	{
+		if(writer == null) { return; }
+
+		queue.add(CLOSE);
+
+		boolean interrupted = false;
+		while(writer.isAlive())
+		{
+			try { writer.join(); } catch (InterruptedException e) { interrupted = true; }
+		}
+		writer = null;
+
+		if(interrupted) { Thread.currentThread().interrupt(); }
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		ArrayList<Object> batch = new ArrayList<Object>();
+		boolean running = true;
+
+		while(running)
+		{
+			try {
+				batch.add(queue.take());
+			} catch (InterruptedException e) { continue; }
+
+			// Group everything that has piled up into one write
+			queue.drainTo(batch);
+
+			try
+			{
+				for(Object item : batch)
+				{
+					if(item instanceof byte[])
+					{
+						if(!failed) { out.write((byte[])item); }
+						continue;
+					}
+
+					Command c = (Command)item;
+
+					if(c.type == Command.CLOSE) { running = false; break; }
+
+					if(c.type == Command.ROTATE)
+					{
+						if(sync && !failed) { out.getFD().sync(); }
+						out.close();
+						outSegment = c.segment;
+						out = new RandomAccessFile(getSegmentFile(outSegment), "rw");
+
+						// Anything dropped after a failure is covered by the checkpoint that asked for this segment
+						failed = false;
+					}
+					else if(c.type == Command.RELEASE)
+					{
+						for(long n : listSegments())
+						{
+							if(n < c.segment && !getSegmentFile(n).delete())
+							{
+								Dungeonator.GetLogger().warning("[Dungeonator] MutationJournal: could not delete "+getSegmentFile(n).getName());
+							}
+						}
+					}
+				}
+
+				if(sync && !failed) { out.getFD().sync(); }
+			}
+			catch(IOException e)
+			{
+				failed = true;
+				Dungeonator.GetLogger().severe("[Dungeonator] MutationJournal: write failed, journaling disabled until the next checkpoint.");
+				e.printStackTrace();
+			}
+
+			batch.clear();
+		}
+
+		try {
+			boolean empty = (out.length() == 0);
+			out.close();
+
+			// Don't leave empty segments behind
+			if(empty) { getSegmentFile(outSegment).delete(); }
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+
+	/*
+	 * Record encoders
+	 */
+
+	public void logChunk(String world, int x, int z, int type)
+	{
+		Record r = new Record(OP_CHUNK);
+		r.string(world).i(x).i(z).i(type);
+		append(r);
+	}
+
+	public void logRoom(String world, int x, int y, int z, long libraryId, String name)
+	{
+		Record r = new Record(OP_ROOM);
+		r.string(world).i(x).i(y).i(z).l(libraryId).string(name);
+		append(r);
+	}
+
+	public void logRoomSet(String world, int x, int y, int z, long libraryId, String name)
+	{
+		Record r = new Record(OP_ROOM_SET);
+		r.string(world).i(x).i(y).i(z).l(libraryId).string(name);
+		append(r);
+	}
+
+	public void logReservation(String world, int x, int y, int z, long libraryId)
+	{
+		Record r = new Record(OP_RESERVE);
+		r.string(world).i(x).i(y).i(z).l(libraryId);
+		append(r);
+	}
+
+	public void logReservationDelete(String world, int x, int y, int z)
+	{
+		Record r = new Record(OP_UNRESERVE);
+		r.string(world).i(x).i(y).i(z);
+		append(r);
+	}
+
+	public void logLibraryRoom(long id, long setId, String filename, String name, int doorways, String themeDefault, String themes)
+	{
+		Record r = new Record(OP_LIBRARY_ROOM);
+		r.l(id).l(setId).string(filename).string(name).i(doorways).string(themeDefault).string(themes);
+		append(r);
+	}
+
+	public void logLibraryRoomSet(long id, String filename, String title, int sizeX, int sizeY, int sizeZ)
+	{
+		Record r = new Record(OP_LIBRARY_ROOM_SET);
+		r.l(id).string(filename).string(title).i(sizeX).i(sizeY).i(sizeZ);
+		append(r);
+	}
+
+	public void logLibraryWidget(long id, String filename, int sizeClass, int originX, int originY, int originZ)
+	{
+		Record r = new Record(OP_LIBRARY_WIDGET);
+		r.l(id).string(filename).i(sizeClass).i(originX).i(originY).i(originZ);
+		append(r);
+	}
+
+	/**
+	 * Frames a record and queues it for the writer.
+	 */
+	private void append(Record r)
+	{
+		if(writer == null || failed) { return; }
+
+		queue.add(r.frame());
+	}
+
+	/**
+	 * Turns a journal from before segments were introduced, written straight
+	 * to the base file, into segment 0. It is then replayed ahead of every
+	 * other segment and deleted by the next checkpoint, once its rows are on
+	 * disk. Segments are numbered from 1, so 0 is never taken.
+	 *
+	 * @throws IOException if the old journal could not be renamed
+	 */
+	private void adoptLegacyJournal() throws IOException
+	{
+		if(!base.isFile()) { return; }
+
+		File legacy = getSegmentFile(0);
+		if(legacy.exists() || !base.renameTo(legacy))
+		{
+			throw new IOException("Could not rename old journal "+base.getName()+" to "+legacy.getName());
+		}
+
+		Dungeonator.GetLogger().info("[Dungeonator] MutationJournal: replaying old journal "+base.getName()+" as "+legacy.getName());
+	}
+
+	/**
+	 * Gets the file for a segment.
+	 */
+	private File getSegmentFile(long n)
+	{
+		return new File(base.getPath()+"."+n);
+	}
+
+	/**
+	 * Lists the numbers of the segments on disk, oldest first.
+	 */
+	private long[] listSegments()
+	{
+		String prefix = base.getName()+".";
+		File dir = base.getAbsoluteFile().getParentFile();
+		String[] names = (dir != null) ? dir.list() : null;
+		if(names == null) { return new long[0]; }
+
+		long[] found = new long[names.length];
+		int count = 0;
+
+		for(String name : names)
+		{
+			if(!name.startsWith(prefix)) { continue; }
+
+			try {
+				found[count++] = Long.parseLong(name.substring(prefix.length()));
+			} catch (NumberFormatException e) { }
+		}
+
+		long[] segments = new long[count];
+		System.arraycopy(found, 0, segments, 0, count);
+		Arrays.sort(segments);
+
+		return segments;
+	}
+
+	/**
+	 * Reads a nullable string.
+	 */
+	private static String readString(DataInputStream in) throws IOException
+	{
+		return in.readBoolean() ? in.readUTF() : null;
+	}
+
+	/**
+	 * A request for the writer thread, queued in order with the records.
+	 */
+	private static class Command {
+		static final int ROTATE = 1;
+		static final int RELEASE = 2;
+		static final int CLOSE = 3;
+
+		final int type;
+		final long segment;
+
+		Command(int type, long segment)
+		{
+			this.type = type;
+			this.segment = segment;
+		}
+	}
+
+	/**
+	 * A record being encoded.
+	 */
+	private static class Record {
+		private final ByteArrayOutputStream bytes = new ByteArrayOutputStream(64);
+		private final DataOutputStream data = new DataOutputStream(bytes);
+
+		Record(byte op)
+		{
+			try { data.writeByte(op); } catch (IOException e) { throw new IllegalStateException(e); }
+		}
+
+		Record i(int v)
+		{
+			try { data.writeInt(v); } catch (IOException e) { throw new IllegalStateException(e); }
+			return this;
+		}
+
+		Record l(long v)
+		{
+			try { data.writeLong(v); } catch (IOException e) { throw new IllegalStateException(e); }
+			return this;
+		}
+
+		Record string(String v)
+		{
+			try {
+				data.writeBoolean(v != null);
+				if(v != null) { data.writeUTF(v); }
+			} catch (IOException e) { throw new IllegalStateException(e); }
+			return this;
+		}
+
+		/**
+		 * Gets the framed record: length, payload and checksum.
+		 */
+		byte[] frame()
+		{
+			byte[] payload = bytes.toByteArray();
+			CRC32 crc = new CRC32();
+			crc.update(payload);
+
+			ByteArrayOutputStream framed = new ByteArrayOutputStream(payload.length + 8);
+			DataOutputStream out = new DataOutputStream(framed);
+			try {
+				out.writeInt(payload.length);
+				out.write(payload);
+				out.writeInt((int)crc.getValue());
+			} catch (IOException e) { throw new IllegalStateException(e); }
+
+			return framed.toByteArray();
+		}
+	}
+}
@@ -0,0 +1,282 @@
+package com.aranai.dungeonator.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * A memory-mapped file holding the active dungeon data for a 32x32 chunk
+ * region of one world.
+ *
+ * Every chunk and room has a fixed-size record at a fixed offset, so a
+ * lookup is a direct read from the mapped buffer. Writes land in the OS
+ * page cache and reach the disk when the OS writes them back, or when the
+ * region is flushed.
+ *
+ * Layout, after a 16 byte header:
+ * <ul>
+ * <li>1024 chunk records of 4 bytes: generated flag, chunk type, 2 unused</li>
+ * <li>16384 room records of 20 bytes: library id, library set id, doorway mask, active flag, 1 unused</li>
+ * <li>16384 room reservations: the reserved library room id, or 0</li>
+ * <li>16384 active room sets: the library set id of a set with its origin in the room, or 0</li>
+ * </ul>
+ * Rooms are ordered by local x, then local z, then y.
+ */
+public class RegionFile {
+
+	/** Chunks along each side of a region */
+	public static final int SIZE = 32;
+
+	/** Rooms in each chunk */
+	public static final int ROOMS = 16;
+
+	/** Identifies a region file ("DGRN") */
+	private static final int MAGIC = 0x4447524E;
+
+	/** Layout version */
+	private static final int VERSION = 1;
+
+	private static final int HEADER_BYTES = 16;
+	private static final int CHUNK_BYTES = 4;
+	private static final int ROOM_BYTES = 20;
+
+	private static final int CHUNK_OFFSET = HEADER_BYTES;
+	private static final int ROOM_OFFSET = CHUNK_OFFSET + SIZE * SIZE * CHUNK_BYTES;
+	private static final int RESERVATION_OFFSET = ROOM_OFFSET + SIZE * SIZE * ROOMS * ROOM_BYTES;
+	private static final int ROOM_SET_OFFSET = RESERVATION_OFFSET + SIZE * SIZE * ROOMS * 8;
+
+	/** Total file size */
+	private static final int FILE_BYTES = ROOM_SET_OFFSET + SIZE * SIZE * ROOMS * 8;
+
+	/** The file */
+	private final File file;
+
+	/** The open file */
+	private final RandomAccessFile raf;
+
+	/** The whole file, mapped */
+	private final MappedByteBuffer buffer;
+
+	/** True once the file is closed */
+	private boolean closed = false;
+
+	/**
+	 * Opens a region file, creating it if it does not exist.
+	 *
+	 * @param file the file
+	 * @throws IOException if the file can't be opened or is not a region file
+	 */
+	public RegionFile(File file) throws IOException
+	{
+		this.file = file;
+
+		boolean created = !file.exists() || file.length() == 0;
+
+		raf = new RandomAccessFile(file, "rw");
+		if(raf.length() < FILE_BYTES) { raf.setLength(FILE_BYTES); }
+
+		buffer = raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, FILE_BYTES);
+
+		if(created)
+		{
+			buffer.putInt(0, MAGIC);
+			buffer.putInt(4, VERSION);
+		}
+		else if(buffer.getInt(0) != MAGIC || buffer.getInt(4) != VERSION)
+		{
+			raf.close();
+			throw new IOException("Not a version "+VERSION+" region file: "+file.getName());
+		}
+	}
+
+	/**
+	 * Gets the region coordinate containing a chunk coordinate.
+	 *
+	 * @param c the chunk coordinate
+	 * @return the region coordinate
+	 */
+	public static int getRegionCoord(int c)
+	{
+		return c >> 5;
+	}
+
+	/**
+	 * Gets a chunk coordinate's position within its region.
+	 *
+	 * @param c the chunk coordinate
+	 * @return the local coordinate, 0-31
+	 */
+	public static int getLocalCoord(int c)
+	{
+		return c & (SIZE - 1);
+	}
+
+	private static int chunkIndex(int lx, int lz)
+	{
+		return lx * SIZE + lz;
+	}
+
+	private static int roomIndex(int lx, int y, int lz)
+	{
+		return chunkIndex(lx, lz) * ROOMS + y;
+	}
+
+	/*
+	 * Chunks
+	 */
+
+	public synchronized boolean isChunkGenerated(int lx, int lz)
+	{
+		return buffer.get(CHUNK_OFFSET + chunkIndex(lx, lz) * CHUNK_BYTES) != 0;
+	}
+
+	public synchronized int getChunkType(int lx, int lz)
+	{
+		return buffer.get(CHUNK_OFFSET + chunkIndex(lx, lz) * CHUNK_BYTES + 1);
+	}
+
+	public synchronized void setChunk(int lx, int lz, int type)
+	{
+		int offset = CHUNK_OFFSET + chunkIndex(lx, lz) * CHUNK_BYTES;
+		buffer.put(offset, (byte)1);
+		buffer.put(offset + 1, (byte)type);
+	}
+
+	/**
+	 * Clears a chunk and all of its rooms.
+	 */
+	public synchronized void clearChunk(int lx, int lz)
+	{
+		buffer.put(CHUNK_OFFSET + chunkIndex(lx, lz) * CHUNK_BYTES, (byte)0);
+
+		for(int y = 0; y < ROOMS; y++)
+		{
+			clearRoom(lx, y, lz);
+		}
+	}
+
+	/*
+	 * Rooms
+	 */
+
+	public synchronized boolean hasRoom(int lx, int y, int lz)
+	{
+		return buffer.get(ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES + 18) != 0;
+	}
+
+	public synchronized long getRoomLibraryId(int lx, int y, int lz)
+	{
+		return buffer.getLong(ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES);
+	}
+
+	public synchronized long getRoomSetId(int lx, int y, int lz)
+	{
+		return buffer.getLong(ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES + 8);
+	}
+
+	/**
+	 * Gets a room's doorway mask, one bit per direction, N through DOWN.
+	 *
+	 * @return the mask, or -1 if there is no room
+	 */
+	public synchronized int getRoomDoorways(int lx, int y, int lz)
+	{
+		int offset = ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES;
+		if(buffer.get(offset + 18) == 0) { return -1; }
+
+		return buffer.getShort(offset + 16) & 0xFFFF;
+	}
+
+	public synchronized void setRoom(int lx, int y, int lz, long libraryId, long setId, int doorways)
+	{
+		int offset = ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES;
+		buffer.putLong(offset, libraryId);
+		buffer.putLong(offset + 8, setId);
+		buffer.putShort(offset + 16, (short)doorways);
+		buffer.put(offset + 18, (byte)1);
+	}
+
+	public synchronized void clearRoom(int lx, int y, int lz)
+	{
+		int offset = ROOM_OFFSET + roomIndex(lx, y, lz) * ROOM_BYTES;
+		for(int i = 0; i < ROOM_BYTES; i++)
+		{
+			buffer.put(offset + i, (byte)0);
+		}
+	}
+
+	/*
+	 * Reservations
+	 */
+
+	/**
+	 * Gets a room reservation.
+	 *
+	 * @return the reserved library room id, or 0 if the room is not reserved
+	 */
+	public synchronized long getReservation(int lx, int y, int lz)
+	{
+		return buffer.getLong(RESERVATION_OFFSET + roomIndex(lx, y, lz) * 8);
+	}
+
+	/**
+	 * Sets a room reservation.
+	 *
+	 * @param id the reserved library room id, or 0 to clear the reservation
+	 */
+	public synchronized void setReservation(int lx, int y, int lz, long id)
+	{
+		buffer.putLong(RESERVATION_OFFSET + roomIndex(lx, y, lz) * 8, id);
+	}
+
+	/*
+	 * Room sets
+	 */
+
+	/**
+	 * Gets the active room set with its origin in a room.
+	 *
+	 * @return the library set id, or 0 if there is none
+	 */
+	public synchronized long getRoomSet(int lx, int y, int lz)
+	{
+		return buffer.getLong(ROOM_SET_OFFSET + roomIndex(lx, y, lz) * 8);
+	}
+
+	public synchronized void setRoomSet(int lx, int y, int lz, long id)
+	{
+		buffer.putLong(ROOM_SET_OFFSET + roomIndex(lx, y, lz) * 8, id);
+	}
+
+	/**
+	 * Writes any changes still in the page cache to disk.
+	 */
+	public synchronized void flush()
+	{
+		if(closed) { return; }
+
+		buffer.force();
+	}
+
+	/**
+	 * Flushes and closes the file. The region must not be used afterwards.
+	 */
+	public synchronized void close()
+	{
+		if(closed) { return; }
+		closed = true;
+
+		buffer.force();
+
+		try {
+			raf.close();
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+
+	public File getFile()
+	{
+		return file;
+	}
+}
@@ -0,0 +1,780 @@
+package com.aranai.dungeonator.datastore;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Hashtable;
+import java.util.Random;
+import java.util.Vector;
+
+import com.aranai.dungeonator.Direction;
+import com.aranai.dungeonator.DungeonDataManager;
+import com.aranai.dungeonator.Dungeonator;
+import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoomType;
+import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
+import com.aranai.dungeonator.util.CoordKey;
+import com.aranai.dungeonator.util.LongLongMap;
+import com.aranai.dungeonator.util.LongObjectMap;
+import com.aranai.dungeonator.util.WorldRegistry;
+
+/**
+ * Region file implementation of the DungeonDataStore interface.
+ *
+ * Active chunks, rooms, room sets and reservations are kept in
+ * memory-mapped region files of 32x32 chunks (see RegionFile), so reading
+ * or writing them is a direct offset access with no SQL. The library is
+ * not fixed-shape and stays in SQLite; library calls are passed through to
+ * a SqliteDungeonDataStore.
+ */
+public class RegionFileDungeonDataStore implements IDungeonDataStore {
+
+	// The dungeonator instance
+	private Dungeonator plugin;
+
+	/** The library store */
+	private SqliteDungeonDataStore library = new SqliteDungeonDataStore();
+
+	/** Open regions, keyed by the packed world and region coordinates */
+	private LongObjectMap<RegionFile> regions = new LongObjectMap<RegionFile>();
+
+	/** Last use of each open region, by region key */
+	private LongLongMap regionUse = new LongLongMap();
+
+	/** Use counter for regionUse */
+	private long regionTick = 0;
+
+	/** Most regions kept open; the least recently used is closed past it */
+	private int maxOpenRegions = 64;
+
+	/** Library rooms looked up so far, by id */
+	private Hashtable<Long,DungeonRoom> libraryRooms = new Hashtable<Long,DungeonRoom>();
+
+	/** Library room sets by id; null when they need reloading */
+	private Hashtable<Long,DungeonRoomSet> librarySets;
+
+	/** Shutdown status */
+	private boolean shutdown = false;
+
+	/** The region folder path. */
+	public final static String rawRegions = Dungeonator.BaseFolderPath + "regions";
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#initialize(com.aranai.dungeonator.Dungeonator)
+	 */
+	@Override
+	public synchronized void initialize(Dungeonator plugin)
+	{
+		// Save dungeonator instance
+		this.plugin = plugin;
+
+		long startTime = System.currentTimeMillis();
+
+		library.initialize(plugin);
+
+		// Every operation touches at most a handful of regions, all of which must stay open
+		maxOpenRegions = Math.max(16, plugin.getConfig().getInt("datastore.max-open-regions", 64));
+
+		File folder = new File(rawRegions);
+		if(!folder.exists())
+		{
+			if(!folder.mkdirs())
+			{
+				Dungeonator.GetLogger().severe("[Dungeonator]: Unable to create region folder.");
+			}
+
+			// Nothing is migrated from the SQLite active tables
+			Dungeonator.GetLogger().warning("[Dungeonator] Created the region folder; any dungeons generated with datastore type sqlite are not carried over.");
+		}
+
+		// Schedule background flushes
+		long interval = plugin.getConfig().getLong("checkpoint.interval", 60) * 20;
+		if(interval > 0)
+		{
+			plugin.getServer().getScheduler().scheduleAsyncRepeatingTask(plugin, new Runnable() {
+				public void run() { flush(); }
+			}, interval, interval);
+		}
+
+		Dungeonator.GetLogger().info("DungeonDataStore(RegionFile) Initialized in "+(System.currentTimeMillis() - startTime)+"ms.");
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#shutdown()
+	 */
+	@Override
+	public void shutdown()
+	{
+		synchronized(this)
+		{
+			if(shutdown) { return; }
+			shutdown = true;
+
+			for(RegionFile region : regions.values())
+			{
+				region.close();
+			}
+			regions.clear();
+			regionUse.clear();
+		}
+
+		library.shutdown();
+	}
+
+	/**
+	 * Writes the changes in every open region to disk.
+	 */
+	public void flush()
+	{
+		Vector<RegionFile> open;
+		synchronized(this)
+		{
+			if(shutdown) { return; }
+			open = new Vector<RegionFile>(regions.values());
+		}
+
+		for(RegionFile region : open)
+		{
+			region.flush();
+		}
+	}
+
+	/**
+	 * Gets the region containing a chunk.
+	 *
+	 * @param world the world name
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param create true to create the region file if it doesn't exist
+	 * @return the region, or null if it doesn't exist and create is false
+	 */
+	private RegionFile getRegion(String world, int x, int z, boolean create)
+	{
+		int rx = RegionFile.getRegionCoord(x);
+		int rz = RegionFile.getRegionCoord(z);
+		long key = CoordKey.chunk(WorldRegistry.getId(world), rx, rz);
+
+		RegionFile region = regions.get(key);
+		if(region != null)
+		{
+			regionUse.put(key, ++regionTick);
+			return region;
+		}
+
+		File file = new File(rawRegions + File.separator + world, "r."+rx+"."+rz+".dgr");
+		if(!file.exists())
+		{
+			if(!create) { return null; }
+			file.getParentFile().mkdirs();
+		}
+
+		try {
+			region = new RegionFile(file);
+			regions.put(key, region);
+			regionUse.put(key, ++regionTick);
+			closeIdleRegion();
+		} catch (IOException e) {
+			Dungeonator.GetLogger().warning("[Dungeonator] RegionFileDungeonDataStore#getRegion: " + e.getMessage());
+			e.printStackTrace();
+		}
+
+		return region;
+	}
+
+	/**
+	 * Flushes and closes the least recently used region if too many are open.
+	 * Every caller holds the store lock and is done with regions it used
+	 * maxOpenRegions opens ago, so the closed region is never in use.
+	 */
+	private void closeIdleRegion()
+	{
+		if(regions.size() <= maxOpenRegions) { return; }
+
+		long oldestKey = 0;
+		long oldestTick = Long.MAX_VALUE;
+		for(long k : regionUse.keys())
+		{
+			long tick = regionUse.get(k, Long.MAX_VALUE);
+			if(tick < oldestTick) { oldestTick = tick; oldestKey = k; }
+		}
+
+		regionUse.remove(oldestKey);
+		RegionFile region = regions.remove(oldestKey);
+		if(region != null) { region.close(); }
+	}
+
+	/**
+	 * Gets the region containing a chunk, creating it if needed.
+	 */
+	private RegionFile getRegionForSave(String world, int x, int z) throws DataStoreSaveException
+	{
+		RegionFile region = getRegion(world, x, z, true);
+		if(region == null) { throw new DataStoreSaveException("Could not open region file.", "getRegionForSave"); }
+
+		return region;
+	}
+
+	/**
+	 * Gets a library room, looking it up in the library the first time.
+	 *
+	 * @param id the library id
+	 * @return the library room, or null if there is none
+	 */
+	private DungeonRoom getCachedLibraryRoom(long id) throws DataStoreGetException
+	{
+		DungeonRoom room = libraryRooms.get(id);
+		if(room == null)
+		{
+			room = library.getLibraryRoom(id);
+			if(room != null) { libraryRooms.put(id, room); }
+		}
+
+		return room;
+	}
+
+	/**
+	 * Gets a library room set, loading the set list if needed.
+	 *
+	 * @param id the library set id
+	 * @return the set, or null if there is none
+	 */
+	private DungeonRoomSet getCachedLibrarySet(long id) throws DataStoreGetException
+	{
+		if(librarySets == null)
+		{
+			librarySets = new Hashtable<Long,DungeonRoomSet>();
+			for(DungeonRoomSet set : library.getLibraryRoomSets())
+			{
+				librarySets.put(set.getLibraryID(), set);
+			}
+		}
+
+		return librarySets.get(id);
+	}
+
+	/**
+	 * Packs a room's doorways into a mask, one bit per direction.
+	 */
+	private static int getDoorwayMask(DungeonRoom room)
+	{
+		int mask = 0;
+		for(byte d = Direction.N; d <= Direction.DOWN; d++)
+		{
+			if(room.hasDoorway(d)) { mask |= 1 << d; }
+		}
+
+		return mask;
+	}
+
+	/**
+	 * Writes a room record, taking its set and doorways from the library.
+	 */
+	private void writeRoom(RegionFile region, int x, int y, int z, long libraryId) throws DataStoreSaveException
+	{
+		DungeonRoom source = null;
+		try {
+			source = getCachedLibraryRoom(libraryId);
+		} catch (DataStoreGetException e) { throw new DataStoreSaveException(e.getMessage(), "writeRoom"); }
+
+		if(source == null) { throw new DataStoreSaveException("Unknown library room "+libraryId, "writeRoom"); }
+
+		region.setRoom(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z),
+				libraryId, source.getLibraryRoomSetID(), getDoorwayMask(source));
+	}
+
+	/**
+	 * Fills in a room from its region record and the library.
+	 */
+	private void readRoom(DungeonRoom room, RegionFile region, int lx, int y, int lz) throws DataStoreGetException
+	{
+		long libraryId = region.getRoomLibraryId(lx, y, lz);
+		long setId = region.getRoomSetId(lx, y, lz);
+		int doorways = region.getRoomDoorways(lx, y, lz);
+
+		room.setLoaded(true);
+		room.setLibraryId(libraryId);
+		room.setLibraryRoomSetID(setId);
+
+		DungeonRoom source = getCachedLibraryRoom(libraryId);
+		if(source != null)
+		{
+			room.setName(source.getName());
+			room.setFilename(source.getFilename());
+		}
+
+		if(setId > 0)
+		{
+			DungeonRoomSet set = getCachedLibrarySet(setId);
+			if(set != null) { room.setLibraryRoomSetPath(set.getName()); }
+		}
+
+		for(byte d = Direction.N; d <= Direction.DOWN; d++)
+		{
+			room.setDoorway(d, (doorways & (1 << d)) != 0);
+		}
+	}
+
+	/**
+	 * Builds a chunk object for a world.
+	 */
+	private DungeonChunk newChunk(String world, int x, int z)
+	{
+		DungeonChunk dc = new DungeonChunk(null, DungeonRoomType.BASIC_TILE, x, z);
+		dc.setWorld(plugin.getServer().getWorld(world));
+
+		return dc;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getChunk(java.lang.String, int, int)
+	 */
+	@Override
+	public synchronized DungeonChunk getChunk(String world, int x, int z) throws DataStoreGetException {
+		RegionFile region = getRegion(world, x, z, false);
+
+		if(region == null || !region.isChunkGenerated(RegionFile.getLocalCoord(x), RegionFile.getLocalCoord(z)))
+		{
+			return null;
+		}
+
+		return newChunk(world, x, z);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk)
+	 */
+	@Override
+	public synchronized boolean saveChunk(DungeonChunk chunk) throws DataStoreSaveException {
+		RegionFile region = getRegionForSave(chunk.getWorldName(), chunk.getX(), chunk.getZ());
+		region.setChunk(RegionFile.getLocalCoord(chunk.getX()), RegionFile.getLocalCoord(chunk.getZ()), 0);
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveGeneratedChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk, com.aranai.dungeonator.dungeonchunk.DungeonRoom[], int)
+	 */
+	@Override
+	public synchronized boolean saveGeneratedChunk(DungeonChunk chunk, DungeonRoom[] rooms, int consumedReservations) throws DataStoreSaveException {
+		int x = chunk.getX();
+		int z = chunk.getZ();
+		int lx = RegionFile.getLocalCoord(x);
+		int lz = RegionFile.getLocalCoord(z);
+
+		RegionFile region = getRegionForSave(chunk.getWorldName(), x, z);
+
+		// Write the rooms before marking the chunk generated
+		for(int r = 0; r < rooms.length; r++)
+		{
+			writeRoom(region, x, rooms[r].getY(), z, rooms[r].getLibraryId());
+		}
+
+		for(int y = 0; y < RegionFile.ROOMS; y++)
+		{
+			if((consumedReservations & (1 << y)) != 0) { region.setReservation(lx, y, lz, 0); }
+		}
+
+		region.setChunk(lx, lz, 0);
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk)
+	 */
+	@Override
+	public synchronized void deleteChunk(DungeonChunk chunk) throws DataStoreDeleteException {
+		RegionFile region = getRegion(chunk.getWorldName(), chunk.getX(), chunk.getZ(), false);
+
+		if(region != null)
+		{
+			region.clearChunk(RegionFile.getLocalCoord(chunk.getX()), RegionFile.getLocalCoord(chunk.getZ()));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getChunkRooms(java.lang.String, int, int)
+	 */
+	@Override
+	public synchronized DungeonRoom[] getChunkRooms(String world, int x, int z) throws DataStoreGetException {
+		int lx = RegionFile.getLocalCoord(x);
+		int lz = RegionFile.getLocalCoord(z);
+
+		RegionFile region = getRegion(world, x, z, false);
+		if(region == null || !region.isChunkGenerated(lx, lz)) { return null; }
+
+		DungeonChunk dc = newChunk(world, x, z);
+		DungeonRoom[] dr = new DungeonRoom[RegionFile.ROOMS];
+
+		for(int y = 0; y < RegionFile.ROOMS; y++)
+		{
+			if(!region.hasRoom(lx, y, lz)) { continue; }
+
+			dr[y] = new DungeonRoom(dc, y);
+			readRoom(dr[y], region, lx, y, lz);
+		}
+
+		return dr;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRoom(java.lang.String, int, int, int)
+	 */
+	@Override
+	public synchronized DungeonRoom getRoom(String world, int x, int y, int z) throws DataStoreGetException {
+		int lx = RegionFile.getLocalCoord(x);
+		int lz = RegionFile.getLocalCoord(z);
+
+		RegionFile region = getRegion(world, x, z, false);
+		DungeonRoom dr = new DungeonRoom(newChunk(world, x, z), y);
+
+		if(region != null && region.hasRoom(lx, y, lz))
+		{
+			readRoom(dr, region, lx, y, lz);
+		}
+
+		return dr;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRoomDoorways(java.lang.String, int, int, int, int)
+	 */
+	@Override
+	public synchronized int[][][] getRoomDoorways(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		int[][][] doorways = new int[(x2-x1)+1][RegionFile.ROOMS][(z2-z1)+1];
+
+		for(int x = x1; x <= x2; x++)
+		{
+			for(int z = z1; z <= z2; z++)
+			{
+				RegionFile region = getRegion(world, x, z, false);
+				int lx = RegionFile.getLocalCoord(x);
+				int lz = RegionFile.getLocalCoord(z);
+
+				for(int y = 0; y < RegionFile.ROOMS; y++)
+				{
+					doorways[x-x1][y][z-z1] = (region == null) ? -1 : region.getRoomDoorways(lx, y, lz);
+				}
+			}
+		}
+
+		return doorways;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoom(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
+	 */
+	@Override
+	public synchronized boolean saveRoom(DungeonRoom room) throws DataStoreSaveException {
+		DungeonRoom[] rooms = {room};
+		return saveRooms(rooms);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRooms(com.aranai.dungeonator.dungeonchunk.DungeonRoom[])
+	 */
+	@Override
+	public synchronized boolean saveRooms(DungeonRoom[] rooms) throws DataStoreSaveException {
+		for(int r = 0; r < rooms.length; r++)
+		{
+			RegionFile region = getRegionForSave(rooms[r].getDungeonChunk().getWorldName(), rooms[r].getX(), rooms[r].getZ());
+			writeRoom(region, rooms[r].getX(), rooms[r].getY(), rooms[r].getZ(), rooms[r].getLibraryId());
+		}
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteRoom(java.lang.String, int, int, int)
+	 */
+	@Override
+	public synchronized void deleteRoom(String world, int x, int y, int z) throws DataStoreDeleteException {
+		RegionFile region = getRegion(world, x, z, false);
+
+		if(region != null)
+		{
+			region.clearRoom(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z));
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRoomSet(java.lang.String, int, int, int)
+	 */
+	@Override
+	public synchronized DungeonRoomSet getRoomSet(String world, int x, int y, int z) throws DataStoreGetException {
+		RegionFile region = getRegion(world, x, z, false);
+		if(region == null) { return null; }
+
+		long id = region.getRoomSet(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z));
+		if(id == 0) { return null; }
+
+		DungeonRoomSet set = getCachedLibrarySet(id);
+		if(set == null) { return null; }
+
+		return new DungeonRoomSet(set.getName(), set.getTitle(), set.getSizeX(), set.getSizeY(), set.getSizeZ(), x, y, z, id);
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoomSet(com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
+	 */
+	@Override
+	public synchronized boolean saveRoomSet(DungeonRoomSet set) throws DataStoreSaveException {
+		RegionFile region = getRegionForSave(set.getOriginChunk().getWorldName(), set.getOriginX(), set.getOriginZ());
+		region.setRoomSet(RegionFile.getLocalCoord(set.getOriginX()), set.getOriginY(), RegionFile.getLocalCoord(set.getOriginZ()), set.getLibraryID());
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getReservedRooms(java.lang.String, int, int, int, int, int, int)
+	 */
+	@Override
+	public synchronized DungeonRoom[][][] getReservedRooms(String world, int x1, int y1, int z1, int x2, int y2, int z2) throws DataStoreGetException {
+		DungeonRoom[][][] rooms = new DungeonRoom[(x2-x1)+1][RegionFile.ROOMS][(z2-z1)+1];
+
+		for(int x = x1; x <= x2; x++)
+		{
+			for(int z = z1; z <= z2; z++)
+			{
+				RegionFile region = getRegion(world, x, z, false);
+				if(region == null) { continue; }
+
+				for(int y = y1; y <= y2; y++)
+				{
+					long id = region.getReservation(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z));
+					if(id == 0) { continue; }
+
+					DungeonRoom source = getCachedLibraryRoom(id);
+					if(source == null) { continue; }
+
+					DungeonRoom room = new DungeonRoom(new DungeonChunk(null, DungeonRoomType.BASIC_TILE, x, z), y);
+					room.setLoaded(true);
+					room.setLibraryId(id);
+					room.setName(source.getName());
+					room.setFilename(source.getFilename());
+
+					DungeonRoomSet set = getCachedLibrarySet(source.getLibraryRoomSetID());
+					room.setRoomSet(new DungeonRoomSet(set != null ? set.getName() : null));
+
+					for(byte d = Direction.N; d <= Direction.DOWN; d++)
+					{
+						room.setDoorway(d, source.hasDoorway(d));
+					}
+
+					rooms[x-x1][y][z-z1] = room;
+				}
+			}
+		}
+
+		return rooms;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getAllReservedRooms(java.lang.String)
+	 */
+	@Override
+	public synchronized LongLongMap getAllReservedRooms(String world) throws DataStoreGetException {
+		LongLongMap rooms = new LongLongMap();
+
+		File[] files = new File(rawRegions + File.separator + world).listFiles();
+		if(files == null) { return rooms; }
+
+		for(File file : files)
+		{
+			// Region files are named r.<x>.<z>.dgr
+			String[] parts = file.getName().split("\\.");
+			if(parts.length != 4 || !parts[0].equals("r") || !parts[3].equals("dgr")) { continue; }
+
+			int rx, rz;
+			try {
+				rx = Integer.parseInt(parts[1]);
+				rz = Integer.parseInt(parts[2]);
+			} catch (NumberFormatException e) { continue; }
+
+			RegionFile region = getRegion(world, rx * RegionFile.SIZE, rz * RegionFile.SIZE, false);
+			if(region == null) { continue; }
+
+			for(int lx = 0; lx < RegionFile.SIZE; lx++)
+			{
+				for(int lz = 0; lz < RegionFile.SIZE; lz++)
+				{
+					for(int y = 0; y < RegionFile.ROOMS; y++)
+					{
+						long id = region.getReservation(lx, y, lz);
+						if(id == 0) { continue; }
+
+						long key = DungeonDataManager.GetReservationKey(world, rx * RegionFile.SIZE + lx, y, rz * RegionFile.SIZE + lz);
+						rooms.put(key, id);
+					}
+				}
+			}
+		}
+
+		return rooms;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getReservedRoomIds(java.lang.String, int, int, int, int)
+	 */
+	@Override
+	public synchronized LongLongMap getReservedRoomIds(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		LongLongMap rooms = new LongLongMap();
+
+		for(int x = x1; x <= x2; x++)
+		{
+			for(int z = z1; z <= z2; z++)
+			{
+				RegionFile region = getRegion(world, x, z, false);
+				if(region == null) { continue; }
+
+				for(int y = 0; y < RegionFile.ROOMS; y++)
+				{
+					long id = region.getReservation(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z));
+					if(id != 0) { rooms.put(DungeonDataManager.GetReservationKey(world, x, y, z), id); }
+				}
+			}
+		}
+
+		return rooms;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveReservedRoom(java.lang.String, int, int, int, long)
+	 */
+	@Override
+	public synchronized boolean saveReservedRoom(String world, int x, int y, int z, long id) throws DataStoreSaveException {
+		RegionFile region = getRegionForSave(world, x, z);
+		region.setReservation(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z), id);
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveReservedRoomSet(java.lang.String, int, int, int, com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
+	 */
+	@Override
+	public synchronized boolean saveReservedRoomSet(String world, int x, int y, int z, DungeonRoomSet set) throws DataStoreSaveException {
+		// Open every region first, so a failure leaves nothing half written
+		for(int sx = 0; sx < set.getSizeX(); sx++)
+		{
+			for(int sz = 0; sz < set.getSizeZ(); sz++)
+			{
+				getRegionForSave(world, x+sx, z+sz);
+			}
+		}
+
+		for(int sx = 0; sx < set.getSizeX(); sx++)
+		{
+			for(int sz = 0; sz < set.getSizeZ(); sz++)
+			{
+				RegionFile region = getRegion(world, x+sx, z+sz, false);
+				for(int sy = 0; sy < set.getSizeY(); sy++)
+				{
+					region.setReservation(RegionFile.getLocalCoord(x+sx), y+sy, RegionFile.getLocalCoord(z+sz), set.getLibraryRoomID(sx, sy, sz));
+				}
+			}
+		}
+
+		return true;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteReservedRoom(java.lang.String, int, int, int)
+	 */
+	@Override
+	public synchronized boolean deleteReservedRoom(String world, int x, int y, int z) throws DataStoreDeleteException {
+		RegionFile region = getRegion(world, x, z, false);
+
+		if(region != null)
+		{
+			region.setReservation(RegionFile.getLocalCoord(x), y, RegionFile.getLocalCoord(z), 0);
+		}
+
+		return true;
+	}
+
+	/*
+	 * Library methods, passed through to SQLite
+	 */
+
+	@Override
+	public DungeonRoom getLibraryRoom(long id) throws DataStoreGetException {
+		return library.getLibraryRoom(id);
+	}
+
+	@Override
+	public synchronized boolean saveLibraryRoom(DungeonRoom room) throws DataStoreSaveException {
+		libraryRooms.clear();
+		librarySets = null;
+
+		return library.saveLibraryRoom(room);
+	}
+
+	@Override
+	public void deleteLibraryRoom(String hash) throws DataStoreDeleteException {
+		library.deleteLibraryRoom(hash);
+	}
+
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways) throws DataStoreGetException {
+		return library.getLibraryRoomRandom(doorways);
+	}
+
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, Random random) throws DataStoreGetException {
+		return library.getLibraryRoomRandom(doorways, random);
+	}
+
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, String theme, Random random) throws DataStoreGetException {
+		return library.getLibraryRoomRandom(doorways, theme, random);
+	}
+
+	@Override
+	public synchronized boolean saveLibraryRoomSet(DungeonRoomSet set) throws DataStoreSaveException {
+		librarySets = null;
+
+		return library.saveLibraryRoomSet(set);
+	}
+
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number) throws DataStoreGetException {
+		return library.getLibraryRoomSetsRandom(number);
+	}
+
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number, Random random) throws DataStoreGetException {
+		return library.getLibraryRoomSetsRandom(number, random);
+	}
+
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSets() throws DataStoreGetException {
+		return library.getLibraryRoomSets();
+	}
+
+	@Override
+	public DungeonWidget getLibraryWidget(long id) throws DataStoreGetException {
+		return library.getLibraryWidget(id);
+	}
+
+	@Override
+	public Vector<DungeonWidget> getLibraryWidgets() throws DataStoreGetException {
+		return library.getLibraryWidgets();
+	}
+
+	@Override
+	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size) throws DataStoreGetException {
+		return library.getRandomLibraryWidget(size);
+	}
+
+	@Override
+	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size, Random random) throws DataStoreGetException {
+		return library.getRandomLibraryWidget(size, random);
+	}
+
+	@Override
+	public boolean saveLibraryWidget(DungeonWidget widget) throws DataStoreSaveException {
+		return library.saveLibraryWidget(widget);
+	}
+}
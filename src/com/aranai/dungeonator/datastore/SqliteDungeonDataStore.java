@@ -1,15 +1,29 @@
 package com.aranai.dungeonator.datastore;
 
+import java.io.File;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
-import java.util.Hashtable;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Random;
 import java.util.Vector;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 
 import org.bukkit.util.BlockVector;
 
@@ -21,6 +35,8 @@ import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomType;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
+import com.aranai.dungeonator.dungeonchunk.RoomSetCatalog;
+import com.aranai.dungeonator.util.LongLongMap;
 
 /**
  * SQLite implementation of the DungeonDataStore interface
@@ -36,10 +52,62 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	/** Shutdown status */
 	private boolean shutdown = false;
 	
+	/** The mutation journal, or null if journaling is disabled */
+	private MutationJournal journal;
+	
+	/** The on-disk database connection, used only by checkpoints */
+	private Connection diskConn;
+	
+	/** Rows changed since the last checkpoint, in the order they were first changed */
+	private LinkedHashSet<RowKey> dirty = new LinkedHashSet<RowKey>();
+	
+	/** Held for the duration of a checkpoint; always taken before the store lock */
+	private final Object checkpointLock = new Object();
+	
+	/** Maximum rows written per checkpoint transaction */
+	private int checkpointBatchSize = 256;
+	
+	/** The database connection and its compiled statements; all writes go through it */
+	private Session main;
+	
+	/** True when working on the disk database in WAL mode rather than an in-memory copy */
+	private boolean walMode = false;
+	
+	/** Idle read-only connections in WAL mode; null for the in-memory database */
+	private ArrayBlockingQueue<Session> readers;
+	
+	/** The read connection leased by each thread, so nested reads reuse it */
+	private final ThreadLocal<Session> leased = new ThreadLocal<Session>();
+	
+	/** The thread that runs every write in WAL mode; null for the in-memory database */
+	private ExecutorService writer;
+	
+	/** Checkpoint statements for the on-disk database, by table */
+	private HashMap<String,PreparedStatement> diskReplaces = new HashMap<String,PreparedStatement>();
+	private HashMap<String,PreparedStatement> diskDeletes = new HashMap<String,PreparedStatement>();
+	
+	/** Random selection index of the library rooms; null when it needs rebuilding */
+	private volatile LibraryRoomIndex libraryRoomIndex;
+	
+	/** Bumped whenever the library rooms change, so a stale index is never installed */
+	private volatile int libraryRoomVersion = 0;
+	
+	/** Held while building the library room index */
+	private final Object libraryRoomIndexLock = new Object();
+	
+	/** Random source for unseeded selection */
+	private final Random random = new Random();
+	
+	/** Column names, by table */
+	private HashMap<String,String[]> tableColumns = new HashMap<String,String[]>();
+	
 	/** The database path. */
 	public final static String rawDb = Dungeonator.BaseFolderPath + "dungeonator.db";
 	public final static String db = "jdbc:sqlite:" + rawDb;
 	
+	/** The journal path. */
+	public final static String rawJournal = Dungeonator.BaseFolderPath + "dungeonator.journal";
+	
 	/*
 	 * Table names
 	 */
@@ -65,6 +133,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * SQL Strings for static operations
 	 */
 	
+	// Row writes shared by single saves and chunk batches
+	private static String SqlReplaceChunk = "REPLACE INTO `"+TblChunks+"` (`world`,`x`,`z`,`type`) VALUES (?, ?, ?, ?);";
+	private static String SqlReplaceRoom = "REPLACE INTO `"+TblRooms+"` (`world`,`x`,`y`,`z`,`library_id`,`name`) VALUES (?, ?, ?, ?, ?, ?);";
+	private static String SqlDeleteReservation = "DELETE FROM `"+TblRoomReservations+"` WHERE `world` = ? AND `x` = ? AND `y` = ? AND `z` = ?;";
+	private static String SqlSelectReservationArea = "SELECT `x`,`y`,`z`,`library_id` FROM `"+TblRoomReservations+"`" +
+			" WHERE `world` = ? AND `x` BETWEEN ? AND ? AND `z` BETWEEN ? AND ?;";
+	
 	// Active Chunks
 	private static String SqlCreateTableChunks = "CREATE TABLE `"+TblChunks+"`" +
 			"(`world` varchar(32) NOT NULL, `x` INTEGER, `z` INTEGER, `type` INTEGER);";
@@ -76,6 +151,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 			"(`world` varchar(32) NOT NULL, `x` INTEGER, `y` INTEGER, `z` INTEGER, `library_id` INTEGER, `set_id` INTEGER, `name` varchar(64));";
 	
 	private static String SqlCreateIndexRooms = "CREATE UNIQUE INDEX roomIndex on `"+TblRooms+"` (`world`,`x`,`y`,`z`);";
+	private static String SqlCreateIndexRoomArea = "CREATE INDEX IF NOT EXISTS roomAreaIndex on `"+TblRooms+"` (`world`,`x`,`z`);";
 	
 	// Active Room Sets
 	private static String SqlCreateTableRoomSets = "CREATE TABLE `"+TblRoomSets+"`" +
@@ -134,11 +210,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#initialize()
 	 */
 	@Override
-	public void initialize(Dungeonator plugin)
+	public synchronized void initialize(Dungeonator plugin)
 	{
 		// Save dungeonator instance
 		this.plugin = plugin;
 		
+		long startTime = System.currentTimeMillis();
+		
 		// Open connection
 		try {
 			Class.forName("org.sqlite.JDBC");
@@ -148,11 +226,51 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	        this.initTables(connDisk);
 	        connDisk.close();
 			
-			conn = DriverManager.getConnection("jdbc:sqlite::memory:");
-			this.initTables(conn);
-			
-			// Load from disk
-	        loadFromDisk();
+	        walMode = plugin.getConfig().getString("datastore.sqlite-mode", "memory").equalsIgnoreCase("wal");
+	        
+	        if(walMode)
+	        {
+	        	// Work on the disk database directly; WAL lets readers run alongside the writer
+	        	openWal(Math.max(1, plugin.getConfig().getInt("datastore.readers", 4)));
+	        	Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Opened database in WAL mode with "+readers.size()+" readers.");
+	        }
+	        else
+	        {
+				conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+				
+				// Load from disk, falling back to a row copy if the driver can't restore
+				if(restoreFromDisk())
+				{
+					Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Restored database in "+(System.currentTimeMillis() - startTime)+"ms.");
+				}
+				else
+				{
+					this.initTables(conn);
+					loadFromDisk();
+					Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Copied database in "+(System.currentTimeMillis() - startTime)+"ms.");
+				}
+				main = new Session(conn, this);
+		        
+		        // Replay anything written since the last checkpoint
+		        if(plugin.getConfig().getBoolean("journal.enabled", true))
+		        {
+		        	openJournal(plugin.getConfig().getBoolean("journal.sync", false));
+		        }
+		        
+		        // Open the connection used by checkpoints
+		        diskConn = DriverManager.getConnection(db);
+		        diskConn.setAutoCommit(false);
+	        }
+	        
+	        // Schedule background checkpoints
+	        checkpointBatchSize = Math.max(1, plugin.getConfig().getInt("checkpoint.batch-size", 256));
+	        long interval = plugin.getConfig().getLong("checkpoint.interval", 60) * 20;
+	        if(interval > 0)
+	        {
+	        	plugin.getServer().getScheduler().scheduleAsyncRepeatingTask(plugin, new Runnable() {
+	        		public void run() { checkpoint(); }
+	        	}, interval, interval);
+	        }
 		} catch (ClassNotFoundException e) {
 			Dungeonator.GetLogger().severe("Could not load database class!");
 			e.printStackTrace();
@@ -161,7 +279,156 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 			e.printStackTrace();
 		}
 		
-		Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Initialized.");
+		Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Initialized in "+(System.currentTimeMillis() - startTime)+"ms.");
+	}
+	
+	/**
+	 * Opens the on-disk database in WAL mode: one connection for writes,
+	 * used only by the writer thread, and a pool of read-only connections.
+	 * WAL readers see the last committed state and never wait for the
+	 * writer, so generation workers can query in parallel.
+	 *
+	 * @param readerCount the number of read connections
+	 */
+	private void openWal(int readerCount) throws SQLException
+	{
+		conn = DriverManager.getConnection(db);
+		
+		Statement st = conn.createStatement();
+		st.execute("PRAGMA journal_mode=WAL");
+		// Commits survive a crash without an fsync each; only power loss can drop the latest
+		st.execute("PRAGMA synchronous=NORMAL");
+		st.close();
+		
+		conn.setAutoCommit(false);
+		main = new Session(conn, this);
+		
+		readers = new ArrayBlockingQueue<Session>(readerCount);
+		for(int i = 0; i < readerCount; i++)
+		{
+			Connection rc = DriverManager.getConnection(db);
+			st = rc.createStatement();
+			st.execute("PRAGMA query_only=1");
+			st.close();
+			
+			readers.add(new Session(rc, null));
+		}
+		
+		writer = Executors.newSingleThreadExecutor(new ThreadFactory() {
+			public Thread newThread(Runnable r)
+			{
+				Thread t = new Thread(r, "Dungeonator-DB-Writer");
+				t.setDaemon(true);
+				return t;
+			}
+		});
+	}
+	
+	/**
+	 * Leases a connection for reading. In WAL mode this is one of the
+	 * read-only connections, waiting for one to come free if needed; a
+	 * thread that already holds one gets the same one back. Otherwise it
+	 * is the in-memory database connection, which callers must use while
+	 * holding its lock.
+	 *
+	 * @return the connection
+	 */
+	private Session acquireReader() throws DataStoreGetException
+	{
+		if(readers == null) { return main; }
+		
+		Session r = leased.get();
+		if(r == null)
+		{
+			try {
+				r = readers.take();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new DataStoreGetException("Interrupted waiting for a read connection.", "acquireReader");
+			}
+			leased.set(r);
+		}
+		r.depth++;
+		
+		return r;
+	}
+	
+	/**
+	 * Returns a leased read connection.
+	 *
+	 * @param r the connection
+	 */
+	private void releaseReader(Session r)
+	{
+		if(r == main || --r.depth > 0) { return; }
+		
+		leased.remove();
+		readers.offer(r);
+	}
+	
+	/**
+	 * Runs a write. In WAL mode it runs on the writer thread and the
+	 * caller waits for it without holding the store lock, so readers and
+	 * other callers are not blocked behind the queue; otherwise it runs on
+	 * the calling thread under the store lock.
+	 *
+	 * @param task the write
+	 * @param failed the result to return if the write could not be run
+	 * @return the result of the write
+	 */
+	private <T> T write(Callable<T> task, T failed)
+	{
+		try {
+			if(writer == null)
+			{
+				synchronized(this) { return task.call(); }
+			}
+			
+			return writer.submit(task).get();
+		} catch (ExecutionException e) {
+			e.getCause().printStackTrace();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (RejectedExecutionException e) {
+			Dungeonator.GetLogger().warning("[Dungeonator] Write rejected; the data store is shut down.");
+		} catch (Exception e) { e.printStackTrace(); }
+		
+		return failed;
+	}
+	
+	/**
+	 * Copies the on-disk database into RAM page by page using SQLite's
+	 * online backup API, which is much faster than copying row by row and
+	 * brings the indexes along without rebuilding them.
+	 *
+	 * @return true, if the restore succeeded
+	 */
+	private boolean restoreFromDisk()
+	{
+		try {
+			conn.setAutoCommit(true);
+			
+			Statement stmt = conn.createStatement();
+			stmt.executeUpdate("restore from \""+rawDb+"\"");
+			stmt.close();
+			
+			// Create anything the disk copy is missing
+			this.initTables(conn);
+			
+			conn.setAutoCommit(false);
+			
+			return true;
+		} catch (SQLException e) {
+			Dungeonator.GetLogger().warning("DungeonDataStore(Sqlite) Could not restore database ("+e.getMessage()+"), copying tables instead.");
+			
+			// Start over with a clean in-memory database
+			try {
+				conn.close();
+				conn = DriverManager.getConnection("jdbc:sqlite::memory:");
+			} catch (SQLException e2) { e2.printStackTrace(); }
+			
+			return false;
+		}
 	}
 	
 	/**
@@ -201,40 +468,251 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	        }
 	}
 	
+	/**
+	 * Replays the mutation journal into the in-memory database and opens it
+	 * for appending.
+	 *
+	 * @param sync true to fsync the journal after each batch of records
+	 */
+	private void openJournal(boolean sync)
+	{
+		MutationJournal j = new MutationJournal(new File(rawJournal), sync);
+		
+		try {
+			int replayed = j.replay(new JournalTarget());
+			conn.commit();
+			
+			if(replayed > 0)
+			{
+				Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Replayed "+replayed+" journaled changes.");
+			}
+			
+			j.open();
+			journal = j;
+		} catch (Exception e) {
+			Dungeonator.GetLogger().severe("Could not open mutation journal; changes will only be saved at checkpoints.");
+			e.printStackTrace();
+		}
+	}
+	
+	/**
+	 * Writes every changed row to disk. Kept for callers of the old full
+	 * copy; this is now the same as {@link #checkpoint()}.
+	 */
 	public void saveToDisk()
 	{
-        try {
-            Statement stmt = conn.createStatement();
-            Statement stmt2 = conn.createStatement();
-            ResultSet rs = null;
-            
-            Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Writing to disk.");
-            
-            // Set autocommit to avoid transaction issues while attaching/detaching
-            conn.setAutoCommit(true);
-        
-            // Attach on-disk database to in-memory database
-            String attachStmt = "ATTACH '" + rawDb + "' AS src";
-            stmt.execute(attachStmt);
-
-            // Copy data from on-disk database to in-memory database
-            String tableNameQuery = "SELECT name FROM main.sqlite_master WHERE type='table'";
-            rs = stmt.executeQuery(tableNameQuery);
-            while(rs.next()) {
-                    String sql = "REPLACE INTO src." + rs.getString(1) + " SELECT * FROM " + rs.getString(1);
-                    stmt2.execute(sql);
-            }
-            
-            // Detach on-disk database
-            String detachStmt = "DETACH src";
-            stmt.execute(detachStmt);
-            
-            conn.setAutoCommit(false);
-        } catch (SQLException e) {
-            Dungeonator.GetLogger().severe("Could not save to disk.");
-            e.printStackTrace();
-        }
-    }
+		checkpoint();
+	}
+	
+	/**
+	 * Writes the rows changed since the last checkpoint to disk.
+	 *
+	 * Rows are read from the in-memory database in batches of
+	 * checkpoint.batch-size, holding the store lock only while each batch
+	 * is read; the disk writes happen outside the lock on a separate
+	 * connection. Once every batch is on disk, the journal segments written
+	 * before the checkpoint started are released.
+	 *
+	 * In WAL mode every commit is already on disk; this folds the WAL back
+	 * into the database file instead, without waiting for readers.
+	 *
+	 * @return true, if every changed row was written
+	 */
+	public boolean checkpoint()
+	{
+		if(walMode)
+		{
+			return write(new Callable<Boolean>() {
+				public Boolean call() throws Exception
+				{
+					Statement st = conn.createStatement();
+					st.execute("PRAGMA wal_checkpoint(PASSIVE)");
+					st.close();
+					return true;
+				}
+			}, false);
+		}
+		
+		synchronized(checkpointLock)
+		{
+			LinkedHashSet<RowKey> pending;
+			long segment = -1;
+			
+			// Take the rows to write and start a fresh journal segment at the same point
+			synchronized(this)
+			{
+				if(diskConn == null || dirty.isEmpty()) { return true; }
+				
+				pending = dirty;
+				dirty = new LinkedHashSet<RowKey>();
+				if(journal != null) { segment = journal.rotate(); }
+			}
+			
+			long start = System.currentTimeMillis();
+			int total = pending.size();
+			Iterator<RowKey> it = pending.iterator();
+			ArrayList<RowKey> keys = new ArrayList<RowKey>(checkpointBatchSize);
+			
+			try
+			{
+				while(it.hasNext())
+				{
+					keys.clear();
+					while(it.hasNext() && keys.size() < checkpointBatchSize)
+					{
+						keys.add(it.next());
+						it.remove();
+					}
+					
+					// Read the current rows; a row that is gone has been deleted
+					ArrayList<Object[]> rows;
+					synchronized(this) { rows = readRows(keys); }
+					
+					writeRows(keys, rows);
+				}
+			}
+			catch(SQLException e)
+			{
+				Dungeonator.GetLogger().severe("Checkpoint failed; "+(keys.size() + pending.size())+" rows will be retried.");
+				e.printStackTrace();
+				
+				// Put back whatever was not written
+				synchronized(this)
+				{
+					dirty.addAll(keys);
+					dirty.addAll(pending);
+				}
+				
+				return false;
+			}
+			
+			if(journal != null) { journal.release(segment); }
+			
+			Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Checkpointed "+total+" rows in "+(System.currentTimeMillis() - start)+"ms.");
+			
+			return true;
+		}
+	}
+	
+	/**
+	 * Reads the in-memory rows for a batch of keys.
+	 *
+	 * @param keys the row keys
+	 * @return the row values, with null for rows that no longer exist
+	 */
+	private ArrayList<Object[]> readRows(ArrayList<RowKey> keys) throws SQLException
+	{
+		ArrayList<Object[]> rows = new ArrayList<Object[]>(keys.size());
+		
+		for(RowKey key : keys)
+		{
+			PreparedStatement ps = prepare("SELECT * FROM `"+key.table+"` WHERE "+key.getWhereClause());
+			key.bind(ps);
+			ResultSet rs = ps.executeQuery();
+			
+			Object[] row = null;
+			if(rs.next())
+			{
+				ResultSetMetaData meta = rs.getMetaData();
+				
+				if(!tableColumns.containsKey(key.table))
+				{
+					String[] cols = new String[meta.getColumnCount()];
+					for(int c = 0; c < cols.length; c++) { cols[c] = meta.getColumnName(c + 1); }
+					tableColumns.put(key.table, cols);
+				}
+				
+				row = new Object[meta.getColumnCount()];
+				for(int c = 0; c < row.length; c++) { row[c] = rs.getObject(c + 1); }
+			}
+			rs.close();
+			
+			rows.add(row);
+		}
+		
+		return rows;
+	}
+	
+	/**
+	 * Writes a batch of rows to disk in a single transaction.
+	 *
+	 * @param keys the row keys
+	 * @param rows the row values, with null for rows to delete
+	 */
+	private void writeRows(ArrayList<RowKey> keys, ArrayList<Object[]> rows) throws SQLException
+	{
+		try
+		{
+			for(int i = 0; i < keys.size(); i++)
+			{
+				RowKey key = keys.get(i);
+				Object[] row = rows.get(i);
+				
+				if(row == null)
+				{
+					PreparedStatement ps = diskDeletes.get(key.table);
+					if(ps == null)
+					{
+						ps = diskConn.prepareStatement("DELETE FROM `"+key.table+"` WHERE "+key.getWhereClause());
+						diskDeletes.put(key.table, ps);
+					}
+					
+					key.bind(ps);
+					ps.execute();
+				}
+				else
+				{
+					PreparedStatement ps = diskReplaces.get(key.table);
+					if(ps == null)
+					{
+						String[] cols = tableColumns.get(key.table);
+						StringBuilder sql = new StringBuilder("REPLACE INTO `"+key.table+"` (");
+						for(int c = 0; c < cols.length; c++) { sql.append(c > 0 ? ",`" : "`").append(cols[c]).append("`"); }
+						sql.append(") VALUES (");
+						for(int c = 0; c < cols.length; c++) { sql.append(c > 0 ? ",?" : "?"); }
+						sql.append(");");
+						
+						ps = diskConn.prepareStatement(sql.toString());
+						diskReplaces.put(key.table, ps);
+					}
+					
+					for(int c = 0; c < row.length; c++) { ps.setObject(c + 1, row[c]); }
+					ps.execute();
+				}
+			}
+			
+			diskConn.commit();
+		}
+		catch(SQLException e)
+		{
+			diskConn.rollback();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Gets a compiled statement for the main database connection, compiling
+	 * it on first use. Only use this for SQL text from a fixed set; queries
+	 * built from varying values would fill the cache.
+	 *
+	 * @param sql the SQL text
+	 * @return the statement
+	 */
+	private PreparedStatement prepare(String sql) throws SQLException
+	{
+		return main.prepare(sql);
+	}
+	
+	/**
+	 * Marks a row as changed since the last checkpoint. WAL mode writes
+	 * straight to disk and has nothing to checkpoint.
+	 */
+	private void markDirty(RowKey key)
+	{
+		if(walMode) { return; }
+		
+		dirty.add(key);
+	}
 	
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#shutdown()
@@ -242,18 +720,45 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	@Override
 	public void shutdown()
 	{
-		if(!shutdown && conn != null)
+		synchronized(this)
 		{
-		    shutdown = true;
-		    
-			try {
-			    // Save to disk
-			    this.saveToDisk();
-			    
-				conn.close();
-			} catch (SQLException e) {
-				Dungeonator.GetLogger().severe("Could not close database connection!");
-				e.printStackTrace();
+			if(shutdown || conn == null) { return; }
+			shutdown = true;
+		}
+		
+		// Write out everything that has changed
+		this.checkpoint();
+		
+		synchronized(checkpointLock)
+		{
+			synchronized(this)
+			{
+				if(journal != null) { journal.close(); }
+				
+				// Let queued writes finish before closing the connections
+				if(writer != null)
+				{
+					writer.shutdown();
+					try {
+						writer.awaitTermination(10, TimeUnit.SECONDS);
+					} catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+				}
+				
+				try {
+					if(diskConn != null) { diskConn.close(); }
+					diskConn = null;
+					
+					if(readers != null)
+					{
+						for(Session r : readers) { r.close(); }
+						readers.clear();
+					}
+					
+					main.close();
+				} catch (SQLException e) {
+					Dungeonator.GetLogger().severe("Could not close database connection!");
+					e.printStackTrace();
+				}
 			}
 		}
 	}
@@ -378,6 +883,12 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
                 
                 Dungeonator.GetLogger().info("[Dungeonator]: Library widgets table created.");
             }
+            
+            // Chunk area index for neighborhood lookups; older databases predate it
+            conn.setAutoCommit(false);
+            st = conn.createStatement();
+            st.execute(SqlCreateIndexRoomArea);
+            conn.commit();
         }
     	catch(SQLException e)
         {
@@ -397,6 +908,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonChunk getChunk(String world, int x, int z) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getChunk(r, world, x, z); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonChunk getChunk(Session r, String world, int x, int z) throws DataStoreGetException {
     	PreparedStatement ps = null;
         ResultSet rs = null;
         boolean loaded = false;
@@ -407,7 +925,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get from database
 		try
         {
-        	ps = conn.prepareStatement("SELECT * FROM `"+TblChunks+"` WHERE `world` = ? AND `x` = ? AND `z` = ?");
+        	ps = r.prepare("SELECT * FROM `"+TblChunks+"` WHERE `world` = ? AND `x` = ? AND `z` = ?");
             ps.setString(1, world);
             ps.setInt(2, x);
             ps.setInt(3, z);
@@ -416,6 +934,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             while (rs.next()) {
             	loaded = true;
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] " + e.getMessage()); }
         
@@ -431,35 +950,134 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk)
 	 */
 	@Override
-	public boolean saveChunk(DungeonChunk chunk) throws DataStoreSaveException {
-		boolean success = false;
+	public boolean saveChunk(final DungeonChunk chunk) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("REPLACE INTO `"+TblChunks+"`" +
-	        		"(`world`,`x`,`z`,`type`)" +
-	        		"VALUES (?, ?, ?, ?);");
+		        try
+		        {
+			    	conn.setAutoCommit(false);
+			    	applyChunk(chunk.getWorldName(), chunk.getX(), chunk.getZ(), 0);
+			        conn.commit();
 	        
-	        ps.setString(1, chunk.getWorldName());
-	        ps.setInt(2, chunk.getX());
-	        ps.setInt(3, chunk.getZ());
-	        ps.setInt(4, 0);
-	        ps.execute();
-	        conn.commit();
+			        if(journal != null) { journal.logChunk(chunk.getWorldName(), chunk.getX(), chunk.getZ(), 0); }
 	        
-	        success = true;
-        }
-        catch(Exception e) { e.printStackTrace(); }
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a chunk row.
+	 */
+	private void applyChunk(String world, int x, int z, int type) throws SQLException
+	{
+        PreparedStatement ps = prepare(SqlReplaceChunk);
         
-		return success;
+        ps.setString(1, world);
+        ps.setInt(2, x);
+        ps.setInt(3, z);
+        ps.setInt(4, type);
+        ps.execute();
+        
+        markDirty(new RowKey(TblChunks, world, x, z));
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveGeneratedChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk, com.aranai.dungeonator.dungeonchunk.DungeonRoom[], int)
+	 */
+	@Override
+	public boolean saveGeneratedChunk(final DungeonChunk chunk, final DungeonRoom[] rooms, final int consumedReservations) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				String world = chunk.getWorldName();
+				int x = chunk.getX();
+				int z = chunk.getZ();
+		
+				try
+				{
+					conn.setAutoCommit(false);
+			
+					PreparedStatement ps = prepare(SqlReplaceChunk);
+					ps.setString(1, world);
+					ps.setInt(2, x);
+					ps.setInt(3, z);
+					ps.setInt(4, 0);
+					ps.execute();
+			
+					ps = prepare(SqlReplaceRoom);
+					for(int r = 0; r < rooms.length; r++)
+					{
+						ps.setString(1, world);
+						ps.setInt(2, rooms[r].getX());
+						ps.setInt(3, rooms[r].getY());
+						ps.setInt(4, rooms[r].getZ());
+						ps.setLong(5, rooms[r].getLibraryId());
+						ps.setString(6, rooms[r].getName());
+						ps.addBatch();
+					}
+					ps.executeBatch();
+			
+					if(consumedReservations != 0)
+					{
+						ps = prepare(SqlDeleteReservation);
+						for(int y = 0; y < 16; y++)
+						{
+							if((consumedReservations & (1 << y)) == 0) { continue; }
+					
+							ps.setString(1, world);
+							ps.setInt(2, x);
+							ps.setInt(3, y);
+							ps.setInt(4, z);
+							ps.addBatch();
+						}
+						ps.executeBatch();
+					}
+			
+					conn.commit();
+				}
+				catch(SQLException e)
+				{
+					e.printStackTrace();
+					try { conn.rollback(); } catch (SQLException e2) { e2.printStackTrace(); }
+					return false;
+				}
+		
+				// Track and journal the rows only once they are committed
+				markDirty(new RowKey(TblChunks, world, x, z));
+				if(journal != null) { journal.logChunk(world, x, z, 0); }
+		
+				for(int r = 0; r < rooms.length; r++)
+				{
+					markDirty(new RowKey(TblRooms, world, rooms[r].getX(), rooms[r].getY(), rooms[r].getZ()));
+					if(journal != null) { journal.logRoom(world, rooms[r].getX(), rooms[r].getY(), rooms[r].getZ(), rooms[r].getLibraryId(), rooms[r].getName()); }
+				}
+		
+				for(int y = 0; y < 16; y++)
+				{
+					if((consumedReservations & (1 << y)) == 0) { continue; }
+			
+					markDirty(new RowKey(TblRoomReservations, world, x, y, z));
+					if(journal != null) { journal.logReservationDelete(world, x, y, z); }
+				}
+		
+				return true;
+			}
+		}, false);
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteChunk(com.aranai.dungeonator.dungeonchunk.DungeonChunk)
 	 */
 	@Override
-	public void deleteChunk(DungeonChunk chunk) throws DataStoreDeleteException {
+	public synchronized void deleteChunk(DungeonChunk chunk) throws DataStoreDeleteException {
 		// TODO Auto-generated method stub
 
 	}
@@ -469,13 +1087,20 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoom[] getChunkRooms(String world, int x, int z) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getChunkRooms(r, world, x, z); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonRoom[] getChunkRooms(Session r, String world, int x, int z) throws DataStoreGetException {
 		PreparedStatement ps = null;
         ResultSet rs = null;
         
         DungeonChunk dc = null;
         if(plugin.getChunkManager().isChunkGenerated(world, x, z))
         {
-        	dc = this.getChunk(world, x, z);
+        	dc = getChunk(r, world, x, z);
         }
         else
         {
@@ -487,7 +1112,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get from database
 		try
         {
-        	ps = conn.prepareStatement("SELECT `"+TblRooms+"`.*,`"+TblLibraryRooms+"`.*," +
+        	ps = r.prepare("SELECT `"+TblRooms+"`.*,`"+TblLibraryRooms+"`.*," +
         			" `"+TblRooms+"`.`name` AS 'roomname',`"+TblLibraryRoomSets+"`.`filename` AS 'set_path',`"+TblLibraryRooms+"`.`set_id` AS 'setid'" +
         			" FROM `"+TblRooms+"`" +
         			" LEFT JOIN `"+TblLibraryRooms+"` ON(`"+TblRooms+"`.`library_id`=`"+TblLibraryRooms+"`.`id`)" +
@@ -522,6 +1147,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             		}
             	}
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getChunkRooms: " + e.getMessage()); e.printStackTrace(); }
         
@@ -533,13 +1159,20 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoom getRoom(String world, int x, int y, int z) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getRoom(r, world, x, y, z); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonRoom getRoom(Session r, String world, int x, int y, int z) throws DataStoreGetException {
     	PreparedStatement ps = null;
         ResultSet rs = null;
         
         DungeonChunk dc = null;
         if(plugin.getChunkManager().isChunkGenerated(world, x, z))
         {
-        	dc = this.getChunk(world, x, z);
+        	dc = getChunk(r, world, x, z);
         }
         else
         {
@@ -554,7 +1187,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get from database
 		try
         {
-        	ps = conn.prepareStatement("SELECT *,`"+TblRooms+"`.`name` AS 'roomname' FROM `"+TblRooms+"`" +
+        	ps = r.prepare("SELECT *,`"+TblRooms+"`.`name` AS 'roomname' FROM `"+TblRooms+"`" +
         			" LEFT JOIN `"+TblLibraryRooms+"` ON(`"+TblRooms+"`.`library_id`=`"+TblLibraryRooms+"`.`id`)" +
         			" WHERE `world` = ? AND `x` = ? AND `y` = ? AND `z` = ?");
             ps.setString(1, world);
@@ -580,6 +1213,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             		}
             	}
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getRoom: " + e.getMessage()); e.printStackTrace(); }
         
@@ -587,50 +1221,134 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	}
 
 	/* (non-Javadoc)
-	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoom(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRoomDoorways(java.lang.String, int, int, int, int)
 	 */
 	@Override
-	public boolean saveRoom(DungeonRoom room) throws DataStoreSaveException {
-		DungeonRoom[] rooms = {room};
-		return saveRooms(rooms);
+	public int[][][] getRoomDoorways(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getRoomDoorways(r, world, x1, z1, x2, z2); }
+		} finally { releaseReader(r); }
 	}
 	
-	/* (non-Javadoc)
-	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRooms(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
-	 */
+	private int[][][] getRoomDoorways(Session r, String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		int[][][] doorways = new int[(x2-x1)+1][16][(z2-z1)+1];
+		for(int[][] column : doorways)
+		{
+			for(int[] row : column) { Arrays.fill(row, -1); }
+		}
+		
+		// One range query over the chunk area index for the whole rectangle
+		try
+		{
+			PreparedStatement ps = r.prepare("SELECT `"+TblRooms+"`.`x`,`"+TblRooms+"`.`y`,`"+TblRooms+"`.`z`,`"+TblLibraryRooms+"`.*" +
+					" FROM `"+TblRooms+"`" +
+					" INNER JOIN `"+TblLibraryRooms+"` ON(`"+TblRooms+"`.`library_id`=`"+TblLibraryRooms+"`.`id`)" +
+					" WHERE `world` = ? AND `x` >= ? AND `x` <= ? AND `z` >= ? AND `z` <= ?");
+			ps.setString(1, world);
+			ps.setInt(2, x1);
+			ps.setInt(3, x2);
+			ps.setInt(4, z1);
+			ps.setInt(5, z2);
+			ResultSet rs = ps.executeQuery();
+			
+			while(rs.next())
+			{
+				int mask = 0;
+				for(byte d = Direction.N; d <= Direction.DOWN; d++)
+				{
+					if(rs.getBoolean(ColDoorways.get(d))) { mask |= 1 << d; }
+				}
+				
+				doorways[rs.getInt(1) - x1][rs.getInt(2)][rs.getInt(3) - z1] = mask;
+			}
+			rs.close();
+		}
+		catch(SQLException e) { e.printStackTrace(); throw new DataStoreGetException(e.getMessage(), "getRoomDoorways"); }
+		
+		return doorways;
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoom(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
+	 */
 	@Override
-	public boolean saveRooms(DungeonRoom[] rooms) throws DataStoreSaveException {
-		Statement st = null;
-        
-        try
-        {
-	    	conn.setAutoCommit(false);
-	    	st = conn.createStatement();
+	public boolean saveRoom(DungeonRoom room) throws DataStoreSaveException {
+		DungeonRoom[] rooms = {room};
+		return saveRooms(rooms);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRooms(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
+	 */
+	@Override
+	public boolean saveRooms(final DungeonRoom[] rooms) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				try
+		        {
+			    	conn.setAutoCommit(false);
 	        
-	    	for(int r = 0; r < rooms.length; r++)
-	    	{
-		        st.execute("INSERT INTO `"+TblRooms+"` (`world`,`x`,`y`,`z`,`library_id`,`name`) VALUES (" +
-		        		"'"+rooms[r].getDungeonChunk().getWorldName()+"'," +
-		        		"'"+rooms[r].getX()+"'," +
-		        		"'"+rooms[r].getY()+"'," +
-		        		"'"+rooms[r].getZ()+"'," +
-		        		"'"+rooms[r].getLibraryId()+"'," +
-		        		"'"+rooms[r].getName()+"');");
-	    	}
+			    	PreparedStatement ps = prepare(SqlReplaceRoom);
+			    	for(int r = 0; r < rooms.length; r++)
+			    	{
+			    		ps.setString(1, rooms[r].getDungeonChunk().getWorldName());
+			    		ps.setInt(2, rooms[r].getX());
+			    		ps.setInt(3, rooms[r].getY());
+			    		ps.setInt(4, rooms[r].getZ());
+			    		ps.setLong(5, rooms[r].getLibraryId());
+			    		ps.setString(6, rooms[r].getName());
+			    		ps.addBatch();
+			    	}
+			    	ps.executeBatch();
 	        
-	        conn.commit();
-        }
-        catch(SQLException e) { e.printStackTrace(); return false; }
-        catch(Exception e) { e.printStackTrace(); return false; }
+			        conn.commit();
+		        }
+		        catch(Exception e)
+		        {
+		        	e.printStackTrace();
+		        	try { conn.rollback(); } catch (SQLException e2) { e2.printStackTrace(); }
+		        	return false;
+		        }
+        
+				// Track and journal the rows only once they are committed
+				for(int r = 0; r < rooms.length; r++)
+				{
+					String world = rooms[r].getDungeonChunk().getWorldName();
+					
+					markDirty(new RowKey(TblRooms, world, rooms[r].getX(), rooms[r].getY(), rooms[r].getZ()));
+					if(journal != null) { journal.logRoom(world, rooms[r].getX(), rooms[r].getY(), rooms[r].getZ(), rooms[r].getLibraryId(), rooms[r].getName()); }
+				}
         
-		return true;
+				return true;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a room row.
+	 */
+	private void applyRoom(String world, int x, int y, int z, long libraryId, String name) throws SQLException
+	{
+		PreparedStatement ps = prepare(SqlReplaceRoom);
+		
+		ps.setString(1, world);
+		ps.setInt(2, x);
+		ps.setInt(3, y);
+		ps.setInt(4, z);
+		ps.setLong(5, libraryId);
+		ps.setString(6, name);
+		ps.execute();
+		
+		markDirty(new RowKey(TblRooms, world, x, y, z));
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteRoom(java.lang.String, int, int, int)
 	 */
 	@Override
-	public void deleteRoom(String world, int x, int y, int z) throws DataStoreDeleteException {
+	public synchronized void deleteRoom(String world, int x, int y, int z) throws DataStoreDeleteException {
 		// TODO Auto-generated method stub
 		
 	}
@@ -640,72 +1358,149 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoom getLibraryRoom(long id) throws DataStoreGetException {
-		// TODO Auto-generated method stub
-		return null;
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getLibraryRoom(r, id); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonRoom getLibraryRoom(Session r, long id) throws DataStoreGetException {
+		DungeonRoom room = null;
+		
+		try
+		{
+			PreparedStatement ps = r.prepare("SELECT * FROM `"+TblLibraryRooms+"` WHERE `id` = ?");
+			ps.setLong(1, id);
+			ResultSet rs = ps.executeQuery();
+			
+			if(rs.next())
+			{
+				room = new DungeonRoom();
+				room.setLibraryId(rs.getLong("id"));
+				room.setLibraryRoomSetID(rs.getLong("set_id"));
+				room.setFilename(rs.getString("filename"));
+				room.setName(rs.getString("name"));
+				
+				String themes = rs.getString("themes");
+				if(themes != null && !themes.equals("")) { room.setThemeCSV(themes); }
+				String themeDefault = rs.getString("theme_default");
+				if(themeDefault != null && !themeDefault.equals("")) { room.setDefaultTheme(themeDefault); }
+				
+				// Set doorways
+				for(byte d : Direction.directionValues.values())
+				{
+					String s = ColDoorways.get(d);
+					if(s != null)
+					{
+						room.setDoorway(d, rs.getBoolean(s));
+					}
+				}
+			}
+			rs.close();
+		}
+		catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getLibraryRoom: " + e.getMessage()); e.printStackTrace(); }
+		
+		return room;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveLibraryRoom(com.aranai.dungeonator.dungeonchunk.DungeonRoom)
 	 */
 	@Override
-	public boolean saveLibraryRoom(DungeonRoom room) throws DataStoreSaveException {
-		boolean success = false;
+	public boolean saveLibraryRoom(final DungeonRoom room) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("REPLACE INTO `"+TblLibraryRooms+"`" +
-	        		"(`id`,`set_id`,`filename`,`name`,`door_n`,`door_nne`,`door_ene`,`door_e`,`door_ese`," +
-	        		"`door_sse`,`door_s`,`door_ssw`,`door_wsw`,`door_w`,`door_wnw`,`door_nnw`," +
-	        		"`door_u`,`door_d`, `theme_default`, `themes`)" +
-	        		"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+		        try
+		        {
+			    	conn.setAutoCommit(false);
 	        
-	        // Column # counter
-	        int col = 1;
+			        // Handle set id
+			        DungeonRoomSet roomSet = room.getRoomSet();
+			        long setID = -1;
+			        if(roomSet != null) { setID = roomSet.getLibraryID(); }
 	        
-	        // Handle library id
-	        long libraryId = room.getLibraryId();
-	        if(libraryId > 0) { ps.setLong(col++, libraryId); } else { ps.setNull(col++, java.sql.Types.INTEGER); }
+			        // Pack doorways, one bit per direction
+			        int doorways = 0;
+			        for(byte d = Direction.N; d <= Direction.DOWN; d++)
+			        {
+			        	if(room.hasDoorway(d)) { doorways |= 1 << d; }
+			        }
 	        
-	        // Handle set id
-	        DungeonRoomSet roomSet = room.getRoomSet();
-	        long setID = -1;
-	        if(roomSet != null) { setID = roomSet.getLibraryID(); }
+			        long libraryId = applyLibraryRoom(room.getLibraryId(), setID, room.getFilename(), room.getName(),
+			        		doorways, room.getDefaultTheme(), room.getThemeCSV());
+			        conn.commit();
 	        
-	        ps.setLong(col++, setID);
-	        ps.setString(col++, room.getFilename());
-	        ps.setString(col++, room.getName());
-	        ps.setBoolean(col++, room.hasDoorway(Direction.N));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.NNE));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.ENE));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.E));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.ESE));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.SSE));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.S));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.SSW));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.WSW));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.W));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.WNW));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.NNW));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.UP));
-	        ps.setBoolean(col++, room.hasDoorway(Direction.DOWN));
-	        ps.setString(col++, room.getDefaultTheme());
-	        ps.setString(col++, room.getThemeCSV());
-	        ps.execute();
-	        conn.commit();
+			        // Journal the assigned id so that replay produces the same row
+			        if(journal != null)
+			        {
+			        	journal.logLibraryRoom(libraryId, setID, room.getFilename(), room.getName(),
+			        			doorways, room.getDefaultTheme(), room.getThemeCSV());
+			        }
 	        
-	        success = true;
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a library room row.
+	 *
+	 * @return the library id of the row
+	 */
+	private long applyLibraryRoom(long libraryId, long setID, String filename, String name, int doorways, String themeDefault, String themes) throws SQLException
+	{
+        PreparedStatement ps = prepare("REPLACE INTO `"+TblLibraryRooms+"`" +
+        		"(`id`,`set_id`,`filename`,`name`,`door_n`,`door_nne`,`door_ene`,`door_e`,`door_ese`," +
+        		"`door_sse`,`door_s`,`door_ssw`,`door_wsw`,`door_w`,`door_wnw`,`door_nnw`," +
+        		"`door_u`,`door_d`, `theme_default`, `themes`)" +
+        		"VALUES (?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?, ?);");
+        
+        // Column # counter
+        int col = 1;
+        
+        // Handle library id
+        if(libraryId > 0) { ps.setLong(col++, libraryId); } else { ps.setNull(col++, java.sql.Types.INTEGER); }
+        
+        ps.setLong(col++, setID);
+        ps.setString(col++, filename);
+        ps.setString(col++, name);
+        
+        // Doorway columns are in direction order, N through DOWN
+        for(byte d = Direction.N; d <= Direction.DOWN; d++)
+        {
+        	ps.setBoolean(col++, (doorways & (1 << d)) != 0);
         }
-        catch(Exception e) { e.printStackTrace(); }
         
-		return success;
+        ps.setString(col++, themeDefault);
+        ps.setString(col++, themes);
+        ps.execute();
+        
+        if(libraryId <= 0)
+        {
+        	libraryId = ps.getGeneratedKeys().getLong(1);
+        }
+        
+        markDirty(new RowKey(TblLibraryRooms, libraryId));
+        
+        // The library changed; rebuild the selection index on next use
+        libraryRoomVersion++;
+        libraryRoomIndex = null;
+        
+        return libraryId;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteLibraryRoom(java.lang.String)
 	 */
 	@Override
-	public void deleteLibraryRoom(String hash) throws DataStoreDeleteException {
+	public synchronized void deleteLibraryRoom(String hash) throws DataStoreDeleteException {
 		// TODO Auto-generated method stub
 		
 	}
@@ -715,96 +1510,119 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways) throws DataStoreGetException {
-		ResultSet rs = null;
-		String filename = "";
-		long libraryId = 0;
-		String themes = "DEFAULT";
-		String theme_default = "DEFAULT";
+		return getLibraryRoomRandom(doorways, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomRandom(java.util.Vector, java.util.Random)
+	 */
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, Random random) throws DataStoreGetException {
+		return getLibraryRoomRandom(doorways, null, random);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomRandom(java.util.Vector, java.lang.String, java.util.Random)
+	 */
+	@Override
+	public DungeonRoom getLibraryRoomRandom(Vector<Byte> doorways, String theme, Random random) throws DataStoreGetException {
+		LibraryRoomIndex index = getLibraryRoomIndex();
+		if(index == null) { return null; }
+		
+		if(random == null) { random = this.random; }
+		
+		int required = LibraryRoomIndex.getMask(doorways);
+		LibraryRoomIndex.Entry entry = null;
+		
+		// Prefer the theme, but a room that fits beats a room in the theme
+		if(theme != null) { entry = index.pick(required, theme, random); }
+		if(entry == null) { entry = index.pick(required, random); }
+		
+		if(entry == null)
+		{
+			if(doorways == null)
+			{
+				// Unrecoverable
+				return null;
+			}
+			
+			Dungeonator.GetLogger().info("Random Room: No rooms with matching doorways "+doorways);
+			entry = index.pick(0, random);
+			if(entry == null) { return null; }
+		}
+		
+		if(entry.filename == null || entry.filename.equals("")) { return null; }
+		
+		// Initialize DungeonRoom
 		DungeonRoom room = new DungeonRoom();
+		room.setFilename(entry.filename);
+		room.setLibraryId(entry.id);
 		
-		// Build query string
-		StringBuffer queryDoors = new StringBuffer();
+		// Set theme information
+		room.setThemeCSV(entry.themes);
+		room.setDefaultTheme(entry.defaultTheme);
 		
-		// Exclude set rooms
-		queryDoors.append("WHERE `set_id`=-1");
+		return room;
+	}
+	
+	/**
+	 * Gets the random selection index of the library rooms, building it
+	 * if the library has changed since it was last built.
+	 *
+	 * @return the index, or null if it could not be built
+	 */
+	private LibraryRoomIndex getLibraryRoomIndex()
+	{
+		LibraryRoomIndex index = libraryRoomIndex;
+		if(index != null) { return index; }
 		
-		// Append doorway conditions
-		if(doorways != null && doorways.size() > 0)
+		synchronized(libraryRoomIndexLock)
 		{
-			queryDoors.append(" AND ");
+			index = libraryRoomIndex;
+			if(index != null) { return index; }
 			
-			for(int i = 0; i < doorways.size(); i++)
+			int version = libraryRoomVersion;
+			Vector<LibraryRoomIndex.Entry> rooms = new Vector<LibraryRoomIndex.Entry>();
+			
+			Session r = null;
+			try
 			{
-				queryDoors.append("`"+ColDoorways.get(doorways.get(i))+"`='1'");
-				if(i < doorways.size()-1)
+				r = acquireReader();
+				
+				synchronized(r.lock)
 				{
-					queryDoors.append(" AND ");
+					// Set rooms are only placed through reservations
+					ResultSet rs = r.prepare("SELECT * FROM `"+TblLibraryRooms+"` WHERE `set_id`=-1 ORDER BY `id`;").executeQuery();
+					
+					while(rs.next())
+					{
+						int doorways = 0;
+						for(byte d = Direction.N; d <= Direction.DOWN; d++)
+						{
+							if(rs.getBoolean(ColDoorways.get(d))) { doorways |= 1 << d; }
+						}
+						
+						String themes = rs.getString("themes");
+						String themeDefault = rs.getString("theme_default");
+						
+						rooms.add(new LibraryRoomIndex.Entry(rs.getLong("id"), rs.getString("filename"), doorways,
+								(themes != null && !themes.equals("")) ? themes : "DEFAULT",
+								(themeDefault != null && !themeDefault.equals("")) ? themeDefault : "DEFAULT"));
+					}
+					rs.close();
 				}
 			}
+			catch(Exception e) { e.printStackTrace(); return null; }
+			finally { if(r != null) { releaseReader(r); } }
+			
+			index = new LibraryRoomIndex(rooms);
+			Dungeonator.GetLogger().info("DungeonDataStore(Sqlite) Indexed "+index.size()+" library rooms.");
+			
+			// Keep it only if the library did not change while it was read
+			if(libraryRoomVersion == version) { libraryRoomIndex = index; }
+			
+			return index;
 		}
-		String query = "SELECT * FROM `"+TblLibraryRooms+"` "+queryDoors+" ORDER BY RANDOM() LIMIT 1;";
-		
-		// Get random record
-		try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement(query);
-	        rs = ps.executeQuery();
-	        
-	        int counter = 0;
-	        
-	        while (rs.next())
-            {
-            	// Successfully retrieved the room
-            	filename = rs.getString("filename");
-            	libraryId = rs.getLong("id");
-            	
-            	// Get theme info
-            	String tmpThemes = rs.getString("themes");
-    	        String tmpTheme_default = rs.getString("theme_default");
-    	        
-    	        if(tmpThemes != null && !tmpThemes.equals(""))
-    	        {
-    	        	themes = tmpThemes;
-    	        }
-    	        if(tmpTheme_default != null && !tmpTheme_default.equals(""))
-    	        {
-    	        	theme_default = tmpTheme_default;
-    	        }
-            	
-            	counter++;
-            }
-	        
-	        if(counter == 0)
-	        {
-	        	if(doorways == null)
-	        	{
-	        		// Unrecoverable
-	        		return null;
-	        	}
-	        	
-	        	Dungeonator.GetLogger().info("Random Room: No rows with matching doorways with query:\n"+query);
-	        	conn.commit();
-	        	return getLibraryRoomRandom(null);
-	        }
-	        
-	        conn.commit();
-	        
-	        if(filename.equals("")) { return null; }
-	        
-	        // Initialize DungeonRoom
-	        room.setFilename(filename);
-	        room.setLibraryId(libraryId);
-	        
-	        // Set theme information
-        	room.setThemeCSV(themes);
-        	room.setDefaultTheme(theme_default);
-	        
-	        return room;
-        }
-        catch(Exception e) { e.printStackTrace(); }
-		
-		return null;
 	}
 	
 	/* (non-Javadoc)
@@ -812,6 +1630,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoomSet getRoomSet(String world, int x, int y, int z) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getRoomSet(r, world, x, y, z); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonRoomSet getRoomSet(Session r, String world, int x, int y, int z) throws DataStoreGetException {
     	PreparedStatement ps = null;
         ResultSet rs = null;
         
@@ -820,7 +1645,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get from database
 		try
         {
-        	ps = conn.prepareStatement("SELECT * FROM `"+TblRoomSets+"`" +
+        	ps = r.prepare("SELECT * FROM `"+TblRoomSets+"`" +
         			" LEFT JOIN `"+TblLibraryRoomSets+"` ON(`"+TblRoomSets+"`.`library_id`=`"+TblLibraryRoomSets+"`.`id`)" +
         			" WHERE `world` = ? AND `x` = ? AND `y` = ? AND `z` = ?");
             ps.setString(1, world);
@@ -839,6 +1664,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
         			rs.getInt("library_id") 
             	);
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getRoomSet: " + e.getMessage()); e.printStackTrace(); }
         
@@ -849,78 +1675,124 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveRoomSet(com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
 	 */
 	@Override
-	public boolean saveRoomSet(DungeonRoomSet set) throws DataStoreSaveException {
-		Statement st = null;
-        
-        try
-        {
-	    	conn.setAutoCommit(false);
-	    	st = conn.createStatement();
-	        
-	        st.execute("INSERT INTO `"+TblRoomSets+"` (`world`,`x`,`y`,`z`,`library_id`,`name`) VALUES (" +
-	        		"'"+set.getOriginChunk().getWorldName()+"'," +
-	        		"'"+set.getOriginX()+"'," +
-	        		"'"+set.getOriginY()+"'," +
-	        		"'"+set.getOriginZ()+"'," +
-	        		"'"+set.getLibraryID()+"'," +
-	        		"'"+set.getTitle()+"');");
+	public boolean saveRoomSet(final DungeonRoomSet set) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				try
+		        {
+			    	conn.setAutoCommit(false);
+			    	applyRoomSet(set.getOriginChunk().getWorldName(), set.getOriginX(), set.getOriginY(), set.getOriginZ(),
+			    			set.getLibraryID(), set.getTitle());
+			        conn.commit();
 	        
-	        conn.commit();
-        }
-        catch(SQLException e) { e.printStackTrace(); return false; }
-        catch(Exception e) { e.printStackTrace(); return false; }
+			        if(journal != null)
+			        {
+			        	journal.logRoomSet(set.getOriginChunk().getWorldName(), set.getOriginX(), set.getOriginY(), set.getOriginZ(),
+			        			set.getLibraryID(), set.getTitle());
+			        }
+		        }
+		        catch(SQLException e) { e.printStackTrace(); return false; }
+		        catch(Exception e) { e.printStackTrace(); return false; }
         
-		return true;
+				return true;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a room set row.
+	 */
+	private void applyRoomSet(String world, int x, int y, int z, long libraryId, String name) throws SQLException
+	{
+		PreparedStatement ps = prepare("REPLACE INTO `"+TblRoomSets+"` (`world`,`x`,`y`,`z`,`library_id`,`name`)" +
+				" VALUES (?, ?, ?, ?, ?, ?);");
+		
+		ps.setString(1, world);
+		ps.setInt(2, x);
+		ps.setInt(3, y);
+		ps.setInt(4, z);
+		ps.setLong(5, libraryId);
+		ps.setString(6, name);
+		ps.execute();
+		
+		markDirty(new RowKey(TblRoomSets, world, x, y, z));
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveLibraryRoomSet(com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
 	 */
 	@Override
-	public boolean saveLibraryRoomSet(DungeonRoomSet set) throws DataStoreSaveException {
-		boolean success = false;
+	public boolean saveLibraryRoomSet(final DungeonRoomSet set) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("REPLACE INTO `"+TblLibraryRoomSets+"`" +
-	        		"(`id`,`filename`,`title`,`size_x`,`size_y`,`size_z`)" +
-	        		"VALUES (?, ?, ?, ?, ?, ?);");
+		        try
+		        {
+			    	conn.setAutoCommit(false);
 	        
-	        // Handle library id
-	        long libraryID = set.getLibraryID();
-	        if(libraryID > 0) { ps.setLong(1, libraryID); } else { ps.setNull(1, java.sql.Types.INTEGER); }
+			        long libraryID = applyLibraryRoomSet(set.getLibraryID(), set.getName(), set.getTitle(),
+			        		set.getSizeX(), set.getSizeY(), set.getSizeZ());
+			        conn.commit();
 	        
-	        ps.setString(2, set.getName());
-	        ps.setString(3, set.getTitle());
-	        ps.setInt(4, set.getSizeX());
-	        ps.setInt(5, set.getSizeY());
-	        ps.setInt(6, set.getSizeZ());
+			        // Set the library ID for the room set
+			        set.setLibraryID(libraryID);
 	        
-	        ps.execute();
-	        conn.commit();
+			        if(journal != null && libraryID > 0)
+			        {
+			        	journal.logLibraryRoomSet(libraryID, set.getName(), set.getTitle(), set.getSizeX(), set.getSizeY(), set.getSizeZ());
+			        }
 	        
-	        if(libraryID <= 0)
-	        {
-	        	// Set the library ID for the room set
-	        	libraryID = ps.getGeneratedKeys().getLong(1);
-	        	set.setLibraryID(libraryID);
-	        }
-	        
-	        if(libraryID <= 0)
-	        {
-	        	Dungeonator.GetLogger().severe("Saved RoomSet but got no insert ID.");
-	        }
-	        else
-	        {
-	        	Dungeonator.GetLogger().info("Saved RoomSet and got ID "+libraryID);
-	        }
+			        if(libraryID <= 0)
+			        {
+			        	Dungeonator.GetLogger().severe("Saved RoomSet but got no insert ID.");
+			        }
+			        else
+			        {
+			        	Dungeonator.GetLogger().info("Saved RoomSet and got ID "+libraryID);
+			        }
 	        
-	        success = true;
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+
+	/**
+	 * Writes a library room set row.
+	 *
+	 * @return the library id of the row
+	 */
+	private long applyLibraryRoomSet(long libraryID, String filename, String title, int sizeX, int sizeY, int sizeZ) throws SQLException
+	{
+        PreparedStatement ps = prepare("REPLACE INTO `"+TblLibraryRoomSets+"`" +
+        		"(`id`,`filename`,`title`,`size_x`,`size_y`,`size_z`)" +
+        		"VALUES (?, ?, ?, ?, ?, ?);");
+        
+        // Handle library id
+        if(libraryID > 0) { ps.setLong(1, libraryID); } else { ps.setNull(1, java.sql.Types.INTEGER); }
+        
+        ps.setString(2, filename);
+        ps.setString(3, title);
+        ps.setInt(4, sizeX);
+        ps.setInt(5, sizeY);
+        ps.setInt(6, sizeZ);
+        
+        ps.execute();
+        
+        if(libraryID <= 0)
+        {
+        	libraryID = ps.getGeneratedKeys().getLong(1);
         }
-        catch(Exception e) { e.printStackTrace(); }
         
-		return success;
+        markDirty(new RowKey(TblLibraryRoomSets, libraryID));
+        
+        return libraryID;
 	}
 
 	/* (non-Javadoc)
@@ -928,6 +1800,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonWidget getLibraryWidget(long id) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getLibraryWidget(r, id); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonWidget getLibraryWidget(Session r, long id) throws DataStoreGetException {
 		PreparedStatement ps = null;
         ResultSet rs = null;
         boolean loaded = false;
@@ -937,7 +1816,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get from database
 		try
         {
-        	ps = conn.prepareStatement("SELECT * FROM `"+TblLibraryWidgets+"` WHERE `id` = ?");
+        	ps = r.prepare("SELECT * FROM `"+TblLibraryWidgets+"` WHERE `id` = ?");
             ps.setLong(1, id);
             rs = ps.executeQuery();
              
@@ -951,6 +1830,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             	widget = new DungeonWidget(id, rs.getString("filename"), size, origin);
             	loaded = true;
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] " + e.getMessage()); }
         
@@ -962,13 +1842,60 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		return widget;
 	}
 	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryWidgets()
+	 */
+	@Override
+	public Vector<DungeonWidget> getLibraryWidgets() throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getLibraryWidgets(r); }
+		} finally { releaseReader(r); }
+	}
+	
+	private Vector<DungeonWidget> getLibraryWidgets(Session r) throws DataStoreGetException {
+		Vector<DungeonWidget> widgets = new Vector<DungeonWidget>();
+		
+		try
+		{
+			ResultSet rs = r.prepare("SELECT * FROM `"+TblLibraryWidgets+"` ORDER BY `id`").executeQuery();
+			
+			while(rs.next())
+			{
+				DungeonWidget.Size size = DungeonWidget.Size.GetByCode(rs.getInt("size_class"));
+				BlockVector origin = new BlockVector(rs.getInt("origin_x"), rs.getInt("origin_y"), rs.getInt("origin_z"));
+				
+				widgets.add(new DungeonWidget(rs.getLong("id"), rs.getString("filename"), size, origin));
+			}
+			rs.close();
+		}
+		catch(SQLException e) { e.printStackTrace(); throw new DataStoreGetException(e.getMessage(), "getLibraryWidgets"); }
+		
+		return widgets;
+	}
+	
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRandomLibraryWidget(com.aranai.dungeonator.dungeonchunk.DungeonWidget.Size)
 	 */
 	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size) throws DataStoreGetException
 	{
+		return getRandomLibraryWidget(size, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getRandomLibraryWidget(com.aranai.dungeonator.dungeonchunk.DungeonWidget.Size, java.util.Random)
+	 */
+	public DungeonWidget getRandomLibraryWidget(DungeonWidget.Size size, Random random) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getRandomLibraryWidget(r, size, random); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonWidget getRandomLibraryWidget(Session r, DungeonWidget.Size size, Random random) throws DataStoreGetException {
 		ResultSet rs = null;
-		String query = "SELECT * FROM `"+TblLibraryWidgets+"` WHERE `size_class`='"+size.code()+"' ORDER BY RANDOM() LIMIT 1;";
+		String where = "WHERE `size_class`='"+size.code()+"'";
+		String query = "";
 		String filename = "";
 		long libraryID = -1;
 		BlockVector origin = null;
@@ -976,8 +1903,8 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get random record
 		try
         {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement(query);
+	    	query = "SELECT * FROM `"+TblLibraryWidgets+"` "+where+getRandomRowClause(r, TblLibraryWidgets, where, random)+";";
+	        PreparedStatement ps = r.conn.prepareStatement(query);
 	        rs = ps.executeQuery();
 	        
 	        int counter = 0;
@@ -991,6 +1918,8 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             	
             	counter++;
             }
+	        rs.close();
+	        ps.close();
 	        
 	        if(counter == 0)
 	        {
@@ -1000,11 +1929,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	        if(filename.equals("")) { return null; }
 	        
 	        // Initialize DungeonWidget
-	        DungeonWidget widget = new DungeonWidget(libraryID, filename, size, origin);
-	        
-	        conn.commit();
-	        
-	        return widget;
+	        return new DungeonWidget(libraryID, filename, size, origin);
         }
         catch(Exception e) { e.printStackTrace(); }
 		
@@ -1015,40 +1940,66 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveLibraryWidget(com.aranai.dungeonator.dungeonchunk.DungeonWidget)
 	 */
 	@Override
-	public boolean saveLibraryWidget(DungeonWidget widget) throws DataStoreSaveException {
-		boolean success = false;
+	public boolean saveLibraryWidget(final DungeonWidget widget) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("REPLACE INTO `"+TblLibraryWidgets+"`" +
-	        		"(`id`,`filename`,`size_class`,`origin_x`,`origin_y`,`origin_z`)" +
-	        		"VALUES (?, ?, ?, ?, ?, ?);");
-	        
-	        // Handle library id
-	        long libraryId = widget.getLibraryID();
-	        if(libraryId > 0) { ps.setLong(1, libraryId); } else { ps.setNull(1, java.sql.Types.INTEGER); }
+		        try
+		        {
+			    	conn.setAutoCommit(false);
 	        
-	        // Set filename
-	        ps.setString(2, widget.getFilename());
+			        BlockVector origin = widget.getOrigin();
+			        long libraryId = applyLibraryWidget(widget.getLibraryID(), widget.getFilename(), widget.getSize().code(),
+			        		origin.getBlockX(), origin.getBlockY(), origin.getBlockZ());
+			        conn.commit();
 	        
-	        // Set size class
-	        ps.setInt(3, widget.getSize().code());
+			        if(journal != null)
+			        {
+			        	journal.logLibraryWidget(libraryId, widget.getFilename(), widget.getSize().code(),
+			        			origin.getBlockX(), origin.getBlockY(), origin.getBlockZ());
+			        }
 	        
-	        // Set origin
-	        BlockVector origin = widget.getOrigin();
-	        ps.setInt(4, origin.getBlockX());
-	        ps.setInt(5, origin.getBlockY());
-	        ps.setInt(6, origin.getBlockZ());
-	        
-	        ps.execute();
-	        conn.commit();
-	        
-	        success = true;
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a library widget row.
+	 *
+	 * @return the library id of the row
+	 */
+	private long applyLibraryWidget(long libraryId, String filename, int sizeClass, int originX, int originY, int originZ) throws SQLException
+	{
+        PreparedStatement ps = prepare("REPLACE INTO `"+TblLibraryWidgets+"`" +
+        		"(`id`,`filename`,`size_class`,`origin_x`,`origin_y`,`origin_z`)" +
+        		"VALUES (?, ?, ?, ?, ?, ?);");
+        
+        // Handle library id
+        if(libraryId > 0) { ps.setLong(1, libraryId); } else { ps.setNull(1, java.sql.Types.INTEGER); }
+        
+        ps.setString(2, filename);
+        ps.setInt(3, sizeClass);
+        ps.setInt(4, originX);
+        ps.setInt(5, originY);
+        ps.setInt(6, originZ);
+        
+        ps.execute();
+        
+        if(libraryId <= 0)
+        {
+        	libraryId = ps.getGeneratedKeys().getLong(1);
         }
-        catch(Exception e) { e.printStackTrace(); }
         
-		return success;
+        markDirty(new RowKey(TblLibraryWidgets, libraryId));
+        
+        return libraryId;
 	}
 
 	/* (non-Javadoc)
@@ -1056,6 +2007,13 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public DungeonRoom[][][] getReservedRooms(String world, int x1, int y1, int z1, int x2, int y2, int z2) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getReservedRooms(r, world, x1, y1, z1, x2, y2, z2); }
+		} finally { releaseReader(r); }
+	}
+	
+	private DungeonRoom[][][] getReservedRooms(Session r, String world, int x1, int y1, int z1, int x2, int y2, int z2) throws DataStoreGetException {
 		PreparedStatement ps;
 		ResultSet rs;
 		
@@ -1065,7 +2023,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 		// Get query results
 		try
         {
-        	ps = conn.prepareStatement(
+        	ps = r.prepare(
         			"SELECT `"+TblRoomReservations+"`.*, `"+TblLibraryRooms+"`.*," +
         			" `"+TblLibraryRooms+"`.filename AS 'roomfile',`"+TblLibraryRoomSets+"`.filename AS 'setfolder'" +
         			" FROM `"+TblRoomReservations+"`" +
@@ -1109,6 +2067,7 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             		}
             	}
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getReservedRooms: " + e.getMessage()); e.printStackTrace(); }
 		
@@ -1119,73 +2078,212 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveReservedRoom(java.lang.String, int, int, int, long)
 	 */
 	@Override
-	public boolean saveReservedRoom(String world, int x, int y, int z, long id) throws DataStoreSaveException {
-		boolean success = false;
+	public boolean saveReservedRoom(final String world, final int x, final int y, final int z, final long id) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("REPLACE INTO `"+TblRoomReservations+"`" +
-	        		"(`world`,`x`,`y`,`z`,`library_id`)" +
-	        		"VALUES (?, ?, ?, ?, ?);");
+		        try
+		        {
+			    	conn.setAutoCommit(false);
+			    	applyReservation(world, x, y, z, id);
+			        conn.commit();
 	        
-	        ps.setString(1, world);
-	        ps.setInt(2, x);
-	        ps.setInt(3, y);
-	        ps.setInt(4, z);
-	        ps.setLong(5, id);
-	        ps.execute();
-	        conn.commit();
+			        if(journal != null) { journal.logReservation(world, x, y, z, id); }
 	        
-	        success = true;
-        }
-        catch(Exception e) { e.printStackTrace(); }
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#saveReservedRoomSet(java.lang.String, int, int, int, com.aranai.dungeonator.dungeonchunk.DungeonRoomSet)
+	 */
+	@Override
+	public boolean saveReservedRoomSet(final String world, final int x, final int y, final int z, final DungeonRoomSet set) throws DataStoreSaveException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				try
+				{
+					conn.setAutoCommit(false);
+			
+					PreparedStatement ps = prepare("REPLACE INTO `"+TblRoomReservations+"`" +
+							"(`world`,`x`,`y`,`z`,`library_id`)" +
+							"VALUES (?, ?, ?, ?, ?);");
+			
+					for(int sx = 0; sx < set.getSizeX(); sx++)
+					{
+						for(int sy = 0; sy < set.getSizeY(); sy++)
+						{
+							for(int sz = 0; sz < set.getSizeZ(); sz++)
+							{
+								ps.setString(1, world);
+								ps.setInt(2, x+sx);
+								ps.setInt(3, y+sy);
+								ps.setInt(4, z+sz);
+								ps.setLong(5, set.getLibraryRoomID(sx, sy, sz));
+								ps.addBatch();
+							}
+						}
+					}
+			
+					ps.executeBatch();
+					conn.commit();
+				}
+				catch(SQLException e)
+				{
+					e.printStackTrace();
+					try { conn.rollback(); } catch (SQLException e2) { e2.printStackTrace(); }
+					return false;
+				}
+		
+				// Track and journal the rows only once they are committed
+				for(int sx = 0; sx < set.getSizeX(); sx++)
+				{
+					for(int sy = 0; sy < set.getSizeY(); sy++)
+					{
+						for(int sz = 0; sz < set.getSizeZ(); sz++)
+						{
+							markDirty(new RowKey(TblRoomReservations, world, x+sx, y+sy, z+sz));
+							if(journal != null) { journal.logReservation(world, x+sx, y+sy, z+sz, set.getLibraryRoomID(sx, sy, sz)); }
+						}
+					}
+				}
+		
+				return true;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Writes a room reservation row.
+	 */
+	private void applyReservation(String world, int x, int y, int z, long id) throws SQLException
+	{
+        PreparedStatement ps = prepare("REPLACE INTO `"+TblRoomReservations+"`" +
+        		"(`world`,`x`,`y`,`z`,`library_id`)" +
+        		"VALUES (?, ?, ?, ?, ?);");
         
-		return success;
+        ps.setString(1, world);
+        ps.setInt(2, x);
+        ps.setInt(3, y);
+        ps.setInt(4, z);
+        ps.setLong(5, id);
+        ps.execute();
+        
+        markDirty(new RowKey(TblRoomReservations, world, x, y, z));
 	}
 	
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#deleteReservedRoom(java.lang.String, int, int, int)
 	 */
 	@Override
-	public boolean deleteReservedRoom(String world, int x, int y, int z) throws DataStoreDeleteException {
-		boolean success = false;
+	public boolean deleteReservedRoom(final String world, final int x, final int y, final int z) throws DataStoreDeleteException {
+		return write(new Callable<Boolean>() {
+			public Boolean call() throws Exception
+			{
+				boolean success = false;
         
-        try
-        {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement("DELETE FROM `"+TblRoomReservations+"`" +
-	        		"WHERE `world` = ? AND `x` = ? AND `y` = ? AND `z` = ?;");
+		        try
+		        {
+			    	conn.setAutoCommit(false);
+			    	applyReservationDelete(world, x, y, z);
+			        conn.commit();
 	        
-	        ps.setString(1, world);
-	        ps.setInt(2, x);
-	        ps.setInt(3, y);
-	        ps.setInt(4, z);
-	        ps.execute();
-	        conn.commit();
+			        if(journal != null) { journal.logReservationDelete(world, x, y, z); }
 	        
-	        success = true;
-        }
-        catch(Exception e) { e.printStackTrace(); }
+			        success = true;
+		        }
+		        catch(Exception e) { e.printStackTrace(); }
+        
+				return success;
+			}
+		}, false);
+	}
+	
+	/**
+	 * Deletes a room reservation row.
+	 */
+	private void applyReservationDelete(String world, int x, int y, int z) throws SQLException
+	{
+        PreparedStatement ps = prepare(SqlDeleteReservation);
+        
+        ps.setString(1, world);
+        ps.setInt(2, x);
+        ps.setInt(3, y);
+        ps.setInt(4, z);
+        ps.execute();
         
-		return success;
+        markDirty(new RowKey(TblRoomReservations, world, x, y, z));
+	}
+
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getReservedRoomIds(java.lang.String, int, int, int, int)
+	 */
+	@Override
+	public LongLongMap getReservedRoomIds(String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getReservedRoomIds(r, world, x1, z1, x2, z2); }
+		} finally { releaseReader(r); }
+	}
+	
+	private LongLongMap getReservedRoomIds(Session r, String world, int x1, int z1, int x2, int z2) throws DataStoreGetException {
+		LongLongMap rooms = new LongLongMap();
+		
+		try
+		{
+			PreparedStatement ps = r.prepare(SqlSelectReservationArea);
+			ps.setString(1, world);
+			ps.setInt(2, x1);
+			ps.setInt(3, x2);
+			ps.setInt(4, z1);
+			ps.setInt(5, z2);
+			ResultSet rs = ps.executeQuery();
+			
+			while(rs.next())
+			{
+				long key = DungeonDataManager.GetReservationKey(world, rs.getInt("x"), rs.getInt("y"), rs.getInt("z"));
+				rooms.put(key, rs.getLong("library_id"));
+			}
+			rs.close();
+		}
+		catch(SQLException e)
+		{
+			throw new DataStoreGetException(e.getMessage(), "getReservedRoomIds");
+		}
+		
+		return rooms;
 	}
 
 	/* (non-Javadoc)
 	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getAllReservedRooms(java.lang.String)
 	 */
 	@Override
-	public Hashtable<String, Long> getAllReservedRooms(String world) throws DataStoreGetException {
+	public LongLongMap getAllReservedRooms(String world) throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getAllReservedRooms(r, world); }
+		} finally { releaseReader(r); }
+	}
+	
+	private LongLongMap getAllReservedRooms(Session r, String world) throws DataStoreGetException {
 		PreparedStatement ps;
 		ResultSet rs;
 		
-		// Initialize hashtable
-		Hashtable<String,Long> rooms = new Hashtable<String,Long>();
+		// Initialize map
+		LongLongMap rooms = new LongLongMap();
 		
 		// Get query results
 		try
         {
-        	ps = conn.prepareStatement("SELECT * FROM `"+TblRoomReservations+"`" +
+        	ps = r.prepare("SELECT * FROM `"+TblRoomReservations+"`" +
         			" LEFT JOIN `"+TblLibraryRooms+"` ON(`"+TblRoomReservations+"`.`library_id`=`"+TblLibraryRooms+"`.`id`)" +
         			" WHERE `world` = ?");
             ps.setString(1, world);
@@ -1194,9 +2292,10 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
             while (rs.next())
             {
             	// Successfully retrieved the room
-            	String key = DungeonDataManager.GetReservationKey(rs.getString("world"), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"));
+            	long key = DungeonDataManager.GetReservationKey(rs.getString("world"), rs.getInt("x"), rs.getInt("y"), rs.getInt("z"));
             	rooms.put(key, rs.getLong("library_id"));
             }
+            rs.close();
         }
         catch(Exception e) { Dungeonator.GetLogger().warning("[Dungeonator] SQLiteDungeonDataStore#getReservedRooms: " + e.getMessage()); e.printStackTrace(); }
 		
@@ -1208,70 +2307,276 @@ public class SqliteDungeonDataStore implements IDungeonDataStore {
 	 */
 	@Override
 	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number) throws DataStoreGetException {
-		// Get sets
-		// Get room lists
+		return getLibraryRoomSetsRandom(number, null);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomSetsRandom(int, java.util.Random)
+	 */
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSetsRandom(int number, Random random) throws DataStoreGetException {
+		Vector<DungeonRoomSet> sets = getLibraryRoomSets();
 		
-		ResultSet rs = null;
-		Vector<DungeonRoomSet> rooms = new Vector<DungeonRoomSet>();
+		if(sets.size() == 0)
+		{
+			Dungeonator.GetLogger().info("Random Room Set: No Room Sets Available");
+			return null;
+		}
 		
-		String query = "SELECT * FROM `"+TblLibraryRoomSets+"` ORDER BY RANDOM() LIMIT "+number+";";
+		return new RoomSetCatalog(sets).draw(number, random);
+	}
+	
+	/* (non-Javadoc)
+	 * @see com.aranai.dungeonator.datastore.IDungeonDataStore#getLibraryRoomSets()
+	 */
+	@Override
+	public Vector<DungeonRoomSet> getLibraryRoomSets() throws DataStoreGetException {
+		Session r = acquireReader();
+		try {
+			synchronized(r.lock) { return getLibraryRoomSets(r); }
+		} finally { releaseReader(r); }
+	}
+	
+	private Vector<DungeonRoomSet> getLibraryRoomSets(Session r) throws DataStoreGetException {
+		Vector<DungeonRoomSet> sets = new Vector<DungeonRoomSet>();
+		HashMap<Long,DungeonRoomSet> byID = new HashMap<Long,DungeonRoomSet>();
 		
-		// Get random record
 		try
         {
-	    	conn.setAutoCommit(false);
-	        PreparedStatement ps = conn.prepareStatement(query);
-	        rs = ps.executeQuery();
-	        
-	        int counter = 0;
+	        ResultSet rs = r.prepare("SELECT * FROM `"+TblLibraryRoomSets+"` ORDER BY `id`;").executeQuery();
 	        
 	        while (rs.next())
             {
-            	// Successfully retrieved the room set
-            	String filename = rs.getString("filename");
-            	String title = rs.getString("title");
             	long libraryID = rs.getLong("id");
-            	int sizeX = rs.getInt("size_x");
-            	int sizeY = rs.getInt("size_y");
-            	int sizeZ = rs.getInt("size_z");
-            	
-            	rooms.add(new DungeonRoomSet(filename, title, sizeX, sizeY, sizeZ, 0, 0, 0, libraryID));
+            	DungeonRoomSet set = new DungeonRoomSet(rs.getString("filename"), rs.getString("title"),
+            			rs.getInt("size_x"), rs.getInt("size_y"), rs.getInt("size_z"), 0, 0, 0, libraryID);
             	
-            	counter++;
+            	sets.add(set);
+            	byID.put(libraryID, set);
             }
+	        rs.close();
 	        
-	        if(counter == 0)
-	        {
-	        	Dungeonator.GetLogger().info("Random Room Set: No Room Sets Available");
-	        	conn.commit();
-	        	return null;
-	        }
-	        
-	        conn.commit();
+	        // Fill in the room grids; set room filenames are their x.y.z position in the set
+	        rs = r.prepare("SELECT `id`,`set_id`,`filename` FROM `"+TblLibraryRooms+"` WHERE `set_id` > 0;").executeQuery();
 	        
-	        // Get room list for DungeonRoomSet
-	        for(DungeonRoomSet s : rooms)
+	        while(rs.next())
 	        {
-	        	String roomQuery = "SELECT * FROM `"+TblLibraryRooms+"` WHERE `set_id`="+s.getLibraryID()+";";
-	        	
-	        	ps = conn.prepareStatement(roomQuery);
-	        	rs = ps.executeQuery();
+	        	DungeonRoomSet set = byID.get(rs.getLong("set_id"));
+	        	if(set == null) { continue; }
 	        	
-	        	while(rs.next())
-	        	{
+	        	try {
 	        		String[] coords = rs.getString("filename").split("\\.");
-	        		System.out.println(rs.getString("filename"));
-	        		s.setLibraryRoomID(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), Integer.parseInt(coords[2]), rs.getLong("id"));
+	        		set.setLibraryRoomID(Integer.parseInt(coords[0]), Integer.parseInt(coords[1]), Integer.parseInt(coords[2]), rs.getLong("id"));
+	        	} catch (RuntimeException e) {
+	        		Dungeonator.GetLogger().warning("[Dungeonator] Ignoring set room with bad position: "+rs.getString("filename"));
 	        	}
-	        	
-	        	conn.commit();
 	        }
-	        
-	        return rooms;
+	        rs.close();
         }
-        catch(Exception e) { e.printStackTrace(); }
+        catch(SQLException e) { e.printStackTrace(); throw new DataStoreGetException(e.getMessage(), "getLibraryRoomSets"); }
 		
-		return null;
+		return sets;
 	}
 
+	/**
+	 * Builds the clause that picks one random row from a table.
+	 * 
+	 * Without a random source, SQLite picks the row. With one, the row is
+	 * picked by offset in id order, so the same library and random state
+	 * always produce the same row.
+	 *
+	 * @param r the connection
+	 * @param table the table
+	 * @param where the WHERE clause used for the selection
+	 * @param random the random source, or null
+	 * @return the ORDER BY and LIMIT clause
+	 * @throws SQLException the SQL exception
+	 */
+	private String getRandomRowClause(Session r, String table, String where, Random random) throws SQLException
+	{
+		if(random == null) { return " ORDER BY RANDOM() LIMIT 1"; }
+		
+		PreparedStatement ps = r.conn.prepareStatement("SELECT COUNT(*) FROM `"+table+"` "+where+";");
+		ResultSet rs = ps.executeQuery();
+		int count = rs.next() ? rs.getInt(1) : 0;
+		rs.close();
+		ps.close();
+		
+		int offset = (count > 0) ? random.nextInt(count) : 0;
+		
+		return " ORDER BY `id` LIMIT 1 OFFSET "+offset;
+	}
+	
+	/**
+	 * Applies replayed journal records to the in-memory database without
+	 * journaling them again.
+	 */
+	private class JournalTarget implements MutationJournal.Target {
+		public void applyChunk(String world, int x, int z, int type) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyChunk(world, x, z, type);
+		}
+		
+		public void applyRoom(String world, int x, int y, int z, long libraryId, String name) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyRoom(world, x, y, z, libraryId, name);
+		}
+		
+		public void applyRoomSet(String world, int x, int y, int z, long libraryId, String name) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyRoomSet(world, x, y, z, libraryId, name);
+		}
+		
+		public void applyReservation(String world, int x, int y, int z, long libraryId) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyReservation(world, x, y, z, libraryId);
+		}
+		
+		public void applyReservationDelete(String world, int x, int y, int z) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyReservationDelete(world, x, y, z);
+		}
+		
+		public void applyLibraryRoom(long id, long setId, String filename, String name, int doorways, String themeDefault, String themes) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyLibraryRoom(id, setId, filename, name, doorways, themeDefault, themes);
+		}
+		
+		public void applyLibraryRoomSet(long id, String filename, String title, int sizeX, int sizeY, int sizeZ) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyLibraryRoomSet(id, filename, title, sizeX, sizeY, sizeZ);
+		}
+		
+		public void applyLibraryWidget(long id, String filename, int sizeClass, int originX, int originY, int originZ) throws Exception
+		{
+			SqliteDungeonDataStore.this.applyLibraryWidget(id, filename, sizeClass, originX, originY, originZ);
+		}
+	}
+	
+	/**
+	 * A database connection and its compiled statements.
+	 */
+	private static class Session {
+		final Connection conn;
+		
+		/** Lock to hold while using the connection: the store for the in-memory database, or the session itself */
+		final Object lock;
+		
+		/** Nested leases by the owning thread */
+		int depth = 0;
+		
+		private HashMap<String,PreparedStatement> statements = new HashMap<String,PreparedStatement>();
+		
+		Session(Connection conn, Object lock)
+		{
+			this.conn = conn;
+			this.lock = (lock != null) ? lock : this;
+		}
+		
+		/**
+		 * Gets a compiled statement, compiling it on first use.
+		 */
+		PreparedStatement prepare(String sql) throws SQLException
+		{
+			PreparedStatement ps = statements.get(sql);
+			
+			if(ps == null)
+			{
+				ps = conn.prepareStatement(sql);
+				statements.put(sql, ps);
+			}
+			
+			return ps;
+		}
+		
+		void close() throws SQLException
+		{
+			for(PreparedStatement ps : statements.values()) { ps.close(); }
+			statements.clear();
+			conn.close();
+		}
+	}
+	
+	/**
+	 * Identifies a row for checkpointing: world tables are keyed by
+	 * position, library tables by id.
+	 */
+	private static class RowKey {
+		final String table;
+		final String world;
+		final int x, y, z;
+		final long id;
+		
+		/** Chunk rows */
+		RowKey(String table, String world, int x, int z)
+		{
+			this(table, world, x, Integer.MIN_VALUE, z, 0);
+		}
+		
+		/** Room, room set and reservation rows */
+		RowKey(String table, String world, int x, int y, int z)
+		{
+			this(table, world, x, y, z, 0);
+		}
+		
+		/** Library rows */
+		RowKey(String table, long id)
+		{
+			this(table, null, 0, 0, 0, id);
+		}
+		
+		private RowKey(String table, String world, int x, int y, int z, long id)
+		{
+			this.table = table;
+			this.world = world;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.id = id;
+		}
+		
+		/**
+		 * Gets the WHERE clause matching rows of this key's table.
+		 */
+		String getWhereClause()
+		{
+			if(world == null) { return "`id` = ?"; }
+			if(y == Integer.MIN_VALUE) { return "`world` = ? AND `x` = ? AND `z` = ?"; }
+			return "`world` = ? AND `x` = ? AND `y` = ? AND `z` = ?";
+		}
+		
+		/**
+		 * Binds this key to a statement built from {@link #getWhereClause()}.
+		 */
+		void bind(PreparedStatement ps) throws SQLException
+		{
+			if(world == null) { ps.setLong(1, id); return; }
+			
+			int col = 1;
+			ps.setString(col++, world);
+			ps.setInt(col++, x);
+			if(y != Integer.MIN_VALUE) { ps.setInt(col++, y); }
+			ps.setInt(col++, z);
+		}
+		
+		@Override
+		public boolean equals(Object o)
+		{
+			if(!(o instanceof RowKey)) { return false; }
+			RowKey k = (RowKey)o;
+			return table.equals(k.table) && x == k.x && y == k.y && z == k.z && id == k.id
+				&& (world == null ? k.world == null : world.equals(k.world));
+		}
+		
+		@Override
+		public int hashCode()
+		{
+			int h = table.hashCode();
+			h = h * 31 + (world != null ? world.hashCode() : 0);
+			h = h * 31 + x;
+			h = h * 31 + y;
+			h = h * 31 + z;
+			return h * 31 + (int)(id ^ (id >>> 32));
+		}
+	}
 }
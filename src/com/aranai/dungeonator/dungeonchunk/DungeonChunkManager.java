@@ -1,12 +1,13 @@
 package com.aranai.dungeonator.dungeonchunk;
 
-import java.util.concurrent.ConcurrentHashMap;
-
 import org.bukkit.Chunk;
 
 import com.aranai.dungeonator.Direction;
 import com.aranai.dungeonator.DungeonDataManager;
 import com.aranai.dungeonator.generator.DungeonChunkGenerator;
+import com.aranai.dungeonator.util.CoordKey;
+import com.aranai.dungeonator.util.LongObjectMap;
+import com.aranai.dungeonator.util.WorldRegistry;
 
 /**
  * Handles storage and access for DungeonChunks via a local cache.
@@ -16,11 +17,11 @@ import com.aranai.dungeonator.generator.DungeonChunkGenerator;
  */
 public class DungeonChunkManager {
 	
-	/** Local cache of dungeon chunk information. */
-	private ConcurrentHashMap<String,DungeonChunk> chunkCache;
+	/** Local cache of dungeon chunk information, keyed by chunk hash. Synchronize on it. */
+	private LongObjectMap<DungeonChunk> chunkCache;
 	
-	/** Local cache of generated chunks. */
-	private ConcurrentHashMap<String,Boolean> chunkGeneratedCache;
+	/** Local cache of generated chunks, keyed by chunk hash. Synchronize on it. */
+	private LongObjectMap<Boolean> chunkGeneratedCache;
 	
 	/** DungeonDataManager instance */
 	private DungeonDataManager dataManager;
@@ -34,10 +35,10 @@ public class DungeonChunkManager {
 	public DungeonChunkManager(DungeonDataManager dataManager)
 	{
 		// Initialize the chunk cache
-		chunkCache = new ConcurrentHashMap<String,DungeonChunk>();
+		chunkCache = new LongObjectMap<DungeonChunk>();
 		
 		// Initialize the chunk generated cache
-		chunkGeneratedCache = new ConcurrentHashMap<String,Boolean>();
+		chunkGeneratedCache = new LongObjectMap<Boolean>();
 		
 		// Set the data manager
 		this.dataManager = dataManager;
@@ -66,8 +67,8 @@ public class DungeonChunkManager {
 	public void updateCachedChunk(DungeonChunk chunk)
 	{
 		// Save the chunk to the local chunk cache
-		String hash = this.getChunkHash(chunk.getWorldName(), chunk.getX(), chunk.getZ());
-		chunkCache.put(hash, chunk);
+		long hash = this.getChunkHash(chunk.getWorldName(), chunk.getX(), chunk.getZ());
+		synchronized(chunkCache) { chunkCache.put(hash, chunk); }
 	}
 	
 	/**
@@ -107,7 +108,7 @@ public class DungeonChunkManager {
 	
 	/**
 	 * Gets a cached {@link DungeonChunk} based on world, x and z coordinates
-	 * Convenience alias for {@link #getCachedChunk(String)}.
+	 * Convenience alias for {@link #getCachedChunk(long)}.
 	 *
 	 * @param world the world
 	 * @param x the x coordinate
@@ -127,32 +128,28 @@ public class DungeonChunkManager {
 	 * @return the cached DungeonChunk
 	 * @see #getChunkHash(String, int, int)
 	 */
-	private DungeonChunk getCachedChunk(String hash)
+	private DungeonChunk getCachedChunk(long hash)
 	{
-		if(this.isChunkCached(hash))
-		{
-			return chunkCache.get(hash);
-		}
-		
-		return null;
+		synchronized(chunkCache) { return chunkCache.get(hash); }
 	}
 	
 	/**
 	 * Gets a chunk hash based on world name, x and z coordinates.
+	 * The hash is a packed {@link CoordKey}, so building it does not allocate.
 	 *
 	 * @param world the world name
 	 * @param x the x coordinate
 	 * @param z the z coordinate
 	 * @return the chunk hash
 	 */
-	public String getChunkHash(String world, int x, int z)
+	public long getChunkHash(String world, int x, int z)
 	{
-		return (world+"."+x+"."+z);
+		return CoordKey.chunk(WorldRegistry.getId(world), x, z);
 	}
 	
 	/**
 	 * Checks if the chunk is cached.
-	 * Convenience alias for {@link #isChunkCached(String)}
+	 * Convenience alias for {@link #isChunkCached(long)}
 	 *
 	 * @param world the world name
 	 * @param x the x coordinate for the chunk
@@ -170,9 +167,9 @@ public class DungeonChunkManager {
 	 * @param hash the hash for the chunk
 	 * @return true, if the chunk is cached
 	 */
-	public boolean isChunkCached(String hash)
+	public boolean isChunkCached(long hash)
 	{
-		return (chunkCache.containsKey(hash));
+		synchronized(chunkCache) { return chunkCache.containsKey(hash); }
 	}
 
 	/**
@@ -184,16 +181,17 @@ public class DungeonChunkManager {
 	 * @return true, if a DungeonChunk has already been generated
 	 */
 	public boolean isChunkGenerated(String world, int x, int z) {
-		String hash = this.getChunkHash(world, x, z);
+		long hash = this.getChunkHash(world, x, z);
 		
-		if(chunkGeneratedCache.containsKey(hash))
+		synchronized(chunkGeneratedCache)
 		{
-			return chunkGeneratedCache.get(hash);
+			Boolean cached = chunkGeneratedCache.get(hash);
+			if(cached != null) { return cached; }
 		}
 		
 		boolean generated = (dataManager.getChunk(world, x, z) != null);
 		
-		chunkGeneratedCache.put(hash, generated);
+		synchronized(chunkGeneratedCache) { chunkGeneratedCache.put(hash, generated); }
 		
 		return generated;
 	}
@@ -207,8 +205,8 @@ public class DungeonChunkManager {
 	 */
 	public void setChunkGenerated(String world, int x, int z, boolean generated)
 	{
-		String hash = this.getChunkHash(world, x, z);
-		chunkGeneratedCache.put(hash, generated);
+		long hash = this.getChunkHash(world, x, z);
+		synchronized(chunkGeneratedCache) { chunkGeneratedCache.put(hash, generated); }
 	}
 
 	/**
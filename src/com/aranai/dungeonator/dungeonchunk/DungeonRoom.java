@@ -1,5 +1,6 @@
 package com.aranai.dungeonator.dungeonchunk;
 
+import java.util.Random;
 import java.util.Vector;
 
 import org.bukkit.block.BlockState;
@@ -59,6 +60,12 @@ public class DungeonRoom implements IDungeonRoom {
 	/** Temporary raw block data array */
 	private byte[] tempRawBlockData;
 	
+	/** Precomputed block light from the room's template */
+	private byte[] tempRawBlockLight;
+	
+	/** Compiled tile entities from the room's template */
+	private TileEntityPlan tileEntityPlan;
+	
 	/** The DungeonChunk for this room */
 	private DungeonChunk chunk;
 	
@@ -80,6 +87,9 @@ public class DungeonRoom implements IDungeonRoom {
 	/** Widget Nodes */
 	private Vector<DungeonWidgetNode> nodes;
 	
+	/** True if the room was placed from a room reservation */
+	private boolean reserved = false;
+	
 	public DungeonRoom()
 	{
 		chunk = null;
@@ -499,6 +509,46 @@ public class DungeonRoom implements IDungeonRoom {
 		schematic = s;
 	}
 	
+	/**
+	 * Gets the precomputed block light for the room.
+	 *
+	 * @return the block light array, or null if the room has no template
+	 */
+	public byte[] getRawBlockLight()
+	{
+		return tempRawBlockLight;
+	}
+	
+	/**
+	 * Sets the precomputed block light for the room.
+	 *
+	 * @param blockLight the block light array
+	 */
+	public void setRawBlockLight(byte[] blockLight)
+	{
+		this.tempRawBlockLight = blockLight;
+	}
+	
+	/**
+	 * Gets the compiled tile entities for the room.
+	 *
+	 * @return the tile entity plan, or null if the room has no template
+	 */
+	public TileEntityPlan getTileEntityPlan()
+	{
+		return tileEntityPlan;
+	}
+	
+	/**
+	 * Sets the compiled tile entities for the room.
+	 *
+	 * @param plan the tile entity plan
+	 */
+	public void setTileEntityPlan(TileEntityPlan plan)
+	{
+		tileEntityPlan = plan;
+	}
+	
 	/**
 	 * Gets the tile entities for the room
 	 * 
@@ -576,6 +626,17 @@ public class DungeonRoom implements IDungeonRoom {
 		return allowedThemes.get(Math.min((int) (Math.random() * allowedThemes.size()), allowedThemes.size()));
 	}
 	
+	/**
+	 * Gets a random theme from the allowed themes, using the given random source.
+	 *
+	 * @param random the random source
+	 * @return the theme
+	 */
+	public String getRandomTheme(Random random)
+	{
+		return allowedThemes.get(random.nextInt(allowedThemes.size()));
+	}
+	
 	public void addTheme(String theme)
 	{
 		theme = theme.toUpperCase();
@@ -663,6 +724,18 @@ public class DungeonRoom implements IDungeonRoom {
 	}
 	
 	public void addNodeFromTag(CompoundTag tag) throws DataStoreAssetException
+	{
+		this.addNode(ParseNodeTag(tag));
+	}
+	
+	/**
+	 * Parses a widget node from its schematic tag.
+	 *
+	 * @param tag the tag
+	 * @return the node
+	 * @throws DataStoreAssetException if the tag is malformed
+	 */
+	public static DungeonWidgetNode ParseNodeTag(CompoundTag tag) throws DataStoreAssetException
 	{
 		DungeonWidgetNode tmpNode = null;
 		
@@ -696,7 +769,7 @@ public class DungeonRoom implements IDungeonRoom {
 			throw new DataStoreAssetException("Could not parse widget node from tag.", "DungeonRoom");
 		}
 		
-		this.addNode(tmpNode);
+		return tmpNode;
 	}
 	
 	/**
@@ -814,4 +887,18 @@ public class DungeonRoom implements IDungeonRoom {
 	public void setLibraryRoomSetPath(String libraryRoomSetPath) {
 		this.libraryRoomSetPath = libraryRoomSetPath;
 	}
+
+	/**
+	 * @return true, if the room was placed from a room reservation
+	 */
+	public boolean isReserved() {
+		return reserved;
+	}
+
+	/**
+	 * @param reserved the reserved flag to set
+	 */
+	public void setReserved(boolean reserved) {
+		this.reserved = reserved;
+	}
 }
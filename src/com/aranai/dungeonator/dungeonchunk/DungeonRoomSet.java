@@ -317,6 +317,30 @@ public class DungeonRoomSet {
 		libraryRoomsID[x][y][z] = id;
 	}
 	
+	/**
+	 * Copies the set, including its grid of library room ids.
+	 *
+	 * @return the copy
+	 */
+	public DungeonRoomSet copy()
+	{
+		DungeonRoomSet set = new DungeonRoomSet(name, title, sizeX, sizeY, sizeZ, originX, originY, originZ, libraryID);
+		
+		for(int x = 0; x < sizeX; x++)
+		{
+			for(int y = 0; y < sizeY; y++)
+			{
+				System.arraycopy(libraryRoomsID[x][y], 0, set.libraryRoomsID[x][y], 0, sizeZ);
+			}
+		}
+		
+		set.isLoaded = isLoaded;
+		set.activeID = activeID;
+		set.originChunk = originChunk;
+		
+		return set;
+	}
+	
 	public String toString()
 	{
 		return "{DungeonRoom<"+libraryID+":"+sizeX+","+sizeY+","+sizeZ+">}";
@@ -0,0 +1,69 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * The room set library, loaded with each set's grid of library room ids.
+ *
+ * The catalog is a snapshot and is never modified; a new one is built when
+ * the library changes. Draws hand out copies, so callers may change the
+ * sets they get without affecting the catalog.
+ */
+public class RoomSetCatalog {
+
+	/** The sets, in library id order */
+	private final DungeonRoomSet[] sets;
+
+	/** Random source for unseeded draws */
+	private final Random unseeded = new Random();
+
+	/**
+	 * Builds a catalog.
+	 *
+	 * @param sets the sets, in library id order, with their room ids filled in
+	 */
+	public RoomSetCatalog(Vector<DungeonRoomSet> sets)
+	{
+		this.sets = sets.toArray(new DungeonRoomSet[sets.size()]);
+	}
+
+	/**
+	 * Draws distinct random sets.
+	 *
+	 * @param number the number of sets to draw
+	 * @param random the random source, or null for an unseeded draw
+	 * @return copies of the sets; fewer than requested if the library is smaller
+	 */
+	public Vector<DungeonRoomSet> draw(int number, Random random)
+	{
+		if(random == null) { random = unseeded; }
+
+		int count = Math.min(number, sets.length);
+		Vector<DungeonRoomSet> drawn = new Vector<DungeonRoomSet>(count);
+
+		// Partial Fisher-Yates shuffle over a copy of the set list
+		DungeonRoomSet[] pool = sets.clone();
+		for(int i = 0; i < count; i++)
+		{
+			int j = i + random.nextInt(pool.length - i);
+			DungeonRoomSet tmp = pool[j];
+			pool[j] = pool[i];
+			pool[i] = tmp;
+
+			drawn.add(tmp.copy());
+		}
+
+		return drawn;
+	}
+
+	/**
+	 * Gets the number of sets in the catalog.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return sets.length;
+	}
+}
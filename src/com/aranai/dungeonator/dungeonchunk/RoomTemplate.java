@@ -0,0 +1,155 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import java.util.List;
+import java.util.Vector;
+
+import org.jnbt.ByteArrayTag;
+import org.jnbt.CompoundTag;
+import org.jnbt.ListTag;
+import org.jnbt.Tag;
+
+import com.aranai.dungeonator.datastore.DataStoreAssetException;
+import com.aranai.dungeonator.generator.DungeonLighting;
+
+/**
+ * A room schematic decoded into everything generation needs from it.
+ * The NBT tree itself is not kept. Templates are shared between all rooms
+ * that use the same tile file, so nothing in a template may be modified
+ * after it is built.
+ */
+public class RoomTemplate {
+
+	/** Rough per-object overhead used in size estimates */
+	private static final int OBJECT_OVERHEAD = 16;
+
+	/** Rough size of a decoded widget node */
+	private static final int NODE_SIZE = 64;
+
+	/** The block array */
+	private final byte[] blocks;
+
+	/** The block data array */
+	private final byte[] blockData;
+
+	/** The precomputed block light, one value per byte */
+	private final byte[] blockLight;
+
+	/** The compiled tile entities */
+	private final TileEntityPlan tileEntityPlan;
+
+	/** The widget nodes; copied into each room, never handed out */
+	private final DungeonWidgetNode[] nodes;
+
+	/** The estimated heap size, in bytes */
+	private final int estimatedSize;
+
+	/**
+	 * Builds a template from a room schematic.
+	 *
+	 * @param schematic the schematic
+	 */
+	public RoomTemplate(CompoundTag schematic)
+	{
+		this.blocks = ((ByteArrayTag)schematic.getValue().get("blocks")).getValue();
+		this.blockData = ((ByteArrayTag)schematic.getValue().get("blockData")).getValue();
+		this.blockLight = DungeonLighting.computeRoomBlockLight(blocks);
+		this.tileEntityPlan = TileEntityPlan.compile(schematic);
+		this.nodes = decodeNodes(schematic);
+		this.estimatedSize = OBJECT_OVERHEAD * 5
+			+ blocks.length + blockData.length + blockLight.length
+			+ nodes.length * NODE_SIZE
+			+ tileEntityPlan.getEstimatedSize();
+	}
+
+	/**
+	 * Decodes the widget nodes of a schematic. Nodes that cannot be parsed
+	 * are skipped.
+	 *
+	 * @param schematic the schematic
+	 * @return the nodes
+	 */
+	private static DungeonWidgetNode[] decodeNodes(CompoundTag schematic)
+	{
+		if(!schematic.getValue().containsKey("nodes")) { return new DungeonWidgetNode[0]; }
+
+		List<Tag> tags = ((ListTag)schematic.getValue().get("nodes")).getValue();
+		Vector<DungeonWidgetNode> decoded = new Vector<DungeonWidgetNode>(tags.size());
+
+		for(Tag t : tags)
+		{
+			try { decoded.add(DungeonRoom.ParseNodeTag((CompoundTag)t)); } catch (DataStoreAssetException e) { e.printStackTrace(); }
+		}
+
+		return decoded.toArray(new DungeonWidgetNode[decoded.size()]);
+	}
+
+	/**
+	 * Gets the estimated heap size of the template.
+	 *
+	 * @return the size, in bytes
+	 */
+	public int getEstimatedSize()
+	{
+		return estimatedSize;
+	}
+
+	/**
+	 * Gets the block array.
+	 *
+	 * @return the blocks
+	 */
+	public byte[] getRawBlocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * Gets the block data array.
+	 *
+	 * @return the block data
+	 */
+	public byte[] getRawBlockData()
+	{
+		return blockData;
+	}
+
+	/**
+	 * Gets the precomputed block light.
+	 *
+	 * @return the block light
+	 */
+	public byte[] getRawBlockLight()
+	{
+		return blockLight;
+	}
+
+	/**
+	 * Gets the compiled tile entities.
+	 *
+	 * @return the tile entity plan
+	 */
+	public TileEntityPlan getTileEntityPlan()
+	{
+		return tileEntityPlan;
+	}
+
+	/**
+	 * Applies the template to a room.
+	 *
+	 * @param room the room
+	 */
+	public void applyTo(DungeonRoom room)
+	{
+		room.setRawBlocks(blocks);
+		room.setRawBlockData(blockData);
+		room.setRawBlockLight(blockLight);
+		room.setTileEntityPlan(tileEntityPlan);
+
+		// Rooms number and may change their nodes, so each gets its own
+		room.getNodes().clear();
+		for(DungeonWidgetNode n : nodes)
+		{
+			room.addNode(new DungeonWidgetNode(n.getSize(), n.getPosition(), n.getAttachmentFace(), n.getNodeID()));
+		}
+	}
+}
@@ -0,0 +1,292 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aranai.dungeonator.util.LongObjectMap;
+
+/**
+ * Decoded room templates by library room id and theme id, bounded by an
+ * estimated byte budget and evicted least recently used first.
+ *
+ * A template is loaded by the first thread that misses on it; threads that
+ * miss on the same key while it loads wait for that load instead of
+ * parsing the file again. The tile file path is only worked out on a miss.
+ */
+public class RoomTemplateCache {
+
+	/**
+	 * Loads a template on a cache miss.
+	 */
+	public interface Loader {
+		/**
+		 * Loads a template.
+		 *
+		 * @param room the room, for its file name
+		 * @param setFolder the folder of the room's set, or null if it is not a set room
+		 * @param theme the theme, or null for the default tile
+		 * @return the template, or null if it could not be loaded
+		 */
+		public RoomTemplate load(DungeonRoom room, String setFolder, String theme);
+	}
+
+	/** Bits of the key that hold the theme id */
+	private static final int THEME_BITS = 8;
+
+	/** The loader */
+	private final Loader loader;
+
+	/** Byte budget */
+	private final long maxBytes;
+
+	/** Cached templates, by key */
+	private final LongObjectMap<Node> entries;
+
+	/** Least and most recently used cached templates */
+	private Node oldest, newest;
+
+	/** Loads in progress, by key */
+	private final LongObjectMap<FutureTask<RoomTemplate>> loading;
+
+	/** Estimated size of the cached templates */
+	private long bytes = 0;
+
+	/** Number of gets served from the cache */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of gets that had to load, or wait for a load */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Number of templates loaded */
+	private final AtomicLong loads = new AtomicLong();
+
+	/** Number of templates dropped to stay within the budget */
+	private final AtomicLong evictions = new AtomicLong();
+
+	/**
+	 * Instantiates a cache.
+	 *
+	 * @param loader the loader
+	 * @param maxBytes the byte budget
+	 */
+	public RoomTemplateCache(Loader loader, long maxBytes)
+	{
+		this.loader = loader;
+		this.maxBytes = maxBytes;
+		this.entries = new LongObjectMap<Node>(64);
+		this.loading = new LongObjectMap<FutureTask<RoomTemplate>>();
+	}
+
+	/**
+	 * Gets the cache key for a room tile.
+	 *
+	 * @param libraryId the library room id
+	 * @param themeId the theme id, 0 for the default tile
+	 * @return the key
+	 */
+	public static long getKey(long libraryId, int themeId)
+	{
+		return (libraryId << THEME_BITS) | (themeId & ((1 << THEME_BITS) - 1));
+	}
+
+	/**
+	 * Gets a template, loading it on a miss. Rooms without a library id, and
+	 * themes without an id, are loaded every time rather than cached.
+	 *
+	 * @param themeId the theme id, 0 for the default tile, or -1 if the theme has none
+	 * @param room the room
+	 * @param setFolder the folder of the room's set, or null if it is not a set room
+	 * @param theme the theme, or null for the default tile
+	 * @return the template, or null if it could not be loaded
+	 */
+	public RoomTemplate get(int themeId, final DungeonRoom room, final String setFolder, final String theme)
+	{
+		if(room.getLibraryId() <= 0 || themeId < 0 || themeId >= (1 << THEME_BITS))
+		{
+			misses.incrementAndGet();
+			loads.incrementAndGet();
+			return loader.load(room, setFolder, theme);
+		}
+
+		long key = getKey(room.getLibraryId(), themeId);
+		FutureTask<RoomTemplate> task;
+		boolean owner = false;
+
+		synchronized(this)
+		{
+			Node node = entries.get(key);
+			if(node != null)
+			{
+				unlink(node);
+				link(node);
+				hits.incrementAndGet();
+				return node.template;
+			}
+
+			misses.incrementAndGet();
+
+			task = loading.get(key);
+			if(task == null)
+			{
+				task = new FutureTask<RoomTemplate>(new Callable<RoomTemplate>() {
+					public RoomTemplate call() throws Exception
+					{
+						return loader.load(room, setFolder, theme);
+					}
+				});
+				loading.put(key, task);
+				owner = true;
+			}
+		}
+
+		RoomTemplate template = null;
+
+		// Load outside the lock; other keys can be served meanwhile
+		if(owner)
+		{
+			task.run();
+			loads.incrementAndGet();
+		}
+
+		try {
+			template = task.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (ExecutionException e) { e.getCause().printStackTrace(); }
+
+		if(owner)
+		{
+			synchronized(this)
+			{
+				loading.remove(key);
+				if(template != null) { add(key, template); }
+			}
+		}
+
+		return template;
+	}
+
+	/**
+	 * Adds a template, evicting others until the cache fits its budget.
+	 * Templates larger than the whole budget are not cached.
+	 *
+	 * @param key the key
+	 * @param template the template
+	 */
+	private void add(long key, RoomTemplate template)
+	{
+		if(template.getEstimatedSize() > maxBytes) { return; }
+
+		Node old = entries.remove(key);
+		if(old != null)
+		{
+			unlink(old);
+			bytes -= old.template.getEstimatedSize();
+		}
+
+		Node node = new Node(key, template);
+		entries.put(key, node);
+		link(node);
+		bytes += template.getEstimatedSize();
+
+		while(bytes > maxBytes && oldest != null)
+		{
+			Node victim = oldest;
+			unlink(victim);
+			entries.remove(victim.key);
+			bytes -= victim.template.getEstimatedSize();
+			evictions.incrementAndGet();
+		}
+	}
+
+	/**
+	 * Appends a node as the most recently used.
+	 */
+	private void link(Node node)
+	{
+		node.prev = newest;
+		node.next = null;
+		if(newest != null) { newest.next = node; } else { oldest = node; }
+		newest = node;
+	}
+
+	/**
+	 * Removes a node from the use order.
+	 */
+	private void unlink(Node node)
+	{
+		if(node.prev != null) { node.prev.next = node.next; } else { oldest = node.next; }
+		if(node.next != null) { node.next.prev = node.prev; } else { newest = node.prev; }
+		node.prev = null;
+		node.next = null;
+	}
+
+	/**
+	 * Gets the number of cached templates.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	/**
+	 * Gets the estimated size of the cached templates.
+	 *
+	 * @return the size, in bytes
+	 */
+	public synchronized long getBytes()
+	{
+		return bytes;
+	}
+
+	public long getMaxBytes()
+	{
+		return maxBytes;
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getLoads()
+	{
+		return loads.get();
+	}
+
+	public long getEvictions()
+	{
+		return evictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RoomTemplateCache[size="+size()+", bytes="+getBytes()+"/"+getMaxBytes()+", hits="+getHits()+", misses="+getMisses()
+			+", loads="+getLoads()+", evictions="+getEvictions()+"]";
+	}
+
+	/**
+	 * A cached template, linked in use order.
+	 */
+	private static class Node {
+		final long key;
+		final RoomTemplate template;
+		Node prev, next;
+
+		Node(long key, RoomTemplate template)
+		{
+			this.key = key;
+			this.template = template;
+		}
+	}
+}
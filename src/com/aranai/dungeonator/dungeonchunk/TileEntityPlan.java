@@ -0,0 +1,287 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import java.util.List;
+import java.util.Map;
+import java.util.Vector;
+
+import org.bukkit.block.Block;
+import org.bukkit.block.BlockState;
+import org.bukkit.block.Chest;
+import org.bukkit.block.Dispenser;
+import org.bukkit.block.Furnace;
+import org.bukkit.block.Sign;
+import org.bukkit.inventory.Inventory;
+import org.bukkit.inventory.InventoryHolder;
+import org.bukkit.inventory.ItemStack;
+import org.bukkit.material.MaterialData;
+import org.jnbt.CompoundTag;
+import org.jnbt.IntTag;
+import org.jnbt.ListTag;
+import org.jnbt.StringTag;
+import org.jnbt.Tag;
+
+import com.aranai.dungeonator.Dungeonator;
+
+/**
+ * The tile entities of a room template, compiled once from the schematic's
+ * tileEntities tag into typed records that can be applied to a chunk
+ * without re-reading NBT.
+ *
+ * Item stacks are built once as prototypes and cloned into each inventory.
+ */
+public class TileEntityPlan {
+
+	/**
+	 * Tile entity types understood by the plan.
+	 */
+	public enum Type {
+		SIGN, CHEST, FURNACE, DISPENSER;
+
+		/**
+		 * Gets a type from its schematic name.
+		 *
+		 * @param name the name
+		 * @return the type, or null if unsupported
+		 */
+		public static Type fromName(String name)
+		{
+			for(Type t : values())
+			{
+				if(t.name().equalsIgnoreCase(name)) { return t; }
+			}
+
+			return null;
+		}
+	}
+
+	/**
+	 * A single compiled tile entity.
+	 */
+	public static class Entry {
+		/** The tile entity type */
+		public final Type type;
+
+		/** X coordinate within the chunk */
+		public final int x;
+
+		/** Y coordinate within the room */
+		public final int y;
+
+		/** Z coordinate within the chunk */
+		public final int z;
+
+		/** Sign lines, or null */
+		public final String[] lines;
+
+		/** Inventory slots, or null */
+		public final int[] slots;
+
+		/** Item stack prototypes, parallel to slots, or null */
+		public final ItemStack[] stacks;
+
+		public Entry(Type type, int x, int y, int z, String[] lines, int[] slots, ItemStack[] stacks)
+		{
+			this.type = type;
+			this.x = x;
+			this.y = y;
+			this.z = z;
+			this.lines = lines;
+			this.slots = slots;
+			this.stacks = stacks;
+		}
+	}
+
+	/** An empty plan */
+	public static final TileEntityPlan EMPTY = new TileEntityPlan(new Entry[0]);
+
+	/** The compiled entries */
+	private final Entry[] entries;
+
+	/**
+	 * Instantiates a plan from compiled entries.
+	 *
+	 * @param entries the entries
+	 */
+	private TileEntityPlan(Entry[] entries)
+	{
+		this.entries = entries;
+	}
+
+	/**
+	 * Compiles the tile entities of a room schematic.
+	 *
+	 * @param schematic the schematic
+	 * @return the plan; never null
+	 */
+	public static TileEntityPlan compile(CompoundTag schematic)
+	{
+		if(schematic == null || !schematic.getValue().containsKey("tileEntities")) { return EMPTY; }
+
+		Map<String,Tag> tileEntities = ((CompoundTag)schematic.getValue().get("tileEntities")).getValue();
+		Vector<Entry> compiled = new Vector<Entry>();
+
+		for(Tag t : tileEntities.values())
+		{
+			Entry e = compileEntry(t);
+			if(e != null) { compiled.add(e); }
+		}
+
+		if(compiled.size() == 0) { return EMPTY; }
+
+		return new TileEntityPlan(compiled.toArray(new Entry[compiled.size()]));
+	}
+
+	/**
+	 * Compiles a single tile entity tag.
+	 *
+	 * @param t the tag
+	 * @return the entry, or null if the tag is unsupported
+	 */
+	private static Entry compileEntry(Tag t)
+	{
+		Map<String,Tag> ct = ((CompoundTag)t).getValue();
+		StringTag typeTag = (StringTag)ct.get("type");
+		if(typeTag == null || !ct.containsKey("data")) { return null; }
+
+		Type type = Type.fromName(typeTag.getValue());
+		if(type == null) { return null; }
+
+		Map<String,Tag> data = ((CompoundTag)ct.get("data")).getValue();
+		int x = ((IntTag)data.get("x")).getValue();
+		int y = ((IntTag)data.get("y")).getValue();
+		int z = ((IntTag)data.get("z")).getValue();
+
+		if(type == Type.SIGN)
+		{
+			String[] lines = new String[4];
+			for(int i = 0; i < 4; i++)
+			{
+				StringTag line = (StringTag)data.get("line"+(i+1));
+				lines[i] = (line != null) ? line.getValue() : "";
+			}
+
+			return new Entry(type, x, y, z, lines, null, null);
+		}
+
+		// Chest, furnace or dispenser
+		int[] slots = new int[0];
+		ItemStack[] stacks = new ItemStack[0];
+
+		if(data.containsKey("stacks"))
+		{
+			List<Tag> list = ((ListTag)data.get("stacks")).getValue();
+			slots = new int[list.size()];
+			stacks = new ItemStack[list.size()];
+
+			for(int i = 0; i < list.size(); i++)
+			{
+				Map<String, Tag> c = ((CompoundTag)list.get(i)).getValue();
+
+				int item_type = ((IntTag)c.get("type")).getValue();
+				int item_amount = ((IntTag)c.get("amount")).getValue();
+				int item_damage = ((IntTag)c.get("damage")).getValue();
+				int item_data = ((IntTag)c.get("data")).getValue();
+
+				// The editor does not save enchantments, so there are none to copy
+				ItemStack is = new ItemStack(item_type, item_amount, (short)item_damage);
+				is.setData(new MaterialData(item_type, (byte)item_data));
+
+				slots[i] = ((IntTag)c.get("pos")).getValue();
+				stacks[i] = is;
+			}
+		}
+
+		return new Entry(type, x, y, z, null, slots, stacks);
+	}
+
+	/**
+	 * Checks if the plan has no tile entities.
+	 *
+	 * @return true, if empty
+	 */
+	public boolean isEmpty()
+	{
+		return entries.length == 0;
+	}
+
+	/**
+	 * Gets the number of compiled tile entities.
+	 *
+	 * @return the size
+	 */
+	public int size()
+	{
+		return entries.length;
+	}
+
+	/**
+	 * Gets a rough estimate of the plan's heap size.
+	 *
+	 * @return the size, in bytes
+	 */
+	public int getEstimatedSize()
+	{
+		int size = 16 + entries.length * 48;
+
+		for(Entry e : entries)
+		{
+			if(e.lines != null)
+			{
+				for(String line : e.lines) { size += 40 + (line != null ? line.length() * 2 : 0); }
+			}
+
+			if(e.slots != null) { size += e.slots.length * (4 + 64); }
+		}
+
+		return size;
+	}
+
+	/**
+	 * Applies the plan to a chunk. Container inventories are filled in
+	 * place; only signs need a state update to reach clients.
+	 *
+	 * @param chunk the chunk; must have a handle
+	 * @param yOffset the y offset of the room within the chunk
+	 * @param debug true to log tile entities whose block is missing
+	 * @return the number of tile entities applied
+	 */
+	public int apply(DungeonChunk chunk, int yOffset, boolean debug)
+	{
+		int applied = 0;
+
+		for(Entry e : entries)
+		{
+			Block b = chunk.getHandle().getBlock(e.x, e.y+yOffset, e.z);
+
+			if(b.getTypeId() == 0)
+			{
+				if(debug) { Dungeonator.GetLogger().info("Expected "+e.type+" at "+e.x+","+(e.y+yOffset)+","+e.z+", found AIR."); }
+				continue;
+			}
+
+			BlockState bs = b.getState();
+
+			if(e.type == Type.SIGN)
+			{
+				if(bs instanceof Sign)
+				{
+					Sign s = (Sign)bs;
+					for(int i = 0; i < 4; i++) { s.setLine(i, e.lines[i]); }
+					s.update();
+					applied++;
+				}
+			}
+			else if(bs instanceof Chest || bs instanceof Furnace || bs instanceof Dispenser)
+			{
+				Inventory inv = ((InventoryHolder)bs).getInventory();
+				for(int i = 0; i < e.slots.length; i++)
+				{
+					inv.setItem(e.slots[i], e.stacks[i].clone());
+				}
+				applied++;
+			}
+		}
+
+		return applied;
+	}
+}
@@ -0,0 +1,97 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import org.bukkit.util.BlockVector;
+
+/**
+ * A loaded library widget. Assets are shared by every placement of the
+ * widget, so nothing in an asset may be modified after it is built.
+ */
+public class WidgetAsset {
+
+	/** The library id */
+	private final long libraryID;
+
+	/** The filename */
+	private final String filename;
+
+	/** The size class */
+	private final DungeonWidget.Size size;
+
+	/** The origin (attachment point) */
+	private final BlockVector origin;
+
+	/** The block array */
+	private final byte[] blocks;
+
+	/** The block data array */
+	private final byte[] blockData;
+
+	/**
+	 * Builds an asset from a library widget whose asset file has been loaded.
+	 *
+	 * @param widget the widget
+	 */
+	public WidgetAsset(DungeonWidget widget)
+	{
+		this.libraryID = widget.getLibraryID();
+		this.filename = widget.getFilename();
+		this.size = widget.getSize();
+		this.origin = new BlockVector(widget.getOrigin());
+		this.blocks = widget.getRawBlocks();
+		this.blockData = widget.getRawBlockData();
+	}
+
+	/**
+	 * @return the library id
+	 */
+	public long getLibraryID()
+	{
+		return libraryID;
+	}
+
+	/**
+	 * @return the filename
+	 */
+	public String getFilename()
+	{
+		return filename;
+	}
+
+	/**
+	 * @return the size class
+	 */
+	public DungeonWidget.Size getSize()
+	{
+		return size;
+	}
+
+	/**
+	 * @return the raw blocks
+	 */
+	public byte[] getRawBlocks()
+	{
+		return blocks;
+	}
+
+	/**
+	 * @return the raw block data
+	 */
+	public byte[] getRawBlockData()
+	{
+		return blockData;
+	}
+
+	/**
+	 * Creates a widget instance backed by this asset.
+	 *
+	 * @return the widget
+	 */
+	public DungeonWidget createWidget()
+	{
+		DungeonWidget widget = new DungeonWidget(libraryID, filename, size, new BlockVector(origin));
+		widget.setRawBlocks(blocks);
+		widget.setRawBlockData(blockData);
+
+		return widget;
+	}
+}
@@ -0,0 +1,63 @@
+package com.aranai.dungeonator.dungeonchunk;
+
+import java.util.Random;
+import java.util.Vector;
+
+/**
+ * The library widgets, loaded and grouped by size class for constant-time
+ * random selection. A pool is a snapshot and is never modified; a new one
+ * is built when the library changes.
+ */
+public class WidgetPool {
+
+	/** Assets by size class code, in library id order */
+	private final WidgetAsset[][] pools;
+
+	/**
+	 * Builds a pool.
+	 *
+	 * @param assets the assets, in library id order
+	 */
+	public WidgetPool(Vector<WidgetAsset> assets)
+	{
+		DungeonWidget.Size[] sizes = DungeonWidget.Size.values();
+		pools = new WidgetAsset[sizes.length][];
+
+		for(DungeonWidget.Size size : sizes)
+		{
+			Vector<WidgetAsset> matching = new Vector<WidgetAsset>();
+			for(WidgetAsset a : assets)
+			{
+				if(a.getSize() == size) { matching.add(a); }
+			}
+
+			pools[size.code()] = matching.toArray(new WidgetAsset[matching.size()]);
+		}
+	}
+
+	/**
+	 * Picks a random widget of a size class.
+	 *
+	 * @param size the size class
+	 * @param random the random source
+	 * @return the widget asset, or null if there are none of that size
+	 */
+	public WidgetAsset pick(DungeonWidget.Size size, Random random)
+	{
+		WidgetAsset[] pool = pools[size.code()];
+		if(pool.length == 0) { return null; }
+
+		return pool[random.nextInt(pool.length)];
+	}
+
+	/**
+	 * Gets the number of widgets of a size class.
+	 *
+	 * @param size the size class
+	 * @return the count
+	 */
+	public int getCount(DungeonWidget.Size size)
+	{
+		return pools[size.code()].length;
+	}
+}
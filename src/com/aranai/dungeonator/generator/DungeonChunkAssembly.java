@@ -0,0 +1,259 @@
+package com.aranai.dungeonator.generator;
+
+import java.util.concurrent.CountDownLatch;
+
+import org.bukkit.World;
+
+import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
+
+/**
+ * A single unit of work in the {@link DungeonChunkPipeline}. An assembly
+ * carries a chunk from room selection through to finished block and block
+ * data arrays in chunk column order ((x * 16 + z) * 128 + y), ready to be
+ * wrapped into a native chunk by the server thread.
+ */
+public class DungeonChunkAssembly {
+
+	/** The world. */
+	private final World world;
+
+	/** X coordinate for the chunk. */
+	private final int x;
+
+	/** Z coordinate for the chunk. */
+	private final int z;
+
+	/** Time at which the assembly was requested */
+	private final long requestTime;
+
+	/** True if the assembly was requested ahead of the server asking for it */
+	private volatile boolean speculative;
+
+	/** True if a speculative assembly found nothing to do */
+	private volatile boolean skipped;
+
+	/** The DungeonChunk being assembled */
+	private DungeonChunk chunk;
+
+	/** The selected rooms, or null if selection failed */
+	private DungeonRoom[] rooms;
+
+	/** The assembled block array */
+	private byte[] blocks;
+
+	/** The assembled block data array */
+	private byte[] blockData;
+
+	/** The assembled block light array, one value per byte */
+	private byte[] blockLight;
+
+	/** Released once the block arrays are ready */
+	private final CountDownLatch done = new CountDownLatch(1);
+
+	/**
+	 * Instantiates a new assembly.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param speculative true if the server has not asked for the chunk yet
+	 */
+	public DungeonChunkAssembly(World world, int x, int z, boolean speculative)
+	{
+		this.world = world;
+		this.x = x;
+		this.z = z;
+		this.speculative = speculative;
+		this.requestTime = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets the world.
+	 *
+	 * @return the world
+	 */
+	public World getWorld()
+	{
+		return world;
+	}
+
+	/**
+	 * Gets the x coordinate for the chunk.
+	 *
+	 * @return the x coordinate
+	 */
+	public int getX()
+	{
+		return x;
+	}
+
+	/**
+	 * Gets the z coordinate for the chunk.
+	 *
+	 * @return the z coordinate
+	 */
+	public int getZ()
+	{
+		return z;
+	}
+
+	/**
+	 * Gets the time at which the assembly was requested.
+	 *
+	 * @return the request time
+	 */
+	public long getRequestTime()
+	{
+		return requestTime;
+	}
+
+	/**
+	 * Checks if the assembly was requested speculatively.
+	 *
+	 * @return true, if speculative
+	 */
+	public boolean isSpeculative()
+	{
+		return speculative;
+	}
+
+	/**
+	 * @param speculative the speculative flag to set
+	 */
+	public void setSpeculative(boolean speculative) {
+		this.speculative = speculative;
+	}
+
+	/**
+	 * Checks if the assembly was skipped.
+	 *
+	 * @return true, if skipped
+	 */
+	public boolean isSkipped()
+	{
+		return skipped;
+	}
+
+	/**
+	 * @param skipped the skipped flag to set
+	 */
+	public void setSkipped(boolean skipped) {
+		this.skipped = skipped;
+	}
+
+	/**
+	 * @return the chunk
+	 */
+	public DungeonChunk getChunk() {
+		return chunk;
+	}
+
+	/**
+	 * @param chunk the chunk to set
+	 */
+	public void setChunk(DungeonChunk chunk) {
+		this.chunk = chunk;
+	}
+
+	/**
+	 * @return the rooms
+	 */
+	public DungeonRoom[] getRooms() {
+		return rooms;
+	}
+
+	/**
+	 * @param rooms the rooms to set
+	 */
+	public void setRooms(DungeonRoom[] rooms) {
+		this.rooms = rooms;
+	}
+
+	/**
+	 * Gets the number of rooms selected for the chunk.
+	 *
+	 * @return the room count
+	 */
+	public int getRoomCount()
+	{
+		return (rooms != null) ? rooms.length : 0;
+	}
+
+	/**
+	 * @return the assembled blocks
+	 */
+	public byte[] getBlocks() {
+		return blocks;
+	}
+
+	/**
+	 * @return the assembled block data
+	 */
+	public byte[] getBlockData() {
+		return blockData;
+	}
+
+	/**
+	 * @return the assembled block light, or null if none was computed
+	 */
+	public byte[] getBlockLight() {
+		return blockLight;
+	}
+
+	/**
+	 * @param blockLight the assembled block light to set
+	 */
+	public void setBlockLight(byte[] blockLight) {
+		this.blockLight = blockLight;
+	}
+
+	/**
+	 * Sets the assembled block arrays.
+	 *
+	 * @param blocks the blocks
+	 * @param blockData the block data
+	 */
+	public void setArrays(byte[] blocks, byte[] blockData)
+	{
+		this.blocks = blocks;
+		this.blockData = blockData;
+	}
+
+	/**
+	 * Marks the assembly as finished and releases any waiting threads.
+	 */
+	public void complete()
+	{
+		done.countDown();
+	}
+
+	/**
+	 * Checks if the assembly is finished.
+	 *
+	 * @return true, if the block arrays are ready
+	 */
+	public boolean isDone()
+	{
+		return done.getCount() == 0;
+	}
+
+	/**
+	 * Waits for the assembly to finish. Interrupts are deferred until the
+	 * assembly is ready, since the server cannot continue without the chunk.
+	 */
+	public void await()
+	{
+		boolean interrupted = false;
+
+		while(true)
+		{
+			try {
+				done.await();
+				break;
+			} catch (InterruptedException e) { interrupted = true; }
+		}
+
+		if(interrupted) { Thread.currentThread().interrupt(); }
+	}
+}
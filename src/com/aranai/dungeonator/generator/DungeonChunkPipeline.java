@@ -0,0 +1,685 @@
+package com.aranai.dungeonator.generator;
+
+import java.util.List;
+import java.util.Random;
+import java.util.Vector;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import net.minecraft.server.v1_4_R1.IChunkProvider;
+
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_4_R1.CraftWorld;
+
+import com.aranai.dungeonator.DungeonDataManager;
+import com.aranai.dungeonator.Dungeonator;
+import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
+import com.aranai.dungeonator.dungeonchunk.DungeonRoomType;
+import com.aranai.dungeonator.metrics.GenerationMetrics;
+import com.aranai.dungeonator.metrics.GenerationStage;
+import com.aranai.dungeonator.util.LongObjectMap;
+
+/**
+ * Staged, off-main-thread chunk generation.
+ *
+ * Stage 1 (selection) picks rooms for the chunk, loads their schematics and
+ * saves the result to the data store. It runs on a single worker, because
+ * selection reads the doorways of neighboring chunks and then writes its
+ * own; two adjacent chunks must never be selected at the same time.
+ * Chunks the server is waiting on are selected ahead of speculative ones,
+ * and neighbors ahead of chunks predicted by the {@link PredictiveGenerator}.
+ * Room sets are reserved around each newly selected chunk on the same
+ * worker, after its assembly has been handed on.
+ *
+ * Stage 2 (assembly) copies the room schematics into chunk-sized block and
+ * block data arrays. It has no shared state and runs on a worker pool.
+ *
+ * The server thread only collects finished assemblies via {@link #take}.
+ * Neighboring chunks are requested speculatively with {@link #prefetchAround}
+ * so that, in the common case, their arrays are ready before they are needed.
+ */
+public class DungeonChunkPipeline {
+
+	/** Maximum number of outstanding speculative requests */
+	private static final int MAX_PENDING = 64;
+
+	/** Finished assemblies that have not been collected after this long are dropped */
+	private static final long STALE_MS = 60000;
+
+	/** Selection priority of a chunk the server is waiting on */
+	private static final int PRIORITY_DEMAND = 0;
+
+	/** Selection priority of a neighbor requested ahead of time */
+	private static final int PRIORITY_SPECULATIVE = 1;
+
+	/** Selection priority of a chunk a player is expected to reach */
+	private static final int PRIORITY_PREDICTED = 2;
+
+	/** The Dungeonator instance */
+	private Dungeonator plugin;
+
+	/** Selection stage executor */
+	private ExecutorService selectionExecutor;
+
+	/** Selection tasks that have not started, most urgent first */
+	private PriorityBlockingQueue<Runnable> selectionQueue;
+
+	/** Submission order of selection tasks, to keep each priority first in first out */
+	private final AtomicLong selectionSequence = new AtomicLong();
+
+	/** Assembly stage executor */
+	private ExecutorService assemblyExecutor;
+
+	/** Requested assemblies, keyed by chunk hash. Synchronize on it. */
+	private LongObjectMap<DungeonChunkAssembly> pending;
+
+	/**
+	 * Instantiates the pipeline.
+	 *
+	 * @param plugin the Dungeonator instance
+	 */
+	public DungeonChunkPipeline(Dungeonator plugin)
+	{
+		this.plugin = plugin;
+		this.pending = new LongObjectMap<DungeonChunkAssembly>();
+
+		int assemblyThreads = Math.max(1, Runtime.getRuntime().availableProcessors() - 1);
+
+		this.selectionQueue = new PriorityBlockingQueue<Runnable>();
+		this.selectionExecutor = new ThreadPoolExecutor(1, 1, 0L, TimeUnit.MILLISECONDS, selectionQueue, new WorkerThreadFactory("Dungeonator-Select"));
+		this.assemblyExecutor = Executors.newFixedThreadPool(assemblyThreads, new WorkerThreadFactory("Dungeonator-Assemble"));
+	}
+
+	/**
+	 * Collects the assembly for a chunk, requesting it first if necessary.
+	 * A speculative request that has not started yet is moved to the front
+	 * of the selection queue. Blocks until the block arrays are ready.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the finished assembly
+	 */
+	public DungeonChunkAssembly take(World world, int x, int z)
+	{
+		long key = getKey(world, x, z);
+		DungeonChunkAssembly assembly = request(world, x, z, PRIORITY_DEMAND);
+		if(assembly.isSpeculative()) { promote(assembly); }
+		assembly.await();
+		removePending(key, assembly);
+
+		if(assembly.isSkipped())
+		{
+			// A speculative request found the chunk already generated and
+			// bailed out; the server really does need it, so rebuild it
+			assembly = request(world, x, z, PRIORITY_DEMAND);
+			assembly.await();
+			removePending(key, assembly);
+		}
+
+		purgeStale();
+
+		return assembly;
+	}
+
+	/**
+	 * Speculatively requests the cardinal neighbors of a chunk.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 */
+	public void prefetchAround(World world, int x, int z)
+	{
+		prefetch(world, x-1, z);
+		prefetch(world, x+1, z);
+		prefetch(world, x, z-1);
+		prefetch(world, x, z+1);
+	}
+
+	/**
+	 * Speculatively requests a chunk, if the pipeline has room for it.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return true, if a new request was queued
+	 */
+	public boolean prefetch(World world, int x, int z)
+	{
+		return enqueue(world, x, z, PRIORITY_SPECULATIVE, MAX_PENDING);
+	}
+
+	/**
+	 * Requests a chunk that a player is expected to reach. Predictions are
+	 * selected after every other request, and share the MAX_PENDING limit
+	 * with {@link #prefetch}: they may only fill half of it, so uncollected
+	 * predictions never crowd out the neighbors of chunks being generated.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return true, if a new request was queued
+	 */
+	public boolean predict(World world, int x, int z)
+	{
+		return enqueue(world, x, z, PRIORITY_PREDICTED, MAX_PENDING / 2);
+	}
+
+	/**
+	 * Checks if the selection stage has nothing to do but predictions.
+	 *
+	 * @return true, if no demanded or neighbor selection is waiting
+	 */
+	public boolean isSelectionIdle()
+	{
+		for(Runnable r : selectionQueue)
+		{
+			if(r instanceof SelectionTask && ((SelectionTask)r).priority < PRIORITY_PREDICTED) { return false; }
+		}
+
+		return true;
+	}
+
+	/**
+	 * Gets the number of predicted chunks waiting for selection.
+	 *
+	 * @return the predicted backlog
+	 */
+	public int getPredictedBacklog()
+	{
+		int queued = 0;
+
+		for(Runnable r : selectionQueue)
+		{
+			if(r instanceof SelectionTask && ((SelectionTask)r).priority == PRIORITY_PREDICTED) { queued++; }
+		}
+
+		return queued;
+	}
+
+	/**
+	 * Gets the number of requested assemblies that have not been collected.
+	 *
+	 * @return the pending count
+	 */
+	public int getPendingCount()
+	{
+		synchronized(pending) { return pending.size(); }
+	}
+
+	/**
+	 * Shuts down the workers. Requests that have not started are released
+	 * without rooms; the selection in progress is allowed to finish so that
+	 * its data store writes are not cut off.
+	 */
+	public void shutdown()
+	{
+		// Not shutdownNow(): interrupting the selection worker would abandon
+		// a chunk halfway through claiming its reservations
+		selectionExecutor.shutdown();
+
+		Vector<Runnable> unstarted = new Vector<Runnable>();
+		selectionQueue.drainTo(unstarted);
+		releaseAll(unstarted);
+
+		try {
+			if(!selectionExecutor.awaitTermination(10, TimeUnit.SECONDS))
+			{
+				Dungeonator.GetLogger().warning("[Dungeonator] Chunk selection did not finish before shutdown.");
+			}
+		} catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+
+		releaseAll(assemblyExecutor.shutdownNow());
+
+		try {
+			assemblyExecutor.awaitTermination(5, TimeUnit.SECONDS);
+		} catch (InterruptedException e) { Thread.currentThread().interrupt(); }
+	}
+
+	/**
+	 * Queues a request ahead of the server asking for a chunk, if fewer than
+	 * a limit of requests are pending and the chunk is not requested yet.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param priority the selection priority
+	 * @param limit the pending count at which to give up
+	 * @return true, if a new request was queued
+	 */
+	private boolean enqueue(World world, int x, int z, int priority, int limit)
+	{
+		if(getPendingCount() >= limit)
+		{
+			purgeStale();
+			if(getPendingCount() >= limit) { return false; }
+		}
+
+		long key = getKey(world, x, z);
+		synchronized(pending)
+		{
+			if(pending.containsKey(key)) { return false; }
+		}
+
+		request(world, x, z, priority);
+
+		return true;
+	}
+
+	/**
+	 * Gets an existing request for a chunk, or creates and submits a new one.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param priority the selection priority, PRIORITY_DEMAND if the server is waiting on the chunk
+	 * @return the assembly
+	 */
+	private DungeonChunkAssembly request(World world, int x, int z, int priority)
+	{
+		long key = getKey(world, x, z);
+		DungeonChunkAssembly assembly;
+
+		synchronized(pending)
+		{
+			assembly = pending.get(key);
+			if(assembly != null) { return assembly; }
+
+			assembly = new DungeonChunkAssembly(world, x, z, priority != PRIORITY_DEMAND);
+			pending.put(key, assembly);
+		}
+
+		submit(selectionExecutor, new SelectionTask(assembly, priority));
+
+		return assembly;
+	}
+
+	/**
+	 * Moves a speculative request that the server now needs ahead of the
+	 * other speculative requests. Does nothing if its selection has started.
+	 *
+	 * @param assembly the assembly
+	 */
+	private void promote(DungeonChunkAssembly assembly)
+	{
+		for(Runnable r : selectionQueue)
+		{
+			if(!(r instanceof SelectionTask) || ((SelectionTask)r).assembly != assembly) { continue; }
+
+			// Lost the race with the worker if it is no longer queued
+			if(selectionQueue.remove(r))
+			{
+				assembly.setSpeculative(false);
+				submit(selectionExecutor, new SelectionTask(assembly, PRIORITY_DEMAND));
+			}
+
+			return;
+		}
+	}
+
+	/**
+	 * Reserves room sets around a newly selected chunk. Runs on the selection
+	 * worker, so reservations are serialized with the claims that selection
+	 * makes on reserved rooms.
+	 *
+	 * @param a the assembly
+	 */
+	private void reserveRooms(DungeonChunkAssembly a)
+	{
+		IChunkProvider provider = ((CraftWorld)a.getWorld()).getHandle().chunkProviderServer.chunkProvider;
+		if(!(provider instanceof DungeonChunkProvider)) { return; }
+
+		long startTime = GenerationMetrics.start();
+
+		// The assembly has been handed on; a failure here must not touch it
+		try {
+			((DungeonChunkProvider)provider).reserveRooms(a.getX(), a.getZ());
+		} catch (Exception e) {
+			Dungeonator.GetLogger().severe("[Dungeonator] Room set reservation failed at {"+a.getX()+","+a.getZ()+"}: "+e);
+			e.printStackTrace();
+		}
+
+		plugin.getMetrics().record(a.getWorld().getName(), GenerationStage.RESERVATION, startTime);
+	}
+
+	/**
+	 * Removes a request, unless it has already been replaced by a newer one.
+	 *
+	 * @param key the pending map key
+	 * @param assembly the assembly
+	 */
+	private void removePending(long key, DungeonChunkAssembly assembly)
+	{
+		synchronized(pending)
+		{
+			if(pending.get(key) == assembly) { pending.remove(key); }
+		}
+	}
+
+	/**
+	 * Submits a stage task, releasing its assembly if the pipeline is shut down.
+	 *
+	 * @param executor the stage executor
+	 * @param task the task
+	 */
+	private void submit(ExecutorService executor, StageTask task)
+	{
+		try {
+			executor.execute(task);
+		} catch (RejectedExecutionException e) { task.assembly.complete(); }
+	}
+
+	/**
+	 * Releases the assemblies belonging to tasks that never ran.
+	 *
+	 * @param tasks the tasks
+	 */
+	private void releaseAll(List<Runnable> tasks)
+	{
+		for(Runnable r : tasks)
+		{
+			if(r instanceof StageTask)
+			{
+				((StageTask)r).assembly.complete();
+			}
+		}
+	}
+
+	/**
+	 * Drops finished assemblies that the server never collected. Their rooms
+	 * are already in the data store, so a later request rebuilds them.
+	 */
+	private void purgeStale()
+	{
+		long now = System.currentTimeMillis();
+
+		synchronized(pending)
+		{
+			for(long key : pending.keys())
+			{
+				DungeonChunkAssembly a = pending.get(key);
+				if(a.isDone() && now - a.getRequestTime() > STALE_MS)
+				{
+					pending.remove(key);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Selects rooms for a chunk and saves them. Runs on the selection worker.
+	 *
+	 * @param a the assembly
+	 */
+	private void select(DungeonChunkAssembly a)
+	{
+		long startTime = GenerationMetrics.start();
+
+		GenerationMetrics metrics = plugin.getMetrics();
+		DungeonDataManager dm = plugin.getDataManager();
+		String worldName = a.getWorld().getName();
+
+		DungeonChunk dc = new DungeonChunk(null, DungeonRoomType.BASIC_TILE, a.getX(), a.getZ());
+		dc.setWorld(a.getWorld());
+		a.setChunk(dc);
+
+		DungeonRoom[] rooms = null;
+		boolean reserve = false;
+
+		if(plugin.getChunkManager().isChunkGenerated(worldName, a.getX(), a.getZ()))
+		{
+			if(a.isSpeculative())
+			{
+				// Nothing to do ahead of time
+				a.setSkipped(true);
+				a.complete();
+				return;
+			}
+
+			// The rooms were selected earlier but the server has no copy of
+			// the chunk; rebuild it from the data store instead of re-rolling
+			rooms = dm.getRoomsForChunk(dc);
+
+			if(rooms != null)
+			{
+				for(DungeonRoom r : rooms)
+				{
+					if(r == null) { rooms = null; break; }
+				}
+			}
+
+			metrics.record(worldName, GenerationStage.SELECTION, startTime);
+		}
+		else
+		{
+			// In seeded mode, the rooms depend only on the world seed, the
+			// chunk coordinates and the neighboring doorways
+			Random random = null;
+			if(plugin.seededGeneration)
+			{
+				random = DungeonMath.getChunkRandom(a.getWorld().getSeed(), a.getX(), a.getZ(), DungeonMath.SALT_ROOMS);
+			}
+
+			rooms = dm.getRoomsForNewChunk(dc, random);
+			metrics.record(worldName, GenerationStage.SELECTION, startTime);
+
+			if(rooms != null)
+			{
+				for(int r = 0; r < rooms.length; r++)
+				{
+					// Set location
+					rooms[r].setLocation(a.getX(), r, a.getZ());
+				}
+
+				long startDbTime = GenerationMetrics.start();
+
+				// Save chunk, rooms and used reservations to data store in one transaction
+				dm.saveGeneratedChunk(dc, rooms);
+
+				metrics.record(worldName, GenerationStage.DB_SAVE, startDbTime);
+
+				reserve = true;
+			}
+		}
+
+		a.setRooms(rooms);
+
+		submit(assemblyExecutor, new AssemblyTask(a));
+
+		if(reserve) { reserveRooms(a); }
+	}
+
+	/**
+	 * Copies the room schematics into chunk block arrays. Runs on an assembly worker.
+	 *
+	 * @param a the assembly
+	 */
+	private void assemble(DungeonChunkAssembly a)
+	{
+		byte[] blocks = new byte[32768]; // 16 * 16 * 128
+		byte[] data = new byte[32768];
+		byte[] light = new byte[32768];
+
+		long startTime = GenerationMetrics.start();
+
+		String worldName = a.getWorld().getName();
+		DungeonRoom[] rooms = a.getRooms();
+
+		if(a.getRoomCount() > 0)
+		{
+			boolean[] copied = new boolean[rooms.length];
+
+			for(int r = 0; r < rooms.length; r++)
+			{
+				byte[] tmpBlocks = rooms[r].getRawBlocks();
+				byte[] tmpData = rooms[r].getRawBlockData();
+
+				if(tmpBlocks == null || tmpBlocks.length < DungeonMath.ROOM_SIZE) { continue; }
+				if(tmpData == null || tmpData.length < DungeonMath.ROOM_SIZE) { continue; }
+
+				DungeonMath.copyRoomToChunk(tmpBlocks, blocks, r);
+				DungeonMath.copyRoomToChunk(tmpData, data, r);
+				copied[r] = true;
+			}
+
+			plugin.getMetrics().record(worldName, GenerationStage.ASSEMBLY, startTime);
+
+			// Light the copied rooms, computing it for rooms without a saved copy
+			long startLightTime = GenerationMetrics.start();
+
+			for(int r = 0; r < rooms.length; r++)
+			{
+				if(!copied[r]) { continue; }
+
+				byte[] tmpLight = rooms[r].getRawBlockLight();
+				if(tmpLight == null || tmpLight.length < DungeonMath.ROOM_SIZE)
+				{
+					tmpLight = DungeonLighting.computeRoomBlockLight(rooms[r].getRawBlocks());
+				}
+
+				DungeonMath.copyRoomToChunk(tmpLight, light, r);
+			}
+
+			// Carry light through openings between stacked rooms
+			DungeonLighting.propagateBetweenRooms(blocks, light);
+
+			plugin.getMetrics().record(worldName, GenerationStage.LIGHTING, startLightTime);
+		}
+		else
+		{
+			/*
+			 * Something went wrong; generate flat chunk
+			 */
+
+			int pos = 0;
+			for(int x = 0; x < 16; x++)
+			{
+				for(int z = 0; z < 16; z++)
+				{
+					pos = DungeonMath.getPosFromCoords(x, 0, z);
+					blocks[pos] = 7;										// Set to bedrock
+
+					pos = DungeonMath.getPosFromCoords(x, 1, z);
+					blocks[pos] = 48;										// Set to mossy stone
+				}
+			}
+
+			plugin.getMetrics().record(worldName, GenerationStage.ASSEMBLY, startTime);
+		}
+
+		a.setArrays(blocks, data);
+		a.setBlockLight(light);
+	}
+
+	/**
+	 * Gets the pending map key for a chunk.
+	 *
+	 * @param world the world
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the key
+	 */
+	private long getKey(World world, int x, int z)
+	{
+		return plugin.getChunkManager().getChunkHash(world.getName(), x, z);
+	}
+
+	/**
+	 * Base class for pipeline stage tasks. Guarantees that a failing stage
+	 * still releases its assembly, so the server thread is never left waiting.
+	 */
+	private abstract class StageTask implements Runnable {
+		protected final DungeonChunkAssembly assembly;
+
+		public StageTask(DungeonChunkAssembly assembly)
+		{
+			this.assembly = assembly;
+		}
+
+		@Override
+		public void run()
+		{
+			try {
+				runStage();
+			} catch (Throwable t) {
+				Dungeonator.GetLogger().severe("[Dungeonator] Chunk pipeline failed at {"+assembly.getX()+","+assembly.getZ()+"}: "+t);
+				t.printStackTrace();
+				assembly.setRooms(null);
+				assemble(assembly);
+				assembly.complete();
+			}
+		}
+
+		protected abstract void runStage();
+	}
+
+	/**
+	 * Stage 1: room selection. Ordered by priority, then by submission.
+	 */
+	private class SelectionTask extends StageTask implements Comparable<SelectionTask> {
+		private final int priority;
+		private final long sequence;
+
+		public SelectionTask(DungeonChunkAssembly assembly, int priority)
+		{
+			super(assembly);
+			this.priority = priority;
+			this.sequence = selectionSequence.incrementAndGet();
+		}
+
+		@Override
+		protected void runStage() { select(assembly); }
+
+		@Override
+		public int compareTo(SelectionTask other)
+		{
+			if(priority != other.priority) { return (priority < other.priority) ? -1 : 1; }
+			return (sequence < other.sequence) ? -1 : ((sequence > other.sequence) ? 1 : 0);
+		}
+	}
+
+	/**
+	 * Stage 2: array assembly.
+	 */
+	private class AssemblyTask extends StageTask {
+		public AssemblyTask(DungeonChunkAssembly assembly) { super(assembly); }
+
+		@Override
+		protected void runStage()
+		{
+			assemble(assembly);
+			assembly.complete();
+		}
+	}
+
+	/**
+	 * Creates named daemon worker threads.
+	 */
+	private static class WorkerThreadFactory implements ThreadFactory {
+		private final String name;
+		private final AtomicInteger count = new AtomicInteger();
+
+		public WorkerThreadFactory(String name)
+		{
+			this.name = name;
+		}
+
+		@Override
+		public Thread newThread(Runnable r)
+		{
+			Thread t = new Thread(r, name+"-"+count.incrementAndGet());
+			t.setDaemon(true);
+			t.setPriority(Thread.NORM_PRIORITY - 1);
+			return t;
+		}
+	}
+}
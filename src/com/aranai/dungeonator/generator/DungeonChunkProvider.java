@@ -1,37 +1,37 @@
 package com.aranai.dungeonator.generator;
 
 import java.util.ArrayList;
-import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
-import java.util.Map;
+import java.util.Random;
 import java.util.Vector;
 
 import org.bukkit.World;
 import org.bukkit.util.BlockVector;
 import org.bukkit.util.noise.SimplexOctaveGenerator;
-import org.jnbt.CompoundTag;
-import org.jnbt.ListTag;
-import org.jnbt.Tag;
 
 import net.minecraft.server.v1_4_R1.*;
 import org.bukkit.craftbukkit.v1_4_R1.*;
 
+import com.aranai.dungeonator.Direction;
 import com.aranai.dungeonator.Dungeonator;
-import com.aranai.dungeonator.datastore.DataStoreAssetException;
 import com.aranai.dungeonator.dungeonchunk.DungeonChunk;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomSet;
 import com.aranai.dungeonator.dungeonchunk.DungeonRoomType;
-import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
 import com.aranai.dungeonator.dungeonchunk.DungeonWidgetNode;
+import com.aranai.dungeonator.dungeonchunk.TileEntityPlan;
+import com.aranai.dungeonator.dungeonchunk.WidgetAsset;
+import com.aranai.dungeonator.metrics.GenerationMetrics;
+import com.aranai.dungeonator.metrics.GenerationStage;
 
 public class DungeonChunkProvider implements IChunkProvider {
 
 	private World world;
 	private Dungeonator dungeonator;
 	
-	private HashMap<String,DungeonRoom[]> roomCache = new HashMap<String,DungeonRoom[]>();
+	/** Rooms handed from generation to decoration */
+	private RoomHandoffCache roomCache = new RoomHandoffCache();
 	@SuppressWarnings("unused")
     private static HashSet<Byte> blocksWithData;
 	
@@ -41,7 +41,29 @@ public class DungeonChunkProvider implements IChunkProvider {
 	private double frequency;
 	private int octaves;
 	
-	private boolean debug = true;
+	private boolean debug = false;
+	
+	/**
+	 * Edge cells of each horizontal doorway, as { x1, z1, x2, z2 }, indexed
+	 * by direction. +X is South, -X is North, +Z is West, -Z is East; each
+	 * side is split in thirds, in clockwise order.
+	 */
+	private static final int[][] DOORWAY_CELLS = new int[12][];
+	
+	static {
+		DOORWAY_CELLS[Direction.NNW] = new int[] { 0, 11, 0, 15 };
+		DOORWAY_CELLS[Direction.N] = new int[] { 0, 5, 0, 10 };
+		DOORWAY_CELLS[Direction.NNE] = new int[] { 0, 0, 0, 4 };
+		DOORWAY_CELLS[Direction.ENE] = new int[] { 0, 0, 4, 0 };
+		DOORWAY_CELLS[Direction.E] = new int[] { 5, 0, 10, 0 };
+		DOORWAY_CELLS[Direction.ESE] = new int[] { 11, 0, 15, 0 };
+		DOORWAY_CELLS[Direction.SSE] = new int[] { 15, 0, 15, 4 };
+		DOORWAY_CELLS[Direction.S] = new int[] { 15, 5, 15, 10 };
+		DOORWAY_CELLS[Direction.SSW] = new int[] { 15, 11, 15, 15 };
+		DOORWAY_CELLS[Direction.WSW] = new int[] { 11, 15, 15, 15 };
+		DOORWAY_CELLS[Direction.W] = new int[] { 5, 15, 10, 15 };
+		DOORWAY_CELLS[Direction.WNW] = new int[] { 0, 15, 4, 15 };
+	}
 	
 	public DungeonChunkProvider(World world, long i) {
 		this.world = world;
@@ -89,23 +111,17 @@ public class DungeonChunkProvider implements IChunkProvider {
 		 * Chunk decoration phase
 		 */
 		
-		String hash = "stack-"+arg1+"-"+arg2;
-		
-		long startTime = System.currentTimeMillis();
+		long startTime = GenerationMetrics.start();
 		
 		// Get active rooms for chunk
 		DungeonChunk dc = new DungeonChunk(this.world.getChunkAt(arg1, arg2), DungeonRoomType.BASIC_TILE, arg1, arg2);
 		org.bukkit.Chunk c = dc.getHandle();
 		
-		DungeonRoom[] rooms = null;
-		if(roomCache.containsKey(hash))
+		// Take the rooms handed over by generation; we shouldn't need them again
+		DungeonRoom[] rooms = roomCache.take(arg1, arg2);
+		if(rooms == null)
 		{
-			//System.out.println("Cache hit for "+hash);
-			rooms = roomCache.get(hash);
-		}
-		else
-		{
-			//System.out.println("Not in cache for "+hash);
+			// Never handed over, or evicted; reload from the data store
 			rooms = dungeonator.getDataManager().getRoomsForChunk(dc);
 			
 			if(rooms == null)
@@ -118,6 +134,16 @@ public class DungeonChunkProvider implements IChunkProvider {
 		int pos = 0;
 		//boolean update = false;
 		
+		// Widgets are written straight into the native chunk's sections, which
+		// keeps the height map and sky light current; light from emitters and
+		// the client copy are refreshed once at the end
+		Chunk nmsChunk = ((CraftChunk)c).getHandle();
+		boolean hasSky = !nmsChunk.world.worldProvider.f;
+		boolean stamped = false;
+		Vector<int[]> emitters = new Vector<int[]>();
+		
+		Random random = getChunkRandom(arg1, arg2, DungeonMath.SALT_WIDGETS);
+		
 		for(int r = 0; r < rooms.length; r++)
 		{
 			//byte[] blocks = rooms[r].getRawBlocks();
@@ -143,62 +169,49 @@ public class DungeonChunkProvider implements IChunkProvider {
 			}
 			*/
 			
-			// Handle tile entities
-			CompoundTag schematic = rooms[r].getSchematic();
-			if(schematic != null)
-			{
-				if(schematic.getValue().containsKey("tileEntities"))
-				{
-					Map<String,org.jnbt.Tag> tileEntities = ((CompoundTag)schematic.getValue().get("tileEntities")).getValue();
-					
-					for(org.jnbt.Tag t : tileEntities.values())
-					{
-						dc.addTileEntityFromTag(t, r*8);
-					}
-				}
-			}
-			else
-			{
-			    if(debug) { System.out.println("Unexpected NULL schematic."); }
-			}
+			// Tile entities are applied in one batch once the widgets are in
 			
-			// Populate widgets
-			if(schematic != null && schematic.getValue().containsKey("nodes"))
+			// Populate widgets; the nodes were decoded with the room's template
+			if(!rooms[r].getNodes().isEmpty())
 			{
-				// Add nodes
-				List<Tag> nodes = ((ListTag)schematic.getValue().get("nodes")).getValue();
-				
-				for(Tag t : nodes)
-				{
-					CompoundTag ct = (CompoundTag)t;
-					try { rooms[r].addNodeFromTag(ct); } catch (DataStoreAssetException e) { e.printStackTrace(); }
-				}
-				
 				// Get random widgets
 				for(DungeonWidgetNode node : rooms[r].getNodes())
 				{
-					DungeonWidget w = dungeonator.getDataManager().getRandomWidget(node.getSize());
+					WidgetAsset w = dungeonator.getDataManager().getRandomWidgetAsset(node.getSize(), dungeonator.seededGeneration ? random : null);
 					
 					if(w != null)
 					{
 						// Add widget
 						BlockVector tmpPos = node.getPosition();
-						w.setPosition(tmpPos);
 						byte[] tmpRawBlocks = w.getRawBlocks();
 						byte[] tmpRawBlockData = w.getRawBlockData();
 						
-						for(int x = 0; x < w.getSize().bound(); x++)
+						int bound = w.getSize().bound();
+						int baseX = tmpPos.getBlockX();
+						int baseY = tmpPos.getBlockY()+(r*8);
+						int baseZ = tmpPos.getBlockZ();
+						
+						for(int x = 0; x < bound; x++)
 						{
-							for(int y = 0; y < w.getSize().bound(); y++)
+							for(int y = 0; y < bound; y++)
 							{
-								for(int z = 0; z < w.getSize().bound(); z++)
+								for(int z = 0; z < bound; z++)
 								{
 									pos = DungeonMath.getWidgetPosFromCoords(x, y, z, w.getSize());
-									c.getBlock(
-										x+tmpPos.getBlockX(),
-										y+tmpPos.getBlockY()+(r*8),
-										z+tmpPos.getBlockZ()
-									).setTypeIdAndData(tmpRawBlocks[pos], tmpRawBlockData[pos], true);
+									int id = tmpRawBlocks[pos] & 0xFF;
+									
+									// Air in a widget means "leave the room alone"
+									if(id == 0) { continue; }
+									
+									if(DungeonChunkWriter.setBlock(nmsChunk, hasSky, x+baseX, y+baseY, z+baseZ, id, tmpRawBlockData[pos] & 0xF))
+									{
+										stamped = true;
+										
+										if(Block.lightEmission[id] > 0)
+										{
+											emitters.add(new int[] { x+baseX, y+baseY, z+baseZ });
+										}
+									}
 								}
 							}
 						}
@@ -207,159 +220,113 @@ public class DungeonChunkProvider implements IChunkProvider {
 			}
 		}
 		
-		//((org.bukkit.craftbukkit.CraftChunk)c).getHandle().initLighting();
+		long startLightTime = GenerationMetrics.start();
+		
+		// Room light is precomputed per template; let it through doorways
+		// into neighboring chunks, and theirs into ours
+		for(int r = 0; r < rooms.length; r++)
+		{
+			relightRoomDoorways(nmsChunk, rooms[r], r*8, arg1, arg2);
+		}
 		
-		// Remove from cache; we shouldn't need it again
-		if(roomCache.containsKey(hash))
+		// Spread the light of stamped emitters; the rest of the chunk keeps its precomputed light
+		for(int[] e : emitters)
 		{
-			roomCache.remove(hash);
+			nmsChunk.world.c(EnumSkyBlock.BLOCK, (arg1 << 4) + e[0], e[1], (arg2 << 4) + e[2]);
 		}
 		
-		if(debug) { System.out.println("Decoration Time {"+arg0+","+arg1+"}: "+((System.currentTimeMillis()-startTime))+" ms"); }
+		dungeonator.getMetrics().record(world.getName(), GenerationStage.LIGHTING, startLightTime);
+		
+		if(stamped)
+		{
+			this.world.refreshChunk(arg1, arg2);
+		}
+		
+		// Handle tile entities for all rooms, using each template's compiled plan
+		for(int r = 0; r < rooms.length; r++)
+		{
+			TileEntityPlan plan = rooms[r].getTileEntityPlan();
+			
+			if(plan == null)
+			{
+				// Room did not come from a template; compile from its schematic
+				plan = TileEntityPlan.compile(rooms[r].getSchematic());
+			}
+			
+			plan.apply(dc, r*8, debug);
+		}
+		
+		//((org.bukkit.craftbukkit.CraftChunk)c).getHandle().initLighting();
+		
+		dungeonator.getMetrics().record(world.getName(), GenerationStage.DECORATION, startTime);
 	}
 
 	@Override
 	public Chunk getOrCreateChunk(int arg0, int arg1) {
-		long startTime = System.currentTimeMillis();
-		long startDbTime = 0;
-		long dbTime = 0;
+		long startTime = GenerationMetrics.start();
 		
 		net.minecraft.server.v1_4_R1.World mw = ((CraftWorld)this.world).getHandle();
 		
-		// Get rooms from the data manager
-		DungeonChunk dc = new DungeonChunk(null, DungeonRoomType.BASIC_TILE, arg0, arg1);
-		dc.setWorld(world);
-		
-		startDbTime = System.currentTimeMillis();
-		DungeonRoom[] rooms = dungeonator.getDataManager().getRoomsForNewChunk(dc);
-		dbTime += (System.currentTimeMillis()-startDbTime);
+		// Collect the assembled chunk from the pipeline. Room selection and
+		// block array assembly happen on worker threads; if the chunk was not
+		// requested ahead of time, this queues it and waits for it.
+		DungeonChunkAssembly assembly = dungeonator.getChunkPipeline().take(this.world, arg0, arg1);
+		DungeonRoom[] rooms = assembly.getRooms();
 		
-		int roomCount = (rooms != null) ? rooms.length : 0;
+		int roomCount = assembly.getRoomCount();
 		
 		if(debug) { System.out.println("Call to getOrCreateChunk("+arg0+","+arg1+"), found "+roomCount+" rooms."); }
 		
-		/*
-		 * Initialize
-		 */
-		byte[] blocks = new byte[16*16*128];
-		
-		/*
-		 * Copy room data to chunk
-		 */
-		
-		int tmp;
-		int tmp2;
+		byte[] tmpBlocks2 = assembly.getBlocks();
+		byte[] tmpData2 = assembly.getBlockData();
 		
-		byte[] tmpBlocks2 = new byte[32768]; // 16 * 16 * 128
-		byte[] tmpData2 = new byte[32768];
+		if(tmpBlocks2 == null || tmpData2 == null)
+		{
+			// Pipeline was shut down before the chunk was assembled
+			tmpBlocks2 = new byte[32768];
+			tmpData2 = new byte[32768];
+		}
 		
 		if(roomCount > 0)
 		{
-			for(int r = 0; r < rooms.length; r++)
-			{
-				// Set location
-				rooms[r].setLocation(arg0, r, arg1);
-				
-				byte[] tmpBlocks = rooms[r].getRawBlocks();
-				byte[] tmpData = rooms[r].getRawBlockData();
-				
-				for(int y = 0; y < 8; y++)
-                {
-    				for(int x = 0; x < 16; x++)
-    				{
-    					for(int z = 0; z < 16; z++)
-    					{
-    					    tmp = DungeonMath.getRoomPosFromCoords(x, y, z);
-    					    tmp2 = (x * 16 + z) * 128 + (r * 8) + y;
-    					    tmpBlocks2[tmp2] = tmpBlocks[tmp];
-    					    tmpData2[tmp2] = tmpData[tmp];
-						}
-					}
-				}
-			}
-			
-			// Save chunk to data store
-			startDbTime = System.currentTimeMillis();
-	        dungeonator.getDataManager().saveChunk(dc);
-	        dbTime += (System.currentTimeMillis()-startDbTime);
-			
-			// Save rooms to data store
-			startDbTime = System.currentTimeMillis();
-	        dungeonator.getDataManager().saveRooms(rooms);
-	        String hash = "stack-"+arg0+"-"+arg1;
-	        //System.out.println("Adding hash "+hash);
-	        roomCache.put(hash, rooms);
-	        dbTime += (System.currentTimeMillis()-startDbTime);
+			roomCache.put(arg0, arg1, rooms);
 		}
 		else
 		{
-			/*
-			 * Something went wrong; generate flat chunk
-			 */
-			
-		    System.out.println("No rooms available, flattening.");
-		
-			int pos = 0;
-			for(int x = 0; x < 16; x++)
-			{
-				for(int z = 0; z < 16; z++)
-				{
-					pos = (x & 0xF) << 11 | (z & 0xF) << 7 | (0 & 0x7F);	// Converts X,Y,Z coordinates to an array index
-																			// My math notes because this kicked my ass for a while:
-																			// (x & 0xF) 	= x & 16				Bitwise AND
-																			// x2 << 11 	= x2^11					Bitshift left (exponent)
-																			// (z & 0xF) 	= z & 16				Bitwise AND
-																			// z2 << 7 		= z2^7					Bitshift left (exponent)
-																			// (0 & 0x7F) 	= 0 & 128 = 0			Bitwise AND with 127 (all 1's)
-																			//										Does nothing here; would normally ensure that larger values were clipped to 8 bits
-																			// x3 | z3 | 0 	= bitwise OR of X,Z,Y
-					
-					blocks[pos] = 7;										// Set to bedrock
-					
-					pos = (x & 0xF) << 11 | (z & 0xF) << 7 | (1 & 0x7F);
-					blocks[pos] = 48;										// Set to mossy stone
-				}
-			}
+			dungeonator.getMetrics().countFlattened(world.getName());
+			if(debug) { Dungeonator.GetLogger().info("No rooms available at {"+arg0+","+arg1+"}, flattening."); }
 		}
 		
-		// Create Chunk
-		Chunk chunk = new Chunk(mw, tmpBlocks2, arg0, arg1);
-		chunk.initLighting();
-		
-		// Update sections
-		for(int y = 127; y >= 0; y--)
-		{
-		    for(int x = 0; x < 16; x++)
-		    {
-		        for(int z = 0; z < 16; z++)
-		        {
-		            tmp = (x * 16 + z) * 128 + y;
-		            if(tmpData2[tmp] > 0)
-		            {
-		                chunk.a(x,y,z,tmpBlocks2[tmp],tmpData2[tmp]);
-		            }
-		        }
-		    }
-		}
+		// Create Chunk, writing blocks, data and precomputed light straight into its sections
+		Chunk chunk = DungeonChunkWriter.createChunk(mw, tmpBlocks2, tmpData2, assembly.getBlockLight(), arg0, arg1);
         
-        if(debug) { System.out.println("Generation Time {"+arg0+","+arg1+"}: "+((System.currentTimeMillis()-startTime))+" ms, DB Time "+dbTime+" milliseconds"); }
+        // Queue up the neighbors so they are ready when the server asks for them
+        dungeonator.getChunkPipeline().prefetchAround(this.world, arg0, arg1);
         
-        // Handle new room reservation
-        reserveRooms(arg0,arg1);
+        dungeonator.getMetrics().record(world.getName(), GenerationStage.GENERATION, startTime);
         
         return chunk;
 	}
 	
+	/**
+	 * Reserves room sets at random points around a newly selected chunk.
+	 * Called by the {@link DungeonChunkPipeline} on its selection worker.
+	 *
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 */
 	public void reserveRooms(int x, int z)
 	{
+		Random random = getChunkRandom(x, z, DungeonMath.SALT_RESERVATIONS);
+		
 		// Check the noise value
-	    double value = Math.random();
+	    double value = random.nextDouble();
 		
 		// If noise value is above threshhold
 		if(value > 0.7)
 		{
 			// Get 3 random sets
-			Vector<DungeonRoomSet> sets = dungeonator.getDataManager().getRandomRoomSets(3);
+			Vector<DungeonRoomSet> sets = dungeonator.getDataManager().getRandomRoomSets(3, dungeonator.seededGeneration ? random : null);
 			
 			if(sets != null)
 			{
@@ -385,10 +352,10 @@ public class DungeonChunkProvider implements IChunkProvider {
 				for(int i = 0; i < 5; i++)
 				{
 					points[i] = new ScatterPlot();
-					int rand = Math.random() >= 0.5 ? 2 : -3;
-					points[i].x = (rand*maxDim) + ((int)Math.random()*maxDim) + x;
-					rand = Math.random() >= 0.5 ? 2 : -3;
-					points[i].z = (rand*maxDim) + ((int)Math.random()*maxDim) + z;
+					int rand = random.nextDouble() >= 0.5 ? 2 : -3;
+					points[i].x = (rand*maxDim) + (int)(random.nextDouble()*maxDim) + x;
+					rand = random.nextDouble() >= 0.5 ? 2 : -3;
+					points[i].z = (rand*maxDim) + (int)(random.nextDouble()*maxDim) + z;
 				}
 				
 				// Loop through the points; for each point, check the sets in order to
@@ -396,11 +363,7 @@ public class DungeonChunkProvider implements IChunkProvider {
 				// down as needed to avoid other reserved rooms
 				for(ScatterPlot p : points)
 				{
-					// If chunk is generated, bail
 				    if(debug) { Dungeonator.GetLogger().info("At {"+x+","+z+"}, checking point {"+p.x+","+p.z+"}"); }
-					if(this.world.loadChunk(p.x, p.z, false)) { if(debug) { Dungeonator.GetLogger().info("Chunk is already generated."); } continue; }
-					
-					if(debug) { Dungeonator.GetLogger().info("Chunk is free."); }
 					
 					// Get the largest block of unreserved room Y indexes, or an empty
 					// array if no rooms are unreserved in the chunk
@@ -415,51 +378,17 @@ public class DungeonChunkProvider implements IChunkProvider {
 							if(s.getSizeY() > unreserved.size()) { if(debug) { Dungeonator.GetLogger().info("Not enough height for room set."); } continue; }
 							
 							// Tentatively set this point and the starting Y from the
-							// unreserved list as our room set origin. Check adjacent chunks
-							// to make sure the additional rooms are also available
+							// unreserved list as our room set origin. The data manager
+							// checks that no chunk under the set is generated or has
+							// its rooms selected by the pipeline, and that the rooms in
+							// adjacent chunks are also available, and reserves them all
+							// at once
 							int originX = p.x;
 							int originZ = p.z;
 							int originY = unreserved.get(0);
 							
-							boolean fail = false;
-							
-							for(int sx = 0; sx < s.getSizeX(); sx++)
-							{
-								for(int sy = 0; sy < s.getSizeY(); sy++)
-								{
-									for(int sz = 0; sz < s.getSizeZ(); sz++)
-									{
-										// If the room is reserved, set failure status and bail
-										if(dungeonator.getDataManager().isRoomReserved(world.getName(),originX+sx,originY+sy,originZ+sz))
-										{
-											fail = true;
-											break;
-										}
-									}
-									
-									// If failure has occurred, bail
-									if(fail) { break; }
-								}
-								
-								// If failure has occurred, bail
-								if(fail) { break; }
-							}
-							
-							// All rooms are available; loop through the rooms again
-							// and reserve them with the appropriate room library ID
-							if(!fail)
+							if(dungeonator.getDataManager().reserveRoomSet(world.getName(), originX, originY, originZ, s))
 							{
-								for(int sx = 0; sx < s.getSizeX(); sx++)
-								{
-									for(int sy = 0; sy < s.getSizeY(); sy++)
-									{
-										for(int sz = 0; sz < s.getSizeZ(); sz++)
-										{
-											dungeonator.getDataManager().setRoomReservation(world.getName(), originX+sx, originY+sy, originZ+sz, s.getLibraryRoomID(sx,sy,sz));
-										}
-									}
-								}
-								
 								// Log
 								if(debug) { Dungeonator.GetLogger().info("Reserved room set "+s+" at {"+originX+","+originY+","+originZ+"}"); }
 								
@@ -479,6 +408,76 @@ public class DungeonChunkProvider implements IChunkProvider {
 		if(debug) { System.out.println("Noise for {"+x+","+z+"}: "+value); }
 	}
 
+	/**
+	 * Gets the cache that hands rooms from generation to decoration.
+	 *
+	 * @return the room cache
+	 */
+	public RoomHandoffCache getRoomCache()
+	{
+		return roomCache;
+	}
+	
+	/**
+	 * Updates block light for the open cells of a room's horizontal
+	 * doorways, so light crosses into and out of neighboring chunks. Walls
+	 * are opaque, so only the doorway sections of the edge are visited.
+	 *
+	 * @param chunk the native chunk
+	 * @param room the room
+	 * @param roomY the y coordinate of the room floor
+	 * @param cx the x coordinate of the chunk
+	 * @param cz the z coordinate of the chunk
+	 */
+	private void relightRoomDoorways(Chunk chunk, DungeonRoom room, int roomY, int cx, int cz)
+	{
+		for(byte d = Direction.N; d <= Direction.NNW; d++)
+		{
+			if(!room.hasDoorway(d)) { continue; }
+			
+			int[] cells = DOORWAY_CELLS[d];
+			
+			for(int y = roomY; y < roomY + 8; y++)
+			{
+				for(int x = cells[0]; x <= cells[2]; x++)
+				{
+					for(int z = cells[1]; z <= cells[3]; z++)
+					{
+						relightEdgeCell(chunk, x, y, z, cx, cz);
+					}
+				}
+			}
+		}
+	}
+	
+	private void relightEdgeCell(Chunk chunk, int x, int y, int z, int cx, int cz)
+	{
+		if(Block.lightBlock[chunk.getTypeId(x, y, z)] < 15)
+		{
+			chunk.world.c(EnumSkyBlock.BLOCK, (cx << 4) + x, y, (cz << 4) + z);
+		}
+	}
+	
+	/**
+	 * Gets the random source for a decision about a chunk. In seeded mode
+	 * this is derived from the world seed and chunk coordinates; otherwise
+	 * it is a fresh unseeded source.
+	 *
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param salt the decision salt
+	 * @return the random source
+	 */
+	private Random getChunkRandom(int x, int z, long salt)
+	{
+		if(dungeonator.seededGeneration)
+		{
+			return DungeonMath.getChunkRandom(this.world.getSeed(), x, z, salt);
+		}
+		
+		return new Random();
+	}
+
 	@Override
 	public boolean isChunkLoaded(int arg0, int arg1) {
 		// Always returns true; I believe this is present due to some
@@ -0,0 +1,305 @@
+package com.aranai.dungeonator.generator;
+
+import net.minecraft.server.v1_4_R1.Block;
+import net.minecraft.server.v1_4_R1.Chunk;
+import net.minecraft.server.v1_4_R1.ChunkSection;
+import net.minecraft.server.v1_4_R1.World;
+
+/**
+ * Builds native chunks directly from assembled block and block data arrays.
+ *
+ * Going through Chunk.a(x,y,z,id,data) for each block does a section lookup,
+ * height map update and lighting bookkeeping per call. Instead, the writer
+ * fills the section arrays in a single pass, attaches them to the chunk and
+ * then either copies in precomputed light or computes lighting once.
+ */
+public class DungeonChunkWriter {
+
+	/** Height of the chunk in blocks */
+	public static final int HEIGHT = 128;
+
+	/** Number of 16-block sections in the chunk */
+	public static final int SECTIONS = HEIGHT >> 4;
+
+	/**
+	 * Creates a chunk from block and block data arrays in chunk column order
+	 * ((x * 16 + z) * 128 + y).
+	 *
+	 * If precomputed block light is given, the light arrays are written
+	 * directly along with the height map and sky light; otherwise the chunk
+	 * is lit from scratch.
+	 *
+	 * @param world the native world
+	 * @param blocks the block ids
+	 * @param data the block data values
+	 * @param blockLight the block light values, one per byte, or null
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the lit chunk
+	 */
+	public static Chunk createChunk(World world, byte[] blocks, byte[] data, byte[] blockLight, int x, int z)
+	{
+		boolean hasSky = !world.worldProvider.f;
+
+		Chunk chunk = new Chunk(world, x, z);
+		ChunkSection[] sections = createSections(blocks, data, hasSky);
+		chunk.a(sections);
+
+		if(blockLight != null)
+		{
+			writeLight(chunk, sections, blocks, blockLight, hasSky);
+		}
+		else
+		{
+			chunk.initLighting();
+		}
+
+		return chunk;
+	}
+
+	/**
+	 * Creates chunk sections from block and block data arrays in chunk column
+	 * order. Sections that contain only air are left null, as the server does.
+	 *
+	 * @param blocks the block ids
+	 * @param data the block data values
+	 * @param hasSky true if the world has sky light
+	 * @return the sections
+	 */
+	public static ChunkSection[] createSections(byte[] blocks, byte[] data, boolean hasSky)
+	{
+		ChunkSection[] sections = new ChunkSection[16];
+		byte[][] ids = new byte[SECTIONS][];
+		byte[][] nibbles = new byte[SECTIONS][];
+
+		int src = 0;
+
+		for(int x = 0; x < 16; x++)
+		{
+			for(int z = 0; z < 16; z++)
+			{
+				for(int y = 0; y < HEIGHT; y++, src++)
+				{
+					byte id = blocks[src];
+					if(id == 0) { continue; }
+
+					int s = y >> 4;
+
+					if(sections[s] == null)
+					{
+						sections[s] = new ChunkSection(s << 4, hasSky);
+						ids[s] = sections[s].g();
+						nibbles[s] = sections[s].i().a;
+					}
+
+					// Section arrays are indexed y << 8 | z << 4 | x
+					int pos = (y & 0xF) << 8 | z << 4 | x;
+					ids[s][pos] = id;
+					setNibble(nibbles[s], pos, data[src]);
+				}
+			}
+		}
+
+		// Recount non-air and ticking blocks once per section
+		for(ChunkSection section : sections)
+		{
+			if(section != null) { section.e(); }
+		}
+
+		return sections;
+	}
+
+	/**
+	 * Writes precomputed block light, the height map and sky light into a
+	 * chunk. Sky light is full above the first light-blocking block of each
+	 * column and zero below it; the rooms below the top are fully enclosed.
+	 *
+	 * @param chunk the chunk
+	 * @param sections the chunk's sections
+	 * @param blocks the block ids
+	 * @param blockLight the block light values
+	 * @param hasSky true if the world has sky light
+	 */
+	private static void writeLight(Chunk chunk, ChunkSection[] sections, byte[] blocks, byte[] blockLight, boolean hasSky)
+	{
+		byte[][] blockNibbles = new byte[SECTIONS][];
+		byte[][] skyNibbles = new byte[SECTIONS][];
+
+		for(int s = 0; s < SECTIONS; s++)
+		{
+			if(sections[s] == null) { continue; }
+			blockNibbles[s] = sections[s].j().a;
+			if(hasSky) { skyNibbles[s] = sections[s].k().a; }
+		}
+
+		for(int x = 0; x < 16; x++)
+		{
+			for(int z = 0; z < 16; z++)
+			{
+				int base = (x * 16 + z) * HEIGHT;
+
+				// Height map: one above the highest light-blocking block
+				int top = HEIGHT;
+				while(top > 0 && Block.lightBlock[blocks[base + top - 1] & 0xFF] == 0) { top--; }
+				chunk.heightMap[z << 4 | x] = top;
+
+				for(int y = 0; y < HEIGHT; y++)
+				{
+					int s = y >> 4;
+					if(blockNibbles[s] == null) { continue; }
+
+					int pos = (y & 0xF) << 8 | z << 4 | x;
+					setNibble(blockNibbles[s], pos, blockLight[base + y]);
+
+					if(hasSky && y >= top)
+					{
+						setNibble(skyNibbles[s], pos, (byte)DungeonLighting.MAX_LIGHT);
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Sets a value in a packed nibble array.
+	 *
+	 * @param nibbles the nibble array
+	 * @param pos the position
+	 * @param value the value; only the low four bits are used
+	 */
+	private static void setNibble(byte[] nibbles, int pos, byte value)
+	{
+		int v = value & 0xF;
+		if(v == 0 && (nibbles[pos >> 1] == 0)) { return; }
+
+		int half = pos >> 1;
+		if((pos & 1) == 0)
+		{
+			nibbles[half] = (byte)((nibbles[half] & 0xF0) | v);
+		}
+		else
+		{
+			nibbles[half] = (byte)((nibbles[half] & 0x0F) | (v << 4));
+		}
+	}
+
+	/**
+	 * Sets a block id and data value directly in a chunk's section storage.
+	 * The column's height map and sky light are kept current; no physics or
+	 * block light updates are done, so callers relight any light sources
+	 * they place.
+	 *
+	 * @param chunk the native chunk
+	 * @param hasSky true if the world has sky light
+	 * @param x the x coordinate within the chunk
+	 * @param y the y coordinate
+	 * @param z the z coordinate within the chunk
+	 * @param id the block id
+	 * @param data the block data value
+	 * @return true, if the position is inside the chunk
+	 */
+	public static boolean setBlock(Chunk chunk, boolean hasSky, int x, int y, int z, int id, int data)
+	{
+		if(x < 0 || x > 15 || z < 0 || z > 15 || y < 0 || y >= HEIGHT) { return false; }
+
+		ChunkSection[] sections = chunk.i();
+		ChunkSection section = sections[y >> 4];
+
+		if(section == null)
+		{
+			// Nothing to clear in an empty section
+			if(id == 0) { return true; }
+
+			section = new ChunkSection(y >> 4 << 4, hasSky);
+			sections[y >> 4] = section;
+			if(hasSky) { fillSkyLight(chunk, section); }
+		}
+
+		section.a(x, y & 0xF, z, id);
+		section.b(x, y & 0xF, z, data);
+
+		updateColumn(chunk, sections, hasSky, x, y, z, id);
+
+		return true;
+	}
+
+	/**
+	 * Gives a new section full sky light above the height map of each column.
+	 *
+	 * @param chunk the native chunk
+	 * @param section the new section
+	 */
+	private static void fillSkyLight(Chunk chunk, ChunkSection section)
+	{
+		byte[] skyNibbles = section.k().a;
+		int bottom = section.d();
+
+		for(int x = 0; x < 16; x++)
+		{
+			for(int z = 0; z < 16; z++)
+			{
+				int top = chunk.heightMap[z << 4 | x];
+
+				for(int y = Math.max(top, bottom); y < bottom + 16; y++)
+				{
+					setNibble(skyNibbles, (y & 0xF) << 8 | z << 4 | x, (byte)DungeonLighting.MAX_LIGHT);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Moves a column's height map after a block change, and sets sky light
+	 * full above the new height and clears it below, as writeLight does.
+	 *
+	 * @param chunk the native chunk
+	 * @param sections the chunk's sections
+	 * @param hasSky true if the world has sky light
+	 * @param x the x coordinate within the chunk
+	 * @param y the y coordinate of the changed block
+	 * @param z the z coordinate within the chunk
+	 * @param id the new block id
+	 */
+	private static void updateColumn(Chunk chunk, ChunkSection[] sections, boolean hasSky, int x, int y, int z, int id)
+	{
+		int column = z << 4 | x;
+		int top = chunk.heightMap[column];
+		int newTop = top;
+
+		if(Block.lightBlock[id] > 0)
+		{
+			if(y >= top) { newTop = y + 1; }
+		}
+		else if(y == top - 1)
+		{
+			// The top block was cleared; find the next light-blocking block down
+			newTop = y;
+			while(newTop > 0 && Block.lightBlock[getTypeId(sections, x, newTop - 1, z)] == 0) { newTop--; }
+		}
+
+		if(newTop == top) { return; }
+
+		chunk.heightMap[column] = newTop;
+
+		if(!hasSky) { return; }
+
+		byte level = (byte)((newTop < top) ? DungeonLighting.MAX_LIGHT : 0);
+
+		for(int ly = Math.min(top, newTop); ly < Math.max(top, newTop); ly++)
+		{
+			ChunkSection section = sections[ly >> 4];
+			if(section == null) { continue; }
+
+			setNibble(section.k().a, (ly & 0xF) << 8 | z << 4 | x, level);
+		}
+	}
+
+	/**
+	 * Gets a block id from a chunk's section storage.
+	 */
+	private static int getTypeId(ChunkSection[] sections, int x, int y, int z)
+	{
+		ChunkSection section = sections[y >> 4];
+		return (section != null) ? section.a(x, y & 0xF, z) : 0;
+	}
+}
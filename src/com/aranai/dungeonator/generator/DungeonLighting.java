@@ -0,0 +1,170 @@
+package com.aranai.dungeonator.generator;
+
+import net.minecraft.server.v1_4_R1.Block;
+
+/**
+ * Precomputes light for rooms and chunks.
+ *
+ * Rooms are enclosed, so their block light can be computed once per
+ * template and copied into each chunk that uses the template. Light only
+ * has to be propagated across the places where rooms open into each other.
+ *
+ * All arrays here use the column-major layout shared by rooms and chunks:
+ * (x * 16 + z) * height + y, with one light value (0-15) per byte.
+ */
+public class DungeonLighting {
+
+	/** Maximum light level */
+	public static final int MAX_LIGHT = 15;
+
+	/**
+	 * Computes the block light of a single room in isolation.
+	 *
+	 * @param blocks the room block array
+	 * @return the room block light array
+	 */
+	public static byte[] computeRoomBlockLight(byte[] blocks)
+	{
+		int height = DungeonMath.ROOM_HEIGHT;
+		byte[] light = new byte[blocks.length];
+		IntQueue queue = new IntQueue(256);
+
+		// Seed with every light source in the room
+		for(int i = 0; i < blocks.length; i++)
+		{
+			int emission = Block.lightEmission[blocks[i] & 0xFF];
+			if(emission > 0)
+			{
+				light[i] = (byte)emission;
+				queue.add(i);
+			}
+		}
+
+		propagate(blocks, light, height, queue);
+
+		return light;
+	}
+
+	/**
+	 * Spreads block light between the stacked rooms of a chunk. Each room's
+	 * light is already complete within the room, so only the cells on the
+	 * floor and ceiling layers of each room can carry light further.
+	 *
+	 * @param blocks the chunk block array
+	 * @param light the chunk block light array, updated in place
+	 */
+	public static void propagateBetweenRooms(byte[] blocks, byte[] light)
+	{
+		int height = DungeonMath.CHUNK_HEIGHT;
+		IntQueue queue = new IntQueue(1024);
+
+		for(int col = 0; col < 256; col++)
+		{
+			int base = col * height;
+
+			for(int y = 0; y < height; y += DungeonMath.ROOM_HEIGHT)
+			{
+				if(light[base + y] > 1) { queue.add(base + y); }
+				if(light[base + y + DungeonMath.ROOM_HEIGHT - 1] > 1) { queue.add(base + y + DungeonMath.ROOM_HEIGHT - 1); }
+			}
+		}
+
+		propagate(blocks, light, height, queue);
+	}
+
+	/**
+	 * Breadth-first light propagation from the queued cells. Light drops by
+	 * the opacity of the cell it enters, and by at least one per step.
+	 *
+	 * @param blocks the block array
+	 * @param light the light array, updated in place
+	 * @param height the column height of the arrays
+	 * @param queue the cells to propagate from
+	 */
+	private static void propagate(byte[] blocks, byte[] light, int height, IntQueue queue)
+	{
+		int column = height;
+		int row = 16 * height;
+
+		while(!queue.isEmpty())
+		{
+			int i = queue.poll();
+			int level = light[i];
+			if(level <= 1) { continue; }
+
+			int y = i % height;
+			int col = i / height;
+			int x = col >> 4;
+			int z = col & 0xF;
+
+			if(y > 0) { spread(blocks, light, i - 1, level, queue); }
+			if(y < height - 1) { spread(blocks, light, i + 1, level, queue); }
+			if(z > 0) { spread(blocks, light, i - column, level, queue); }
+			if(z < 15) { spread(blocks, light, i + column, level, queue); }
+			if(x > 0) { spread(blocks, light, i - row, level, queue); }
+			if(x < 15) { spread(blocks, light, i + row, level, queue); }
+		}
+	}
+
+	/**
+	 * Spreads light into a single neighboring cell.
+	 */
+	private static void spread(byte[] blocks, byte[] light, int n, int level, IntQueue queue)
+	{
+		int opacity = Math.max(1, Block.lightBlock[blocks[n] & 0xFF]);
+		int candidate = level - opacity;
+
+		if(candidate > light[n])
+		{
+			light[n] = (byte)candidate;
+			queue.add(n);
+		}
+	}
+
+	/**
+	 * Minimal growable FIFO of ints, to avoid boxing in the flood fill.
+	 */
+	private static class IntQueue {
+		private int[] items;
+		private int head = 0;
+		private int tail = 0;
+
+		public IntQueue(int capacity)
+		{
+			items = new int[capacity];
+		}
+
+		public boolean isEmpty()
+		{
+			return head == tail;
+		}
+
+		public void add(int v)
+		{
+			if(tail == items.length)
+			{
+				if(head > 0)
+				{
+					// Reclaim consumed space before growing
+					System.arraycopy(items, head, items, 0, tail - head);
+					tail -= head;
+					head = 0;
+				}
+
+				if(tail == items.length)
+				{
+					int[] grown = new int[items.length * 2];
+					System.arraycopy(items, 0, grown, 0, tail);
+					items = grown;
+				}
+			}
+
+			items[tail++] = v;
+		}
+
+		public int poll()
+		{
+			return items[head++];
+		}
+	}
+}
@@ -1,5 +1,7 @@
 package com.aranai.dungeonator.generator;
 
+import java.util.Random;
+
 import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
 
 /**
@@ -7,6 +9,24 @@ import com.aranai.dungeonator.dungeonchunk.DungeonWidget;
  */
 public class DungeonMath {
 	
+	/** Height of a room in blocks; also the length of one room column */
+	public static final int ROOM_HEIGHT = 8;
+	
+	/** Height of a chunk in blocks; also the length of one chunk column */
+	public static final int CHUNK_HEIGHT = 128;
+	
+	/** Size of a room block array */
+	public static final int ROOM_SIZE = 16 * 16 * ROOM_HEIGHT;
+	
+	/** Chunk random salt for room selection */
+	public static final long SALT_ROOMS = 0x3C6EF372FE94F82BL;
+	
+	/** Chunk random salt for room set reservation */
+	public static final long SALT_RESERVATIONS = 0xA54FF53A5F1D36F1L;
+	
+	/** Chunk random salt for widget placement */
+	public static final long SALT_WIDGETS = 0x2545F4914F6CDD1DL;
+	
 	/**
 	 * Gets a byte array position from X,Y,Z coordinates.
 	 *
@@ -46,4 +66,81 @@ public class DungeonMath {
 	{
 		return x*size.bound()*size.bound() + y*size.bound() + z;
 	}
+	
+	/**
+	 * Copies a room array into a chunk array at the given room level.
+	 * 
+	 * Room arrays are already column-major ((x * 16 + z) * 8 + y, see
+	 * {@link #getRoomPosFromCoords(int, int, int)}), as are chunk arrays
+	 * ((x * 16 + z) * 128 + y), so each of the 256 room columns lands in
+	 * the chunk as a single contiguous 8-byte copy.
+	 *
+	 * @param room the room array
+	 * @param chunk the chunk array
+	 * @param level the room level within the chunk (0-15)
+	 */
+	public static final void copyRoomToChunk(byte[] room, byte[] chunk, int level)
+	{
+		int dst = level * ROOM_HEIGHT;
+		
+		for(int src = 0; src < ROOM_SIZE; src += ROOM_HEIGHT, dst += CHUNK_HEIGHT)
+		{
+			System.arraycopy(room, src, chunk, dst, ROOM_HEIGHT);
+		}
+	}
+	
+	/**
+	 * Gets the seed for a chunk's random source. The seed depends only on the
+	 * world seed, the chunk coordinates and the salt, so the chunk's random
+	 * decisions come out the same no matter when or where they are made.
+	 * 
+	 * Each input is folded in through a full 64-bit mix (the splitmix64
+	 * finalizer), so neighboring chunks and different salts give unrelated
+	 * seeds even after Random scrambles them with its own multiplier.
+	 *
+	 * @param worldSeed the world seed
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param salt the salt, which separates independent decisions for the same chunk
+	 * @return the chunk seed
+	 */
+	public static final long getChunkSeed(long worldSeed, int x, int z, long salt)
+	{
+		long h = mix64(worldSeed);
+		h = mix64(h ^ salt);
+		h = mix64(h ^ (x & 0xFFFFFFFFL));
+		h = mix64(h ^ (z & 0xFFFFFFFFL));
+		
+		return h;
+	}
+	
+	/**
+	 * Mixes a 64-bit value so that every input bit affects every output bit
+	 * (splitmix64: add the golden gamma, then the finalizer).
+	 *
+	 * @param v the value
+	 * @return the mixed value
+	 */
+	public static final long mix64(long v)
+	{
+		v += 0x9E3779B97F4A7C15L;
+		v = (v ^ (v >>> 30)) * 0xBF58476D1CE4E5B9L;
+		v = (v ^ (v >>> 27)) * 0x94D049BB133111EBL;
+		return v ^ (v >>> 31);
+	}
+	
+	/**
+	 * Gets a new random source for a chunk.
+	 *
+	 * @param worldSeed the world seed
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param salt the salt, which separates independent decisions for the same chunk
+	 * @return the random source
+	 * @see #getChunkSeed(long, int, int, long)
+	 */
+	public static final Random getChunkRandom(long worldSeed, int x, int z, long salt)
+	{
+		return new Random(getChunkSeed(worldSeed, x, z, salt));
+	}
 }
@@ -0,0 +1,156 @@
+package com.aranai.dungeonator.generator;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+
+import org.bukkit.Location;
+import org.bukkit.World;
+import org.bukkit.craftbukkit.v1_4_R1.CraftWorld;
+import org.bukkit.entity.Player;
+
+import com.aranai.dungeonator.Dungeonator;
+
+/**
+ * Queues chunks for generation ahead of moving players.
+ *
+ * The server only asks for a chunk once it enters a player's view distance,
+ * at which point the player is already waiting on it. This task samples
+ * player positions periodically and, for each player that is moving, asks
+ * the {@link DungeonChunkPipeline} to prepare the chunks just beyond the
+ * view distance in the direction of travel.
+ *
+ * Predictions only use idle selection capacity: they are queued while no
+ * chunk the server asked for, and no neighbor prefetch, is waiting for
+ * selection, and they are selected after those. They also count against the
+ * pipeline's limit on pending requests, of which they may fill half; see
+ * {@link DungeonChunkPipeline#predict}.
+ *
+ * Settings (config.yml):
+ * <ul>
+ * <li>pregen.enabled: turns the task on or off</li>
+ * <li>pregen.interval: ticks between samples</li>
+ * <li>pregen.lookahead: rows of chunks to prepare beyond the view distance</li>
+ * <li>pregen.width: chunks to each side of the line of travel</li>
+ * <li>pregen.budget: maximum chunks to queue per sample</li>
+ * <li>pregen.max-pending: stop queueing while this many predicted chunks wait for selection</li>
+ * </ul>
+ */
+public class PredictiveGenerator implements Runnable {
+
+	/** Minimum distance, in blocks, a player must move between samples to count as moving */
+	private static final double MIN_MOVE = 1.0;
+
+	/** The Dungeonator instance */
+	private Dungeonator plugin;
+
+	/** Rows of chunks to prepare beyond the view distance */
+	private int lookahead;
+
+	/** Chunks to each side of the line of travel */
+	private int width;
+
+	/** Maximum chunks to queue per sample */
+	private int budget;
+
+	/** Predicted chunks waiting for selection at which queueing stops */
+	private int maxPending;
+
+	/** Last sampled position for each player, as {x, z} */
+	private HashMap<String,double[]> lastPositions;
+
+	/**
+	 * Instantiates the predictive generator from the plugin configuration.
+	 *
+	 * @param plugin the Dungeonator instance
+	 */
+	public PredictiveGenerator(Dungeonator plugin)
+	{
+		this.plugin = plugin;
+		this.lookahead = Math.max(1, plugin.getConfig().getInt("pregen.lookahead", 3));
+		this.width = Math.max(0, plugin.getConfig().getInt("pregen.width", 1));
+		this.budget = Math.max(1, plugin.getConfig().getInt("pregen.budget", 8));
+		this.maxPending = Math.max(1, plugin.getConfig().getInt("pregen.max-pending", 16));
+		this.lastPositions = new HashMap<String,double[]>();
+	}
+
+	/**
+	 * Starts the task if it is enabled in the configuration.
+	 *
+	 * @return the scheduler task id, or -1 if the task is disabled
+	 */
+	public int start()
+	{
+		if(!plugin.getConfig().getBoolean("pregen.enabled", true)) { return -1; }
+
+		long interval = Math.max(1, plugin.getConfig().getLong("pregen.interval", 20));
+
+		return plugin.getServer().getScheduler().scheduleSyncRepeatingTask(plugin, this, interval, interval);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		DungeonChunkPipeline pipeline = plugin.getChunkPipeline();
+		Player[] players = plugin.getServer().getOnlinePlayers();
+		HashSet<String> online = new HashSet<String>();
+
+		int remaining = budget;
+		int distance = plugin.getServer().getViewDistance() + 1;
+
+		for(Player p : players)
+		{
+			online.add(p.getName());
+
+			Location loc = p.getLocation();
+			double[] last = lastPositions.get(p.getName());
+			lastPositions.put(p.getName(), new double[] { loc.getX(), loc.getZ() });
+
+			if(last == null) { continue; }
+
+			// Only bother with dungeon worlds
+			World world = loc.getWorld();
+			if(!(((CraftWorld)world).getHandle().chunkProviderServer.chunkProvider instanceof DungeonChunkProvider)) { continue; }
+
+			// Heading from the movement since the last sample
+			double dx = loc.getX() - last[0];
+			double dz = loc.getZ() - last[1];
+			double len = Math.sqrt(dx*dx + dz*dz);
+			if(len < MIN_MOVE) { continue; }
+			dx /= len;
+			dz /= len;
+
+			// Queue rows of chunks just past the view distance, nearest first
+			for(int step = 0; step < lookahead && remaining > 0; step++)
+			{
+				if(!pipeline.isSelectionIdle() || pipeline.getPredictedBacklog() >= maxPending) { break; }
+
+				double ahead = (distance + step) * 16;
+
+				for(int side = -width; side <= width && remaining > 0; side++)
+				{
+					// Offset perpendicular to the heading
+					double px = loc.getX() + dx * ahead - dz * side * 16;
+					double pz = loc.getZ() + dz * ahead + dx * side * 16;
+
+					int cx = (int)Math.floor(px / 16);
+					int cz = (int)Math.floor(pz / 16);
+
+					if(world.isChunkLoaded(cx, cz)) { continue; }
+
+					if(pipeline.predict(world, cx, cz)) { remaining--; }
+				}
+			}
+		}
+
+		// Forget players who have left
+		Iterator<String> it = lastPositions.keySet().iterator();
+		while(it.hasNext())
+		{
+			if(!online.contains(it.next())) { it.remove(); }
+		}
+	}
+}
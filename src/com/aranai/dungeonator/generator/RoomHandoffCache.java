@@ -0,0 +1,278 @@
+package com.aranai.dungeonator.generator;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.aranai.dungeonator.dungeonchunk.DungeonRoom;
+import com.aranai.dungeonator.util.LongObjectMap;
+
+/**
+ * Hands the rooms selected for a chunk from generation over to decoration.
+ *
+ * Chunks that are generated but never decorated would otherwise hold on to
+ * their rooms forever, so the cache is bounded by both size and age. An
+ * entry that has been evicted is not an error: decoration reloads the rooms
+ * from the data store instead.
+ */
+public class RoomHandoffCache {
+
+	/** Default maximum number of entries */
+	public static final int DEFAULT_MAX_ENTRIES = 1024;
+
+	/** Default maximum entry age, in milliseconds */
+	public static final long DEFAULT_MAX_AGE = 120000;
+
+	/** Maximum number of entries */
+	private final int maxEntries;
+
+	/** Maximum entry age, in milliseconds */
+	private final long maxAge;
+
+	/** Entries by chunk key */
+	private final LongObjectMap<Entry> entries;
+
+	/**
+	 * Chunk keys in the order they were put, as a ring buffer. A key whose
+	 * entry was taken or put again since is skipped when it comes up.
+	 */
+	private long[] queueKeys;
+
+	/** Put number of each queued key, to tell it from a later put of the same key */
+	private long[] queuePuts;
+
+	/** Index of the oldest queued key */
+	private int queueHead = 0;
+
+	/** Number of queued keys */
+	private int queueSize = 0;
+
+	/** Number of the next put */
+	private long nextPut = 0;
+
+	/** Number of rooms handed over */
+	private final AtomicLong puts = new AtomicLong();
+
+	/** Number of successful takes */
+	private final AtomicLong hits = new AtomicLong();
+
+	/** Number of takes that found nothing */
+	private final AtomicLong misses = new AtomicLong();
+
+	/** Number of entries dropped for size */
+	private final AtomicLong sizeEvictions = new AtomicLong();
+
+	/** Number of entries dropped for age */
+	private final AtomicLong ageEvictions = new AtomicLong();
+
+	/**
+	 * Instantiates a cache with the default bounds.
+	 */
+	public RoomHandoffCache()
+	{
+		this(DEFAULT_MAX_ENTRIES, DEFAULT_MAX_AGE);
+	}
+
+	/**
+	 * Instantiates a cache.
+	 *
+	 * @param maxEntries the maximum number of entries
+	 * @param maxAge the maximum entry age, in milliseconds
+	 */
+	public RoomHandoffCache(int maxEntries, long maxAge)
+	{
+		this.maxEntries = maxEntries;
+		this.maxAge = maxAge;
+		this.entries = new LongObjectMap<Entry>(Math.min(maxEntries, 256));
+		this.queueKeys = new long[64];
+		this.queuePuts = new long[64];
+	}
+
+	/**
+	 * Hands over the rooms for a chunk.
+	 *
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @param rooms the rooms
+	 */
+	public synchronized void put(int x, int z, DungeonRoom[] rooms)
+	{
+		long now = System.currentTimeMillis();
+		long key = getKey(x, z);
+		long put = nextPut++;
+
+		// Re-inserting moves the entry to the back of the line
+		entries.put(key, new Entry(rooms, now, put));
+		enqueue(key, put);
+		puts.incrementAndGet();
+
+		evict(now);
+	}
+
+	/**
+	 * Takes the rooms for a chunk, removing them from the cache.
+	 *
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the rooms, or null if they were never handed over or have expired
+	 */
+	public synchronized DungeonRoom[] take(int x, int z)
+	{
+		long now = System.currentTimeMillis();
+		Entry e = entries.remove(getKey(x, z));
+
+		if(e != null && now - e.time > maxAge)
+		{
+			ageEvictions.incrementAndGet();
+			e = null;
+		}
+
+		if(e == null)
+		{
+			misses.incrementAndGet();
+			return null;
+		}
+
+		hits.incrementAndGet();
+		return e.rooms;
+	}
+
+	/**
+	 * Drops entries that are over the size or age bound.
+	 *
+	 * @param now the current time
+	 */
+	private void evict(long now)
+	{
+		while(queueSize > 0)
+		{
+			long key = queueKeys[queueHead];
+			Entry e = entries.get(key);
+
+			if(e == null || e.put != queuePuts[queueHead])
+			{
+				// Taken or put again since
+				dequeue();
+			}
+			else if(entries.size() > maxEntries)
+			{
+				entries.remove(key);
+				dequeue();
+				sizeEvictions.incrementAndGet();
+			}
+			else if(now - e.time > maxAge)
+			{
+				entries.remove(key);
+				dequeue();
+				ageEvictions.incrementAndGet();
+			}
+			else
+			{
+				// Keys are in put order; everything after this is newer
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Adds a key to the back of the queue, growing it if full.
+	 */
+	private void enqueue(long key, long put)
+	{
+		if(queueSize == queueKeys.length)
+		{
+			long[] keys = new long[queueKeys.length * 2];
+			long[] puts = new long[queuePuts.length * 2];
+			for(int i = 0; i < queueSize; i++)
+			{
+				keys[i] = queueKeys[(queueHead + i) & (queueKeys.length - 1)];
+				puts[i] = queuePuts[(queueHead + i) & (queuePuts.length - 1)];
+			}
+			queueKeys = keys;
+			queuePuts = puts;
+			queueHead = 0;
+		}
+
+		int tail = (queueHead + queueSize) & (queueKeys.length - 1);
+		queueKeys[tail] = key;
+		queuePuts[tail] = put;
+		queueSize++;
+	}
+
+	/**
+	 * Removes the key at the front of the queue.
+	 */
+	private void dequeue()
+	{
+		queueHead = (queueHead + 1) & (queueKeys.length - 1);
+		queueSize--;
+	}
+
+	/**
+	 * Gets the number of entries.
+	 *
+	 * @return the size
+	 */
+	public synchronized int size()
+	{
+		return entries.size();
+	}
+
+	public long getPuts()
+	{
+		return puts.get();
+	}
+
+	public long getHits()
+	{
+		return hits.get();
+	}
+
+	public long getMisses()
+	{
+		return misses.get();
+	}
+
+	public long getSizeEvictions()
+	{
+		return sizeEvictions.get();
+	}
+
+	public long getAgeEvictions()
+	{
+		return ageEvictions.get();
+	}
+
+	@Override
+	public String toString()
+	{
+		return "RoomHandoffCache[size="+size()+", puts="+getPuts()+", hits="+getHits()+", misses="+getMisses()
+			+", sizeEvictions="+getSizeEvictions()+", ageEvictions="+getAgeEvictions()+"]";
+	}
+
+	/**
+	 * Gets the cache key for a chunk.
+	 *
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the key
+	 */
+	private static long getKey(int x, int z)
+	{
+		return ((long)x << 32) | (z & 0xFFFFFFFFL);
+	}
+
+	/**
+	 * A cached room stack.
+	 */
+	private static class Entry {
+		final DungeonRoom[] rooms;
+		final long time;
+		final long put;
+
+		Entry(DungeonRoom[] rooms, long time, long put)
+		{
+			this.rooms = rooms;
+			this.time = time;
+			this.put = put;
+		}
+	}
+}
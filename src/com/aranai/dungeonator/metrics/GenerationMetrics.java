@@ -0,0 +1,232 @@
+package com.aranai.dungeonator.metrics;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.List;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Collects per-world latency histograms for each {@link GenerationStage}.
+ *
+ * Timing a stage costs two System.nanoTime() calls and a few atomic
+ * increments, so it can stay on in production, unlike console output.
+ *
+ * Usage:
+ * <pre>
+ * long start = GenerationMetrics.start();
+ * ...
+ * metrics.record(worldName, GenerationStage.SELECTION, start);
+ * </pre>
+ */
+public class GenerationMetrics {
+
+	/** Histograms for each world, indexed by stage ordinal */
+	private final ConcurrentHashMap<String,LatencyHistogram[]> worlds;
+
+	/** Number of chunks generated flat for want of rooms, for each world */
+	private final ConcurrentHashMap<String,AtomicLong> flattened;
+
+	/** Time at which collection started or was last reset */
+	private volatile long since;
+
+	/**
+	 * Instantiates the metrics collector.
+	 */
+	public GenerationMetrics()
+	{
+		this.worlds = new ConcurrentHashMap<String,LatencyHistogram[]>();
+		this.flattened = new ConcurrentHashMap<String,AtomicLong>();
+		this.since = System.currentTimeMillis();
+	}
+
+	/**
+	 * Gets a start timestamp for a stage.
+	 *
+	 * @return the start time, in nanoseconds
+	 */
+	public static long start()
+	{
+		return System.nanoTime();
+	}
+
+	/**
+	 * Records a stage that began at the given start timestamp.
+	 *
+	 * @param world the world name
+	 * @param stage the stage
+	 * @param startNanos the start timestamp from {@link #start()}
+	 */
+	public void record(String world, GenerationStage stage, long startNanos)
+	{
+		recordDuration(world, stage, System.nanoTime() - startNanos);
+	}
+
+	/**
+	 * Records a stage duration.
+	 *
+	 * @param world the world name
+	 * @param stage the stage
+	 * @param nanos the duration, in nanoseconds
+	 */
+	public void recordDuration(String world, GenerationStage stage, long nanos)
+	{
+		getHistograms(world)[stage.ordinal()].record(nanos);
+	}
+
+	/**
+	 * Counts a chunk that was generated flat because no rooms were available.
+	 *
+	 * @param world the world name
+	 */
+	public void countFlattened(String world)
+	{
+		AtomicLong count = flattened.get(world);
+
+		if(count == null)
+		{
+			AtomicLong created = new AtomicLong();
+			count = flattened.putIfAbsent(world, created);
+			if(count == null) { count = created; }
+		}
+
+		count.incrementAndGet();
+	}
+
+	/**
+	 * Gets the number of chunks generated flat in a world.
+	 *
+	 * @param world the world name
+	 * @return the count
+	 */
+	public long getFlattened(String world)
+	{
+		AtomicLong count = flattened.get(world);
+		return (count != null) ? count.get() : 0;
+	}
+
+	/**
+	 * Gets the histogram for a stage in a world.
+	 *
+	 * @param world the world name
+	 * @param stage the stage
+	 * @return the histogram
+	 */
+	public LatencyHistogram getHistogram(String world, GenerationStage stage)
+	{
+		return getHistograms(world)[stage.ordinal()];
+	}
+
+	/**
+	 * Gets the names of the worlds with recorded metrics.
+	 *
+	 * @return the world names, sorted
+	 */
+	public Set<String> getWorlds()
+	{
+		return new TreeSet<String>(worlds.keySet());
+	}
+
+	/**
+	 * Discards all recorded metrics.
+	 */
+	public void reset()
+	{
+		worlds.clear();
+		flattened.clear();
+		since = System.currentTimeMillis();
+	}
+
+	/**
+	 * Builds a report for a world: one line per stage with recorded values,
+	 * and one for the flattened chunk count if there were any.
+	 *
+	 * @param world the world name
+	 * @return the report lines
+	 */
+	public List<String> getReport(String world)
+	{
+		Vector<String> lines = new Vector<String>();
+		LatencyHistogram[] histograms = worlds.get(world);
+
+		if(histograms == null) { return lines; }
+
+		for(GenerationStage stage : GenerationStage.values())
+		{
+			LatencyHistogram h = histograms[stage.ordinal()];
+			if(h.getCount() == 0) { continue; }
+
+			lines.add(String.format("%-12s n=%-7d p50=%8.2fms p99=%8.2fms max=%8.2fms",
+				stage.label(), h.getCount(), h.getPercentile(50) / 1000.0, h.getPercentile(99) / 1000.0, h.getMax() / 1000.0));
+		}
+
+		if(getFlattened(world) > 0)
+		{
+			lines.add(String.format("%-12s n=%-7d", "flattened", getFlattened(world)));
+		}
+
+		return lines;
+	}
+
+	/**
+	 * Appends a report for every world to a file.
+	 *
+	 * @param file the file
+	 */
+	public void dump(File file)
+	{
+		if(worlds.isEmpty()) { return; }
+
+		SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
+
+		try {
+			PrintWriter out = new PrintWriter(new FileWriter(file, true));
+
+			try {
+				out.println("== "+format.format(new Date())+" (since "+format.format(new Date(since))+")");
+
+				for(String world : getWorlds())
+				{
+					out.println("["+world+"]");
+					for(String line : getReport(world))
+					{
+						out.println("  "+line);
+					}
+				}
+
+				out.println();
+			} finally {
+				out.close();
+			}
+		} catch (IOException e) { e.printStackTrace(); }
+	}
+
+	/**
+	 * Gets the histograms for a world, creating them if necessary.
+	 *
+	 * @param world the world name
+	 * @return the histograms, indexed by stage ordinal
+	 */
+	private LatencyHistogram[] getHistograms(String world)
+	{
+		LatencyHistogram[] histograms = worlds.get(world);
+
+		if(histograms == null)
+		{
+			LatencyHistogram[] created = new LatencyHistogram[GenerationStage.values().length];
+			for(int i = 0; i < created.length; i++) { created[i] = new LatencyHistogram(); }
+
+			histograms = worlds.putIfAbsent(world, created);
+			if(histograms == null) { histograms = created; }
+		}
+
+		return histograms;
+	}
+}
@@ -0,0 +1,41 @@
+package com.aranai.dungeonator.metrics;
+
+/**
+ * The timed stages of chunk generation and decoration.
+ */
+public enum GenerationStage {
+	/** Picking rooms for a new chunk, including schematic loads */
+	SELECTION("selection"),
+	/** Loading (or fetching from cache) a single room template */
+	SCHEMATIC_LOAD("schematic"),
+	/** Copying room arrays into chunk arrays */
+	ASSEMBLY("assembly"),
+	/** Computing and writing light */
+	LIGHTING("lighting"),
+	/** Saving a new chunk and its rooms to the data store */
+	DB_SAVE("db-save"),
+	/** Reserving room sets around a new chunk */
+	RESERVATION("reservation"),
+	/** Decorating a chunk: widgets, tile entities and relighting */
+	DECORATION("decoration"),
+	/** Total server thread time spent in getOrCreateChunk */
+	GENERATION("generation");
+	
+	/** Short name, used in reports */
+	private final String label;
+	
+	private GenerationStage(String label)
+	{
+		this.label = label;
+	}
+	
+	/**
+	 * Gets the short name of the stage.
+	 *
+	 * @return the label
+	 */
+	public String label()
+	{
+		return label;
+	}
+}
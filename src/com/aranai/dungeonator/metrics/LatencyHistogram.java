@@ -0,0 +1,160 @@
+package com.aranai.dungeonator.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets.
+ *
+ * Values are recorded in microseconds. Values below 16 get a bucket each;
+ * above that, every power of two is split into 8 buckets, so reported
+ * percentiles are within 12.5% of the true value. Recording is a couple of
+ * atomic increments and is safe from any thread.
+ */
+public class LatencyHistogram {
+
+	/** Number of linear buckets at the bottom of the range */
+	private static final int LINEAR = 16;
+
+	/** Sub-buckets per power of two, as a shift */
+	private static final int SUB_BITS = 3;
+
+	/** Highest power of two tracked; larger values land in the last bucket */
+	private static final int MAX_EXPONENT = 40;
+
+	/** Total number of buckets */
+	private static final int BUCKETS = LINEAR + (MAX_EXPONENT - 3) * (1 << SUB_BITS);
+
+	/** Bucket counts */
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	/** Number of recorded values */
+	private final AtomicLong count = new AtomicLong();
+
+	/** Sum of recorded values */
+	private final AtomicLong sum = new AtomicLong();
+
+	/** Largest recorded value */
+	private final AtomicLong max = new AtomicLong();
+
+	/**
+	 * Records a duration.
+	 *
+	 * @param nanos the duration in nanoseconds
+	 */
+	public void record(long nanos)
+	{
+		long micros = Math.max(0, nanos / 1000);
+
+		counts.incrementAndGet(getBucket(micros));
+		count.incrementAndGet();
+		sum.addAndGet(micros);
+
+		long m = max.get();
+		while(micros > m && !max.compareAndSet(m, micros))
+		{
+			m = max.get();
+		}
+	}
+
+	/**
+	 * Gets the number of recorded values.
+	 *
+	 * @return the count
+	 */
+	public long getCount()
+	{
+		return count.get();
+	}
+
+	/**
+	 * Gets the mean of the recorded values, in microseconds.
+	 *
+	 * @return the mean
+	 */
+	public long getMean()
+	{
+		long c = count.get();
+		return (c > 0) ? sum.get() / c : 0;
+	}
+
+	/**
+	 * Gets the largest recorded value, in microseconds.
+	 *
+	 * @return the max
+	 */
+	public long getMax()
+	{
+		return max.get();
+	}
+
+	/**
+	 * Gets a percentile of the recorded values, in microseconds. The result is
+	 * the upper bound of the bucket the percentile falls in, capped at the max.
+	 *
+	 * @param percentile the percentile, from 0 to 100
+	 * @return the value
+	 */
+	public long getPercentile(double percentile)
+	{
+		long total = 0;
+		long[] snapshot = new long[BUCKETS];
+
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			snapshot[i] = counts.get(i);
+			total += snapshot[i];
+		}
+
+		if(total == 0) { return 0; }
+
+		long target = (long)Math.ceil(total * percentile / 100.0);
+		long seen = 0;
+
+		for(int i = 0; i < BUCKETS; i++)
+		{
+			seen += snapshot[i];
+			if(seen >= target && snapshot[i] > 0)
+			{
+				return Math.min(getBucketUpperBound(i), getMax());
+			}
+		}
+
+		return getMax();
+	}
+
+	/**
+	 * Gets the bucket for a value.
+	 *
+	 * @param micros the value
+	 * @return the bucket
+	 */
+	private static int getBucket(long micros)
+	{
+		if(micros < LINEAR) { return (int)micros; }
+
+		int exponent = 63 - Long.numberOfLeadingZeros(micros);
+		if(exponent > MAX_EXPONENT) { return BUCKETS - 1; }
+
+		int sub = (int)(micros >> (exponent - SUB_BITS)) & ((1 << SUB_BITS) - 1);
+
+		return LINEAR + (exponent - 4) * (1 << SUB_BITS) + sub;
+	}
+
+	/**
+	 * Gets the largest value that falls in a bucket.
+	 *
+	 * @param bucket the bucket
+	 * @return the upper bound
+	 */
+	private static long getBucketUpperBound(int bucket)
+	{
+		if(bucket < LINEAR) { return bucket; }
+
+		int exponent = (bucket - LINEAR) / (1 << SUB_BITS) + 4;
+		int sub = (bucket - LINEAR) % (1 << SUB_BITS);
+		long width = 1L << (exponent - SUB_BITS);
+
+		return ((1 << SUB_BITS) + sub) * width + width - 1;
+	}
+}
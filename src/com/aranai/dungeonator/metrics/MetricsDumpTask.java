@@ -0,0 +1,37 @@
+package com.aranai.dungeonator.metrics;
+
+import java.io.File;
+
+/**
+ * Periodically appends the generation metrics to a file.
+ * Runs off the server thread.
+ */
+public class MetricsDumpTask implements Runnable {
+
+	/** The metrics */
+	private final GenerationMetrics metrics;
+
+	/** The output file */
+	private final File file;
+
+	/**
+	 * Instantiates the task.
+	 *
+	 * @param metrics the metrics
+	 * @param file the output file
+	 */
+	public MetricsDumpTask(GenerationMetrics metrics, File file)
+	{
+		this.metrics = metrics;
+		this.file = file;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Runnable#run()
+	 */
+	@Override
+	public void run()
+	{
+		metrics.dump(file);
+	}
+}
@@ -0,0 +1,85 @@
+package com.aranai.dungeonator.util;
+
+/**
+ * Packs a world id and chunk or room coordinates into a single long.
+ *
+ * Layout, high to low: 12 bits world id, 24 bits chunk x, 24 bits chunk z,
+ * 4 bits room y. Chunk coordinates are stored in two's complement, which
+ * covers +/-8 million chunks, well past the edge of a Minecraft world. A
+ * chunk key is the key of its bottom room.
+ */
+public class CoordKey {
+
+	/** Bits used for the world id */
+	public static final int WORLD_BITS = 12;
+
+	private static final int COORD_BITS = 24;
+	private static final long COORD_MASK = (1L << COORD_BITS) - 1;
+
+	private static final int Y_BITS = 4;
+	private static final int Z_SHIFT = Y_BITS;
+	private static final int X_SHIFT = Z_SHIFT + COORD_BITS;
+	private static final int WORLD_SHIFT = X_SHIFT + COORD_BITS;
+
+	/**
+	 * Gets the key for a chunk.
+	 *
+	 * @param world the world id
+	 * @param x the x coordinate of the chunk
+	 * @param z the z coordinate of the chunk
+	 * @return the key
+	 */
+	public static long chunk(int world, int x, int z)
+	{
+		return room(world, x, 0, z);
+	}
+
+	/**
+	 * Gets the key for a room.
+	 *
+	 * @param world the world id
+	 * @param x the x coordinate of the chunk
+	 * @param y the y coordinate of the room, 0-15
+	 * @param z the z coordinate of the chunk
+	 * @return the key
+	 */
+	public static long room(int world, int x, int y, int z)
+	{
+		return ((long)world << WORLD_SHIFT)
+			| ((x & COORD_MASK) << X_SHIFT)
+			| ((z & COORD_MASK) << Z_SHIFT)
+			| (y & ((1 << Y_BITS) - 1));
+	}
+
+	/**
+	 * Gets the key of the chunk that holds a room.
+	 *
+	 * @param key the room key
+	 * @return the chunk key
+	 */
+	public static long toChunk(long key)
+	{
+		return key & ~((1L << Y_BITS) - 1);
+	}
+
+	public static int getWorld(long key)
+	{
+		return (int)(key >>> WORLD_SHIFT);
+	}
+
+	public static int getX(long key)
+	{
+		// Shift up and back down to sign-extend
+		return (int)(key << (64 - X_SHIFT - COORD_BITS) >> (64 - COORD_BITS));
+	}
+
+	public static int getY(long key)
+	{
+		return (int)(key & ((1 << Y_BITS) - 1));
+	}
+
+	public static int getZ(long key)
+	{
+		return (int)(key << (64 - Z_SHIFT - COORD_BITS) >> (64 - COORD_BITS));
+	}
+}
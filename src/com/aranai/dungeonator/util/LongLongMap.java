@@ -0,0 +1,240 @@
+package com.aranai.dungeonator.util;
+
+import java.util.Arrays;
+
+/**
+ * A hash map from primitive long keys to primitive long values, using
+ * open addressing with linear probing. Nothing is boxed and lookups do not
+ * allocate.
+ *
+ * Not thread-safe; callers that share a map must synchronize on it.
+ */
+public class LongLongMap {
+
+	/** Keys, valid only where used is set */
+	private long[] keys;
+
+	private long[] values;
+
+	private boolean[] used;
+
+	/** Number of entries */
+	private int size = 0;
+
+	/** Resize when size reaches this */
+	private int threshold;
+
+	public LongLongMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param expected the number of entries to size the table for
+	 */
+	public LongLongMap(int expected)
+	{
+		allocate(tableSize(expected));
+	}
+
+	/**
+	 * Gets a power of two table size that holds a number of entries below
+	 * the load factor.
+	 */
+	static int tableSize(int expected)
+	{
+		int capacity = 16;
+		while(capacity / 4 * 3 <= expected) { capacity <<= 1; }
+
+		return capacity;
+	}
+
+	/**
+	 * Spreads the bits of a key so that nearby coordinates land in
+	 * different slots.
+	 */
+	static int mix(long key)
+	{
+		key *= 0x9E3779B97F4A7C15L;
+		return (int)(key ^ (key >>> 32));
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new long[capacity];
+		used = new boolean[capacity];
+		threshold = capacity / 4 * 3;
+	}
+
+	private int slot(long key)
+	{
+		return mix(key) & (keys.length - 1);
+	}
+
+	/**
+	 * Gets the value for a key.
+	 *
+	 * @param key the key
+	 * @param missing the value to return if there is no entry
+	 * @return the value
+	 */
+	public long get(long key, long missing)
+	{
+		int mask = keys.length - 1;
+		for(int i = slot(key); used[i]; i = (i + 1) & mask)
+		{
+			if(keys[i] == key) { return values[i]; }
+		}
+
+		return missing;
+	}
+
+	public boolean containsKey(long key)
+	{
+		int mask = keys.length - 1;
+		for(int i = slot(key); used[i]; i = (i + 1) & mask)
+		{
+			if(keys[i] == key) { return true; }
+		}
+
+		return false;
+	}
+
+	/**
+	 * Sets the value for a key.
+	 *
+	 * @param key the key
+	 * @param value the value
+	 */
+	public void put(long key, long value)
+	{
+		int mask = keys.length - 1;
+		int i = slot(key);
+		for(; used[i]; i = (i + 1) & mask)
+		{
+			if(keys[i] == key)
+			{
+				values[i] = value;
+				return;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		used[i] = true;
+		if(++size >= threshold) { rehash(keys.length * 2); }
+	}
+
+	/**
+	 * Copies every entry of another map into this one.
+	 *
+	 * @param other the other map
+	 */
+	public void putAll(LongLongMap other)
+	{
+		for(int i = 0; i < other.keys.length; i++)
+		{
+			if(other.used[i]) { put(other.keys[i], other.values[i]); }
+		}
+	}
+
+	/**
+	 * Removes a key.
+	 *
+	 * @param key the key
+	 * @return true, if there was an entry
+	 */
+	public boolean remove(long key)
+	{
+		int mask = keys.length - 1;
+		for(int i = slot(key); used[i]; i = (i + 1) & mask)
+		{
+			if(keys[i] == key)
+			{
+				closeGap(i);
+				size--;
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Fills a freed slot by shifting back later entries of the same probe
+	 * run, so lookups never need tombstones.
+	 */
+	private void closeGap(int gap)
+	{
+		int mask = keys.length - 1;
+		int i = gap;
+
+		while(true)
+		{
+			i = (i + 1) & mask;
+			if(!used[i]) { break; }
+
+			// Move the entry back if its home slot is not between the gap and here
+			int home = slot(keys[i]);
+			if(((i - home) & mask) >= ((i - gap) & mask))
+			{
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+
+		used[gap] = false;
+	}
+
+	private void rehash(int capacity)
+	{
+		long[] oldKeys = keys;
+		long[] oldValues = values;
+		boolean[] oldUsed = used;
+
+		allocate(capacity);
+
+		int mask = capacity - 1;
+		for(int j = 0; j < oldKeys.length; j++)
+		{
+			if(!oldUsed[j]) { continue; }
+
+			int i = slot(oldKeys[j]);
+			while(used[i]) { i = (i + 1) & mask; }
+
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+			used[i] = true;
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(used, false);
+		size = 0;
+	}
+
+	/**
+	 * Gets a copy of the keys.
+	 *
+	 * @return the keys, in no particular order
+	 */
+	public long[] keys()
+	{
+		long[] out = new long[size];
+		int n = 0;
+		for(int i = 0; i < keys.length; i++)
+		{
+			if(used[i]) { out[n++] = keys[i]; }
+		}
+
+		return out;
+	}
+}
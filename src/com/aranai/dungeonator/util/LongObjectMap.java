@@ -0,0 +1,220 @@
+package com.aranai.dungeonator.util;
+
+import java.util.Arrays;
+import java.util.Vector;
+
+/**
+ * A hash map from primitive long keys to objects, using open addressing
+ * with linear probing. Lookups do not allocate.
+ *
+ * Not thread-safe; callers that share a map must synchronize on it.
+ */
+public class LongObjectMap<V> {
+
+	/** Keys, valid only where the value is not null */
+	private long[] keys;
+
+	/** Values; null marks a free slot */
+	private Object[] values;
+
+	/** Number of entries */
+	private int size = 0;
+
+	/** Resize when size reaches this */
+	private int threshold;
+
+	public LongObjectMap()
+	{
+		this(16);
+	}
+
+	/**
+	 * @param expected the number of entries to size the table for
+	 */
+	public LongObjectMap(int expected)
+	{
+		allocate(LongLongMap.tableSize(expected));
+	}
+
+	private void allocate(int capacity)
+	{
+		keys = new long[capacity];
+		values = new Object[capacity];
+		threshold = capacity / 4 * 3;
+	}
+
+	private int slot(long key)
+	{
+		return LongLongMap.mix(key) & (keys.length - 1);
+	}
+
+	/**
+	 * Gets the value for a key.
+	 *
+	 * @param key the key
+	 * @return the value, or null if there is none
+	 */
+	@SuppressWarnings("unchecked")
+	public V get(long key)
+	{
+		int mask = keys.length - 1;
+		for(int i = slot(key); values[i] != null; i = (i + 1) & mask)
+		{
+			if(keys[i] == key) { return (V)values[i]; }
+		}
+
+		return null;
+	}
+
+	public boolean containsKey(long key)
+	{
+		return get(key) != null;
+	}
+
+	/**
+	 * Sets the value for a key.
+	 *
+	 * @param key the key
+	 * @param value the value; must not be null
+	 * @return the previous value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V put(long key, V value)
+	{
+		if(value == null) { throw new NullPointerException("LongObjectMap values may not be null"); }
+
+		int mask = keys.length - 1;
+		int i = slot(key);
+		for(; values[i] != null; i = (i + 1) & mask)
+		{
+			if(keys[i] == key)
+			{
+				V old = (V)values[i];
+				values[i] = value;
+				return old;
+			}
+		}
+
+		keys[i] = key;
+		values[i] = value;
+		if(++size >= threshold) { rehash(keys.length * 2); }
+
+		return null;
+	}
+
+	/**
+	 * Removes a key.
+	 *
+	 * @param key the key
+	 * @return the removed value, or null if there was none
+	 */
+	@SuppressWarnings("unchecked")
+	public V remove(long key)
+	{
+		int mask = keys.length - 1;
+		for(int i = slot(key); values[i] != null; i = (i + 1) & mask)
+		{
+			if(keys[i] == key)
+			{
+				V old = (V)values[i];
+				closeGap(i);
+				size--;
+				return old;
+			}
+		}
+
+		return null;
+	}
+
+	/**
+	 * Fills a freed slot by shifting back later entries of the same probe
+	 * run, so lookups never need tombstones.
+	 */
+	private void closeGap(int gap)
+	{
+		int mask = keys.length - 1;
+		int i = gap;
+
+		while(true)
+		{
+			i = (i + 1) & mask;
+			if(values[i] == null) { break; }
+
+			// Move the entry back if its home slot is not between the gap and here
+			int home = slot(keys[i]);
+			if(((i - home) & mask) >= ((i - gap) & mask))
+			{
+				keys[gap] = keys[i];
+				values[gap] = values[i];
+				gap = i;
+			}
+		}
+
+		values[gap] = null;
+	}
+
+	private void rehash(int capacity)
+	{
+		long[] oldKeys = keys;
+		Object[] oldValues = values;
+
+		allocate(capacity);
+
+		int mask = capacity - 1;
+		for(int j = 0; j < oldKeys.length; j++)
+		{
+			if(oldValues[j] == null) { continue; }
+
+			int i = slot(oldKeys[j]);
+			while(values[i] != null) { i = (i + 1) & mask; }
+
+			keys[i] = oldKeys[j];
+			values[i] = oldValues[j];
+		}
+	}
+
+	public int size()
+	{
+		return size;
+	}
+
+	public void clear()
+	{
+		Arrays.fill(values, null);
+		size = 0;
+	}
+
+	/**
+	 * Gets a copy of the keys.
+	 *
+	 * @return the keys, in no particular order
+	 */
+	public long[] keys()
+	{
+		long[] out = new long[size];
+		int n = 0;
+		for(int i = 0; i < keys.length; i++)
+		{
+			if(values[i] != null) { out[n++] = keys[i]; }
+		}
+
+		return out;
+	}
+
+	/**
+	 * Gets a copy of the values.
+	 *
+	 * @return the values, in no particular order
+	 */
+	@SuppressWarnings("unchecked")
+	public Vector<V> values()
+	{
+		Vector<V> out = new Vector<V>(size);
+		for(int i = 0; i < values.length; i++)
+		{
+			if(values[i] != null) { out.add((V)values[i]); }
+		}
+
+		return out;
+	}
+}
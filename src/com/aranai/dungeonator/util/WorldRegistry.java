@@ -0,0 +1,64 @@
+package com.aranai.dungeonator.util;
+
+import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Assigns each world name a small integer id for use in packed keys.
+ *
+ * Ids are handed out in order of first use and last for the life of the
+ * server; they are never written to disk, so the same world may get a
+ * different id after a restart.
+ */
+public class WorldRegistry {
+
+	/** Largest id that fits in a packed key */
+	public static final int MAX_ID = (1 << CoordKey.WORLD_BITS) - 1;
+
+	/** Ids by world name */
+	private static ConcurrentHashMap<String,Integer> ids = new ConcurrentHashMap<String,Integer>();
+
+	/** World names by id */
+	private static Vector<String> names = new Vector<String>();
+
+	/**
+	 * Gets the id of a world, assigning one on first use.
+	 *
+	 * @param world the world name
+	 * @return the id
+	 */
+	public static int getId(String world)
+	{
+		Integer id = ids.get(world);
+		if(id != null) { return id; }
+
+		return register(world);
+	}
+
+	/**
+	 * Gets the name of a world.
+	 *
+	 * @param id the world id
+	 * @return the world name, or null if no world has the id
+	 */
+	public static String getName(int id)
+	{
+		return (id >= 0 && id < names.size()) ? names.get(id) : null;
+	}
+
+	private static synchronized int register(String world)
+	{
+		Integer id = ids.get(world);
+		if(id != null) { return id; }
+
+		if(names.size() > MAX_ID)
+		{
+			throw new IllegalStateException("Too many worlds for packed keys: "+world);
+		}
+
+		names.add(world);
+		ids.put(world, names.size() - 1);
+
+		return names.size() - 1;
+	}
+}